@@ -2,13 +2,29 @@ import javax.net.ssl.*;
 import java.io.*;
 import java.lang.reflect.Field;
 import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.security.KeyStore;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 /**
  * mTLS Client that sends requests to the server
- * Usage: java MtlsClient
+ * Usage: java MtlsClient [update|h2|heartbeat|bulk] [count] [concurrency]
+ * 'update' (default) sends PATCH /api/update over keep-alive connections, 'h2' sends real PATCH requests
+ * multiplexed over one HTTP/2 connection, concurrency at a time, 'heartbeat' uses the raw heartbeat endpoint,
+ * 'bulk' registers count generated users through POST /api/register/bulk.
+ * One SSLContext is used throughout, so TLS sessions are resumed instead of repeating full handshakes.
  */
 public class MtlsClient {
 
@@ -17,6 +33,9 @@ public class MtlsClient {
     private static final String CLIENT_KEYSTORE_PATH = "../certs/client-keystore.p12";
     private static final String TRUSTSTORE_PATH = "../client-truststore.p12";
     private static final String KEYSTORE_PASSWORD = "changeit";
+    private static final String HEARTBEAT_HOST = "localhost";
+    private static final int HEARTBEAT_PORT = 8444;
+    private static final int HTTPS_PORT = 8443;
 
     public static void main(String[] args) {
         try {
@@ -78,55 +97,53 @@ public class MtlsClient {
             }
 
             int registerResponseCode = registerConnection.getResponseCode();
+            // Consume the body instead of disconnecting, so the connection returns to the keep-alive pool
+            String registerResponse = readResponse(registerConnection);
             if (registerResponseCode == 201) {
                 System.out.println("✓ User registered successfully.");
             } else if (registerResponseCode == 409) {
                 System.out.println("User already exists, proceeding to update.");
             } else {
                 System.out.println("✗ Registration failed with code: " + registerResponseCode);
-                System.out.println("Response: " + readResponse(registerConnection));
+                System.out.println("Response: " + registerResponse);
             }
-            registerConnection.disconnect();
 
-            // Now update
-            URL updateUrl = new URL(UPDATE_URL);
-            HttpsURLConnection connection = (HttpsURLConnection) updateUrl.openConnection();
+            String mode = args.length > 0 ? args[0] : "update";
+            int count = args.length > 1 ? Integer.parseInt(args[1]) : 1;
 
-            // Configure request
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(5000);
-            connection.setReadTimeout(5000);
-
-            // Send _method=PATCH as form data
-            String formData = "_method=PATCH";
-            try (OutputStream os = connection.getOutputStream()) {
-                os.write(formData.getBytes());
+            if (mode.equals("heartbeat")) {
+                sendHeartbeats(socketFactory, count);
+                return;
+            }
+            if (mode.equals("bulk")) {
+                sendBulkRegistrations(socketFactory, count);
+                return;
+            }
+            if (mode.equals("h2")) {
+                int concurrency = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+                sendHttp2Updates(sslContext, count, concurrency);
+                return;
             }
 
             System.out.println("\nSending POST request (PATCH override) to: " + UPDATE_URL);
             System.out.println("Using client certificate with CN: user@example.com");
 
-            // Send request
-            int responseCode = connection.getResponseCode();
-            String responseMessage = connection.getResponseMessage();
-
-            System.out.println("\n=== Response ===");
-            System.out.println("Response Code: " + responseCode);
-            System.out.println("Response Message: " + responseMessage);
-
-            if (responseCode == 200) {
-                System.out.println("✓ Success! User record updated.");
-            } else if (responseCode == 400) {
-                System.out.println("✗ Bad Request - CN does not resemble an email");
-            } else if (responseCode == 403) {
-                System.out.println("✗ Forbidden - User not found in database");
-            } else {
-                System.out.println("Response: " + readResponse(connection));
+            if (count == 1) {
+                sendUpdate(true);
+                return;
             }
 
-            connection.disconnect();
+            // Every update after the first reuses the kept-alive connection (or at least its TLS session)
+            long start = System.nanoTime();
+            int succeeded = 0;
+            for (int i = 0; i < count; i++) {
+                if (sendUpdate(false) == 200) {
+                    succeeded++;
+                }
+            }
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
+            System.out.println("✓ " + succeeded + "/" + count + " updates succeeded in " + elapsedMicros / 1000 + " ms ("
+                    + elapsedMicros / count + " µs each)");
 
         } catch (Exception e) {
             System.err.println("Error: " + e.getMessage());
@@ -134,9 +151,243 @@ public class MtlsClient {
         }
     }
 
+    private static int sendUpdate(boolean verbose) throws IOException {
+        URL updateUrl = new URL(UPDATE_URL);
+        HttpsURLConnection connection = (HttpsURLConnection) updateUrl.openConnection();
+
+        // Configure request
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+
+        // Send _method=PATCH as form data
+        String formData = "_method=PATCH";
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(formData.getBytes());
+        }
+
+        // Send request
+        int responseCode = connection.getResponseCode();
+        String responseMessage = connection.getResponseMessage();
+        // Consume the body instead of disconnecting, so the next update reuses this connection
+        String response = readResponse(connection);
+
+        if (!verbose) {
+            return responseCode;
+        }
+
+        System.out.println("\n=== Response ===");
+        System.out.println("Response Code: " + responseCode);
+        System.out.println("Response Message: " + responseMessage);
+
+        if (responseCode == 200) {
+            System.out.println("✓ Success! User record updated.");
+        } else if (responseCode == 400) {
+            System.out.println("✗ Bad Request - CN does not resemble an email");
+        } else if (responseCode == 403) {
+            System.out.println("✗ Forbidden - User not found in database");
+        } else {
+            System.out.println("Response: " + response);
+        }
+        return responseCode;
+    }
+
+    /**
+     * Sends count PATCH requests through java.net.http.HttpClient, up to concurrency at a time. Over HTTP/2 they are
+     * streams on a single connection, so the whole run costs one TLS handshake and one client certificate check.
+     */
+    private static void sendHttp2Updates(SSLContext sslContext, int count, int concurrency) throws Exception {
+        System.out.println("\nSending " + count + " PATCH requests over HTTP/2 (" + concurrency + " in flight) to: "
+                + UPDATE_URL);
+
+        HttpClient client = HttpClient.newBuilder()
+                .sslContext(sslContext)
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(UPDATE_URL))
+                .method("PATCH", HttpRequest.BodyPublishers.noBody())
+                .timeout(Duration.ofSeconds(10))
+                .build();
+
+        // Requests sent before ALPN has settled the protocol would each open their own connection
+        HttpResponse<Void> first = client.send(request, HttpResponse.BodyHandlers.discarding());
+        System.out.println("Negotiated " + first.version() + ", first response: " + first.statusCode());
+
+        Map<String, Integer> results = new ConcurrentHashMap<>();
+        // A resumed connection shares its session's id, so this is a lower bound on the connections used
+        Set<String> sessions = ConcurrentHashMap.newKeySet();
+        Semaphore inFlight = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            inFlight.acquire();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                if (response != null) {
+                    results.merge(response.version() + " " + response.statusCode(), 1, Integer::sum);
+                    response.sslSession().ifPresent(session -> sessions.add(HexFormat.of().formatHex(session.getId())));
+                } else {
+                    results.merge(error.getClass().getSimpleName(), 1, Integer::sum);
+                }
+                inFlight.release();
+            });
+        }
+        inFlight.acquire(concurrency);
+
+        long elapsedMicros = Math.max(1, (System.nanoTime() - start) / 1000);
+        System.out.println("✓ " + new TreeMap<>(results) + " in " + elapsedMicros / 1000 + " ms ("
+                + count * 1_000_000L / elapsedMicros + " requests/s) over " + sessions.size() + " TLS session(s)");
+    }
+
+    /**
+     * Sends empty heartbeat frames ([payload_length:2 = 0]) over one connection and checks each one-byte ack.
+     */
+    private static void sendHeartbeats(SSLSocketFactory socketFactory, int count) throws IOException {
+        System.out.println("\nSending " + count + " heartbeats to " + HEARTBEAT_HOST + ":" + HEARTBEAT_PORT);
+
+        try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(HEARTBEAT_HOST, HEARTBEAT_PORT)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            InputStream in = socket.getInputStream();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                out.writeShort(0);
+                out.flush();
+
+                int ack = in.read();
+                if (ack != 0) {
+                    String reason = switch (ack) {
+                        case -1 -> "connection closed";
+                        case 1 -> "CN does not resemble an email";
+                        case 2 -> "user not found in database";
+                        case 4 -> "too many heartbeats for this identity";
+                        default -> "server error";
+                    };
+                    System.out.println("✗ Heartbeat " + (i + 1) + " rejected: " + reason);
+                    return;
+                }
+            }
+            long elapsedMicros = (System.nanoTime() - start) / 1000;
+            System.out.println("✓ " + count + " heartbeats acknowledged in " + elapsedMicros / 1000 + " ms ("
+                    + elapsedMicros / count + " µs each)");
+        }
+    }
+
+    /**
+     * Streams count registrations as NDJSON to POST /api/register/bulk and reads the result lines while the body
+     * is still being sent. The server answers batch by batch, so a client that only reads after the whole upload
+     * (like HttpURLConnection) stalls once the socket buffers fill up; this uses a raw socket instead.
+     */
+    private static void sendBulkRegistrations(SSLSocketFactory socketFactory, int count) throws Exception {
+        System.out.println("\nRegistering " + count + " users through POST /api/register/bulk");
+
+        try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(HEARTBEAT_HOST, HTTPS_PORT)) {
+            socket.setSoTimeout(30000);
+            long start = System.nanoTime();
+
+            Thread writer = new Thread(() -> {
+                try {
+                    writeBulkRequest(socket.getOutputStream(), count);
+                } catch (IOException e) {
+                    System.err.println("Failed to send bulk registrations: " + e.getMessage());
+                }
+            }, "bulk-writer");
+            writer.start();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String statusLine = readHttpLine(in);
+            boolean chunked = false;
+            for (String header = readHttpLine(in); !header.isEmpty(); header = readHttpLine(in)) {
+                chunked |= header.toLowerCase().startsWith("transfer-encoding:") && header.toLowerCase().contains("chunked");
+            }
+            if (!statusLine.contains(" 200 ") || !chunked) {
+                System.out.println("✗ Bulk registration failed: " + statusLine);
+                return;
+            }
+
+            // Decode the chunked body and count results by their "result" field
+            Map<String, Integer> results = new TreeMap<>();
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int size = chunkSize(in); size > 0; size = chunkSize(in)) {
+                for (int i = 0; i < size; i++) {
+                    int c = in.read();
+                    if (c == '\n') {
+                        results.merge(resultOf(line.toString(StandardCharsets.UTF_8)), 1, Integer::sum);
+                        line.reset();
+                    } else {
+                        line.write(c);
+                    }
+                }
+                readHttpLine(in);
+            }
+            writer.join();
+
+            long elapsedMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            System.out.println("✓ " + results + " in " + elapsedMillis + " ms ("
+                    + count * 60_000L / elapsedMillis + " registrations/min)");
+        }
+    }
+
+    private static void writeBulkRequest(OutputStream socketOut, int count) throws IOException {
+        OutputStream out = new BufferedOutputStream(socketOut);
+        out.write(("POST /api/register/bulk HTTP/1.1\r\n"
+                + "Host: " + HEARTBEAT_HOST + ":" + HTTPS_PORT + "\r\n"
+                + "Content-Type: application/x-ndjson\r\n"
+                + "Accept: application/x-ndjson\r\n"
+                + "Transfer-Encoding: chunked\r\n"
+                + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        for (int i = 1; i <= count; i++) {
+            chunk.write(("{\"email\":\"bulkuser" + i + "@example.com\"}\n").getBytes(StandardCharsets.UTF_8));
+            if (chunk.size() >= 16384 || i == count) {
+                out.write((Integer.toHexString(chunk.size()) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                chunk.writeTo(out);
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                chunk.reset();
+            }
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static int chunkSize(InputStream in) throws IOException {
+        return Integer.parseInt(readHttpLine(in).split(";")[0].trim(), 16);
+    }
+
+    private static String resultOf(String resultLine) {
+        int start = resultLine.indexOf("\"result\":\"");
+        if (start < 0) {
+            return "unknown";
+        }
+        start += "\"result\":\"".length();
+        return resultLine.substring(start, resultLine.indexOf('"', start));
+    }
+
+    private static String readHttpLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        if (c == -1 && line.length() == 0) {
+            throw new EOFException("Connection closed");
+        }
+        return line.toString();
+    }
+
     private static String readResponse(HttpURLConnection conn) throws IOException {
         InputStream errorStream = conn.getErrorStream();
         if (errorStream == null) {
+            // Error responses without a body have no stream to read
+            if (conn.getResponseCode() >= 400) {
+                return "";
+            }
             InputStream inputStream = conn.getInputStream();
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
                 return reader.lines().reduce("", (a, b) -> a + b);
@@ -0,0 +1,503 @@
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * mTLS load generator for the register and update endpoints.
+ * Every identity in the identities keystore is a separate client certificate with its own TLS sessions;
+ * use scripts/generate-identities.sh to mint them from the CA in certs/.
+ * <p>
+ * With --rate > 0 requests are sent open-loop at a fixed rate and latency is measured from the intended send time,
+ * so a stalled server shows up in the percentiles instead of silently lowering the request rate
+ * (coordinated omission). With --rate=0 each of --concurrency workers sends its next request as soon as
+ * the previous one completes.
+ * <p>
+ * With --protocol=http1 (default) updates are POSTs with a _method=PATCH override, like MtlsClient, and each identity
+ * opens as many keep-alive connections as it has requests in flight. With --protocol=http2 they are real PATCH
+ * requests multiplexed over one connection per identity. The server's tls.handshakes meter is read before and
+ * after the run to report how many connections it accepted.
+ * <p>
+ * Usage: java MtlsLoadGenerator.java [--identities=../certs/load/identities.p12] [--rate=1000]
+ *        [--concurrency=256] [--duration=30] [--warmup=5] [--register=true] [--protocol=http1|http2]
+ *        [--host=localhost] [--port=8443]
+ */
+public class MtlsLoadGenerator {
+
+    private static final String DEFAULT_IDENTITIES = "../certs/load/identities.p12";
+    private static final String FALLBACK_IDENTITY = "../certs/client-keystore.p12";
+    private static final String TRUSTSTORE_PATH = "../client-truststore.p12";
+
+    private final Map<String, String> options;
+    private final String baseUrl;
+    private final boolean http2;
+    private final List<Identity> identities = new ArrayList<>();
+    private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    private volatile long measureFromNanos;
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Unrecognized argument: " + arg);
+                System.exit(2);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+
+        try {
+            new MtlsLoadGenerator(options).run();
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private MtlsLoadGenerator(Map<String, String> options) {
+        this.options = options;
+        this.baseUrl = "https://" + option("host", "localhost") + ":" + option("port", "8443");
+        this.http2 = switch (option("protocol", "http1")) {
+            case "http1" -> false;
+            case "http2" -> true;
+            default -> throw new IllegalArgumentException("--protocol must be http1 or http2");
+        };
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "load-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private void run() throws Exception {
+        loadIdentities();
+
+        int rate = Integer.parseInt(option("rate", "1000"));
+        int concurrency = Integer.parseInt(option("concurrency", "256"));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "5")));
+
+        if (Boolean.parseBoolean(option("register", "true"))) {
+            System.out.println("Registering " + identities.size() + " identities...");
+            registerAll(concurrency);
+        }
+        if (http2) {
+            // Requests sent before ALPN has settled the protocol would each open their own connection
+            connectAll(concurrency);
+        }
+        long connectionsBefore = serverConnections();
+
+        System.out.println("\n=== Load Test ===");
+        System.out.println("Target: " + baseUrl + "/api/update over " + (http2 ? "HTTP/2" : "HTTP/1.1"));
+        System.out.println("Identities: " + identities.size() + ", concurrency: " + concurrency
+                + ", " + (rate > 0 ? "open loop at " + rate + " req/s" : "closed loop"));
+        System.out.println("Warmup: " + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + " s, measuring: "
+                + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s\n");
+
+        long start = System.nanoTime();
+        measureFromNanos = start + warmupNanos;
+        long end = measureFromNanos + durationNanos;
+
+        Thread progress = startProgressReporter();
+        if (rate > 0) {
+            runOpenLoop(rate, concurrency, end);
+        } else {
+            runClosedLoop(concurrency, end);
+        }
+        progress.interrupt();
+
+        report(TimeUnit.NANOSECONDS.toMillis(durationNanos) / 1000.0);
+        long connectionsAfter = serverConnections();
+        if (connectionsBefore >= 0 && connectionsAfter >= 0) {
+            System.out.println("Server accepted " + (connectionsAfter - connectionsBefore)
+                    + " HTTPS connections during the run (" + identities.size() + " identities)");
+        }
+    }
+
+    /**
+     * Sends at a fixed rate regardless of response times. The in-flight cap only bounds memory; time spent
+     * waiting for a permit still counts towards latency because latency starts at the intended send time.
+     */
+    private void runOpenLoop(int rate, int concurrency, long end) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) rate;
+        long start = System.nanoTime();
+
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * intervalNanos);
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            inFlight.acquire();
+            Identity identity = identities.get((int) (i % identities.size()));
+            sendUpdate(identity, intended).whenComplete((ignored, error) -> inFlight.release());
+        }
+        inFlight.acquire(concurrency);
+    }
+
+    /**
+     * Runs each worker on its own thread, waiting for every response before sending the next request.
+     */
+    private void runClosedLoop(int concurrency, long end) {
+        ExecutorService workerThreads = Executors.newFixedThreadPool(concurrency, task -> {
+            Thread thread = new Thread(task, "load-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < concurrency; i++) {
+            workers.add(CompletableFuture.runAsync(() -> closedLoopWorker(next, end), workerThreads));
+        }
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+        workerThreads.shutdown();
+    }
+
+    private void closedLoopWorker(AtomicInteger next, long end) {
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            Identity identity = identities.get(Math.floorMod(next.getAndIncrement(), identities.size()));
+            // Never completes exceptionally, send() turns failures into response codes
+            sendUpdate(identity, now).join();
+        }
+    }
+
+    private void registerAll(int concurrency) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        for (Identity identity : identities) {
+            inFlight.acquire();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/register"))
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString("{\"email\":\"" + identity.email() + "\"}"))
+                    .timeout(Duration.ofSeconds(10))
+                    .build();
+            send("register", identity, request, System.nanoTime(), true)
+                    .whenComplete((ignored, error) -> inFlight.release());
+        }
+        inFlight.acquire(concurrency);
+        stats.get("register").printCodes();
+    }
+
+    /**
+     * Opens the HTTP/2 connection of every identity with one request each, outside the measurement.
+     */
+    private void connectAll(int concurrency) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        for (Identity identity : identities) {
+            inFlight.acquire();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/health"))
+                    .timeout(Duration.ofSeconds(10))
+                    .build();
+            send("connect", identity, request, System.nanoTime(), true)
+                    .whenComplete((ignored, error) -> inFlight.release());
+        }
+        inFlight.acquire(concurrency);
+        stats.get("connect").printCodes();
+    }
+
+    private CompletableFuture<Void> sendUpdate(Identity identity, long intendedNanos) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + "/api/update"))
+                .timeout(Duration.ofSeconds(10));
+        if (http2) {
+            builder.method("PATCH", HttpRequest.BodyPublishers.noBody());
+        } else {
+            // Same request shape as MtlsClient: POST with a _method=PATCH override
+            builder.header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("_method=PATCH"));
+        }
+        return send("update", identity, builder.build(), intendedNanos, intendedNanos >= measureFromNanos);
+    }
+
+    /**
+     * Sum of the server's tls.handshakes{listener=https} counters, i.e. HTTPS connections accepted so far,
+     * or -1 when /actuator/prometheus cannot be read.
+     */
+    private long serverConnections() {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/actuator/prometheus"))
+                .timeout(Duration.ofSeconds(10))
+                .build();
+        try {
+            HttpResponse<String> response = identities.get(0).client()
+                    .send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return -1;
+            }
+            double total = 0;
+            for (String line : response.body().split("\n")) {
+                if (line.startsWith("tls_handshakes_total{") && line.contains("listener=\"https\"")) {
+                    total += Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+                }
+            }
+            return (long) total;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private CompletableFuture<Void> send(String endpoint, Identity identity, HttpRequest request,
+                                         long intendedNanos, boolean measured) {
+        EndpointStats endpointStats = stats.computeIfAbsent(endpoint, EndpointStats::new);
+        return identity.client().sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .handle((response, error) -> {
+                    if (!measured) {
+                        return null;
+                    }
+                    long latencyMicros = (System.nanoTime() - intendedNanos) / 1000;
+                    endpointStats.latency.record(latencyMicros);
+                    endpointStats.count(response != null ? Integer.toString(response.statusCode()) : errorName(error));
+                    if (response != null) {
+                        endpointStats.countVersion(response.version());
+                    }
+                    return null;
+                });
+    }
+
+    private static String errorName(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getClass().getSimpleName();
+    }
+
+    private Thread startProgressReporter() {
+        Thread thread = new Thread(() -> {
+            long last = 0;
+            try {
+                while (true) {
+                    Thread.sleep(1000);
+                    EndpointStats update = stats.get("update");
+                    long total = update == null ? 0 : update.latency.count();
+                    System.out.println("  " + (total - last) + " req/s (" + total + " measured)");
+                    last = total;
+                }
+            } catch (InterruptedException e) {
+                // Load test finished
+            }
+        }, "load-progress");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void report(double seconds) {
+        System.out.println("\n=== Results ===");
+        for (EndpointStats endpointStats : new TreeMap<>(stats).values()) {
+            LatencyHistogram latency = endpointStats.latency;
+            if (endpointStats.name.equals("update")) {
+                System.out.printf("%s: %d requests, %.1f req/s%n", endpointStats.name, latency.count(), latency.count() / seconds);
+            } else {
+                // Sent before the measured run, so there is no rate to report
+                System.out.printf("%s: %d requests%n", endpointStats.name, latency.count());
+            }
+            System.out.printf("  latency (ms)  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                    latency.percentile(50) / 1000.0, latency.percentile(90) / 1000.0, latency.percentile(99) / 1000.0,
+                    latency.percentile(99.9) / 1000.0, latency.max() / 1000.0);
+            endpointStats.printCodes();
+            endpointStats.printVersions();
+        }
+    }
+
+    /**
+     * Builds one HttpClient per key entry of the identities keystore, each presenting its own client certificate.
+     */
+    private void loadIdentities() throws Exception {
+        String password = option("password", "changeit");
+        String path = option("identities", DEFAULT_IDENTITIES);
+        if (!options.containsKey("identities") && !new File(path).exists()) {
+            System.out.println("No " + DEFAULT_IDENTITIES + ", using the single identity in " + FALLBACK_IDENTITY);
+            path = FALLBACK_IDENTITY;
+        }
+
+        KeyStore trustStore = load(option("truststore", TRUSTSTORE_PATH), password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+
+        KeyStore all = load(path, password);
+        KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(password.toCharArray());
+        for (String alias : Collections.list(all.aliases())) {
+            if (!all.isKeyEntry(alias)) {
+                continue;
+            }
+            KeyStore single = KeyStore.getInstance("PKCS12");
+            single.load(null, null);
+            single.setEntry(alias, all.getEntry(alias, protection), protection);
+
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(single, password.toCharArray());
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+            HttpClient client = HttpClient.newBuilder()
+                    .sslContext(sslContext)
+                    .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(5))
+                    .executor(executor)
+                    .build();
+            String email = commonName((X509Certificate) all.getCertificate(alias));
+            identities.add(new Identity(email, client));
+        }
+
+        if (identities.isEmpty()) {
+            throw new IOException("No key entries in " + path);
+        }
+        System.out.println("Loaded " + identities.size() + " identities from " + path);
+    }
+
+    private static KeyStore load(String path, String password) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (FileInputStream fis = new FileInputStream(path)) {
+            keyStore.load(fis, password.toCharArray());
+        }
+        return keyStore;
+    }
+
+    private static String commonName(X509Certificate certificate) {
+        for (String part : certificate.getSubjectX500Principal().getName().split(",")) {
+            if (part.startsWith("CN=")) {
+                return part.substring(3);
+            }
+        }
+        return certificate.getSubjectX500Principal().getName();
+    }
+
+    private record Identity(String email, HttpClient client) {
+    }
+
+    private static final class EndpointStats {
+
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final Map<String, LongAdder> codes = new ConcurrentHashMap<>();
+        private final Map<HttpClient.Version, LongAdder> versions = new ConcurrentHashMap<>();
+
+        EndpointStats(String name) {
+            this.name = name;
+        }
+
+        void count(String code) {
+            codes.computeIfAbsent(code, key -> new LongAdder()).increment();
+        }
+
+        void countVersion(HttpClient.Version version) {
+            versions.computeIfAbsent(version, key -> new LongAdder()).increment();
+        }
+
+        void printCodes() {
+            Map<String, Long> sorted = new LinkedHashMap<>();
+            new TreeMap<>(codes).forEach((code, count) -> sorted.put(code, count.sum()));
+            System.out.println("  " + name + " responses: " + sorted);
+        }
+
+        void printVersions() {
+            Map<HttpClient.Version, Long> sorted = new LinkedHashMap<>();
+            new TreeMap<>(versions).forEach((version, count) -> sorted.put(version, count.sum()));
+            System.out.println("  " + name + " protocols: " + sorted);
+        }
+    }
+
+    /**
+     * Lock-free log-linear histogram of microsecond values: exact below 256, then 128 sub-buckets per power of two,
+     * so every recorded value is within 1% (1/128) of its bucket.
+     */
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 8;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF);
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong maxValue = new AtomicLong();
+
+        void record(long value) {
+            long v = Math.max(0, value);
+            buckets.incrementAndGet(index(v));
+            total.increment();
+            maxValue.accumulateAndGet(v, Math::max);
+        }
+
+        long count() {
+            return total.sum();
+        }
+
+        long max() {
+            return maxValue.get();
+        }
+
+        long percentile(double percentile) {
+            long count = count();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max());
+                }
+            }
+            return max();
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+            int mantissa = (int) (value >>> shift);
+            return SUB_BUCKETS + (shift - 1) * HALF + (mantissa - HALF);
+        }
+
+        static long highestValue(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+            return ((mantissa + 1) << shift) - 1;
+        }
+    }
+}
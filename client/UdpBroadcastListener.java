@@ -1,23 +1,124 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+import java.util.zip.CRC32;
 
 /**
  * UDP Broadcast Listener - Listens on port 6667 for broadcast messages
- * Usage: java UdpBroadcastListener
+ * Accepts the legacy single-record datagrams, versioned multi-record frames and protobuf frames.
+ * Usage: java UdpBroadcastListener [--port=6667] [--fast [--rcvbuf=bytes] [--print]]
+ *            [--table [--snapshot=path] [--snapshot-interval=seconds] [--query-port=6680]]
+ *
+ * --fast drains a DatagramChannel into one reused direct buffer, decodes records in place and
+ * reports received, malformed and kernel-dropped datagrams once per second instead of printing them.
+ * --table (implies --fast) keeps the newest record per email, checkpoints it to a snapshot file that
+ * is reloaded on startup and serves it on http://127.0.0.1:6680/presence.
  */
 public class UdpBroadcastListener {
 
     private static final int LISTEN_PORT = 6667;
-    private static final int BUFFER_SIZE = 1024;
+    // Largest UDP payload, so frames are never truncated
+    private static final int BUFFER_SIZE = 65507;
+    private static final int FRAME_VERSION = 1;
+    private static final int PROTOBUF_FRAME_VERSION = 2;
+    // Requested SO_RCVBUF for --fast; Linux caps it at net.core.rmem_max
+    private static final int DEFAULT_RECEIVE_BUFFER = 8 * 1024 * 1024;
+    private static final String DEFAULT_SNAPSHOT = "presence-table.snapshot";
+    private static final int DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 10;
+    private static final int DEFAULT_QUERY_PORT = 6680;
+
+    // Protobuf wire types used by presence.proto
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
 
     public static void main(String[] args) {
+        int port = LISTEN_PORT;
+        int receiveBuffer = DEFAULT_RECEIVE_BUFFER;
+        boolean fast = false;
+        boolean print = false;
+        boolean table = false;
+        Path snapshot = Path.of(DEFAULT_SNAPSHOT);
+        int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL_SECONDS;
+        int queryPort = DEFAULT_QUERY_PORT;
+        for (String arg : args) {
+            if (arg.equals("--fast")) {
+                fast = true;
+            } else if (arg.equals("--table")) {
+                table = true;
+                fast = true;
+            } else if (arg.startsWith("--snapshot=")) {
+                snapshot = Path.of(arg.substring("--snapshot=".length()));
+            } else if (arg.startsWith("--snapshot-interval=")) {
+                snapshotInterval = Integer.parseInt(arg.substring("--snapshot-interval=".length()));
+            } else if (arg.startsWith("--query-port=")) {
+                queryPort = Integer.parseInt(arg.substring("--query-port=".length()));
+            } else if (arg.equals("--print")) {
+                print = true;
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--rcvbuf=")) {
+                receiveBuffer = Integer.parseInt(arg.substring("--rcvbuf=".length()));
+            } else {
+                System.err.println("Usage: java UdpBroadcastListener.java [--port=6667] [--fast [--rcvbuf=bytes] [--print]]"
+                        + " [--table [--snapshot=path] [--snapshot-interval=seconds] [--query-port=6680]]");
+                return;
+            }
+        }
+
         System.out.println("=== UDP Broadcast Listener Starting ===");
-        System.out.println("Listening on port: " + LISTEN_PORT);
+        System.out.println("Listening on port: " + port);
+
+        if (fast) {
+            try {
+                RecordConsumer consumer = print ? PRINT : IGNORE;
+                if (table) {
+                    PresenceTable presenceTable = openTable(snapshot, snapshotInterval, queryPort);
+                    consumer = print ? record -> {
+                        presenceTable.accept(record);
+                        PRINT.accept(record);
+                    } : presenceTable;
+                }
+                runFast(port, receiveBuffer, consumer);
+            } catch (Exception e) {
+                System.err.println("Error: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
+
         System.out.println("Waiting for broadcast messages...\n");
 
-        try (DatagramSocket socket = new DatagramSocket(LISTEN_PORT)) {
+        try (DatagramSocket socket = new DatagramSocket(port)) {
             byte[] buffer = new byte[BUFFER_SIZE];
 
             while (true) {
@@ -29,7 +130,16 @@ public class UdpBroadcastListener {
 
                 // Parse binary message
                 try {
-                    parseBinaryMessage(packet.getData(), packet.getLength());
+                    for (PresenceRecord record : parseBinaryMessage(packet.getData(), packet.getLength())) {
+                        System.out.println("Email: " + record.email());
+                        System.out.println("Last Seen (nanoseconds): " + record.lastSeen());
+                        if (record.offline()) {
+                            System.out.println("Status: offline");
+                            continue;
+                        }
+                        System.out.println("IP Address: " + record.ip());
+                        System.out.println("Port: " + record.port());
+                    }
                 } catch (Exception e) {
                     System.err.println("Error parsing message: " + e.getMessage());
                 }
@@ -43,31 +153,806 @@ public class UdpBroadcastListener {
         }
     }
 
-    private static void parseBinaryMessage(byte[] data, int length) throws Exception {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data, 0, length);
-        DataInputStream dis = new DataInputStream(bais);
+    /**
+     * Receive loop for --fast. Nothing is allocated per datagram: the channel fills the same direct
+     * buffer (the JDK reuses the sender address while it does not change) and the decoder hands each
+     * record to the consumer through one reused view.
+     */
+    private static void runFast(int port, int receiveBuffer, RecordConsumer consumer) throws IOException {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+            channel.bind(new InetSocketAddress(port));
+            int granted = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+            System.out.println("Receive buffer: requested " + receiveBuffer + " bytes, granted " + granted);
+            if (granted < receiveBuffer) {
+                System.out.println("Raise net.core.rmem_max to get the full receive buffer");
+            }
+
+            ReceiveCounters counters = new ReceiveCounters();
+            Thread reporter = new Thread(() -> report(port, counters), "listener-stats");
+            reporter.setDaemon(true);
+            reporter.start();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            InPlaceDecoder decoder = new InPlaceDecoder();
+            while (true) {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+
+                int records = decoder.decode(buffer, consumer);
+                counters.received++;
+                if (records < 0) {
+                    counters.malformed++;
+                } else {
+                    counters.records += records;
+                }
+            }
+        }
+    }
+
+    private static void report(int port, ReceiveCounters counters) {
+        long previous = 0;
+        while (true) {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long received = counters.received;
+            long drops = kernelDrops(port);
+            System.out.printf("received=%d (%d/s) records=%d malformed=%d kernel_drops=%s%n",
+                    received, received - previous, counters.records, counters.malformed,
+                    drops < 0 ? "n/a" : Long.toString(drops));
+            previous = received;
+        }
+    }
 
+    /**
+     * Sums the drops column of /proc/net/udp and /proc/net/udp6 for sockets bound to the port,
+     * i.e. datagrams the kernel discarded because the receive buffer was full. Returns -1 where
+     * those files do not exist (anything but Linux).
+     */
+    static long kernelDrops(int port) {
+        String localPort = String.format(":%04X", port);
+        long drops = -1;
+        for (String table : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(Path.of(table));
+            } catch (IOException e) {
+                continue;
+            }
+            for (String line : lines) {
+                // sl local_address rem_address st tx_queue:rx_queue ... ref pointer drops
+                String[] fields = line.trim().split("\\s+");
+                if (fields.length > 12 && fields[1].endsWith(localPort)) {
+                    drops = Math.max(drops, 0) + Long.parseLong(fields[fields.length - 1]);
+                }
+            }
+        }
+        return drops;
+    }
+
+    // Default for --fast: only the counters are kept
+    static final RecordConsumer IGNORE = record -> { };
+
+    /**
+     * Loads the last snapshot, then checkpoints every interval (and once more on shutdown)
+     * and starts the query server on the loopback interface.
+     */
+    private static PresenceTable openTable(Path snapshot, int snapshotInterval, int queryPort) throws IOException {
+        PresenceTable table = new PresenceTable();
+        if (Files.exists(snapshot)) {
+            long start = System.nanoTime();
+            try {
+                int loaded = table.loadSnapshot(snapshot);
+                System.out.printf("Loaded %d records from %s in %.1f ms%n", loaded, snapshot, (System.nanoTime() - start) / 1e6);
+            } catch (IOException e) {
+                System.err.println("Ignoring snapshot " + snapshot + ": " + e.getMessage());
+            }
+        }
+
+        ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "table-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpoints.scheduleWithFixedDelay(() -> checkpoint(table, snapshot), snapshotInterval, snapshotInterval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> checkpoint(table, snapshot)));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), queryPort), 0);
+        server.createContext("/presence", table::handle);
+        server.start();
+        System.out.println("Presence table queries on http://127.0.0.1:" + server.getAddress().getPort() + "/presence");
+        return table;
+    }
+
+    private static void checkpoint(PresenceTable table, Path snapshot) {
+        long start = System.nanoTime();
+        try {
+            int written = table.writeSnapshot(snapshot);
+            if (written >= 0) {
+                System.out.printf("Snapshot of %d records written in %.1f ms%n", written, (System.nanoTime() - start) / 1e6);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        }
+    }
+
+    private static final RecordConsumer PRINT = record -> {
+        if (record.offline()) {
+            System.out.println(record.email() + " offline at " + record.lastSeen());
+        } else {
+            System.out.println(record.email() + " " + record.lastSeen() + " " + record.ip() + ":" + record.port());
+        }
+    };
+
+    /**
+     * Decodes either format:
+     * legacy: [email_length:4][email][lastSeen:8][ip_length:4][ip][port:4]
+     * framed: [version:1][record_count:2][record]... where each record uses the legacy layout.
+     * protobuf: [version:1 = 2][PresenceBatch] as defined in src/main/proto/presence.proto.
+     * Legacy datagrams always start with a zero byte, the high byte of the email length.
+     */
+    static List<PresenceRecord> parseBinaryMessage(byte[] data, int length) throws IOException {
+        if (length == 0) {
+            throw new IOException("Empty datagram");
+        }
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+
+        if (data[0] == 0) {
+            return List.of(readRecord(dis));
+        }
+
+        int version = dis.readUnsignedByte();
+        if (version == PROTOBUF_FRAME_VERSION) {
+            return parsePresenceBatch(ByteBuffer.wrap(data, 1, length - 1));
+        }
+        if (version != FRAME_VERSION) {
+            throw new IOException("Unsupported frame version: " + version);
+        }
+
+        int count = dis.readUnsignedShort();
+        List<PresenceRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(readRecord(dis));
+        }
+        return records;
+    }
+
+    private static PresenceRecord readRecord(DataInputStream dis) throws IOException {
         // Read email
-        int emailLength = dis.readInt();
-        byte[] emailBytes = new byte[emailLength];
-        dis.readFully(emailBytes);
-        String email = new String(emailBytes);
+        String email = readString(dis);
 
         // Read lastSeen
         long lastSeen = dis.readLong();
 
         // Read IP
-        int ipLength = dis.readInt();
-        byte[] ipBytes = new byte[ipLength];
-        dis.readFully(ipBytes);
-        String ip = new String(ipBytes);
+        String ip = readString(dis);
 
         // Read port
         int port = dis.readInt();
 
-        System.out.println("Email: " + email);
-        System.out.println("Last Seen (nanoseconds): " + lastSeen);
-        System.out.println("IP Address: " + ip);
-        System.out.println("Port: " + port);
+        return new PresenceRecord(email, lastSeen, ip, port);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0 || length > dis.available()) {
+            throw new IOException("Invalid field length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a PresenceBatch by hand so the listener stays free of the protobuf runtime.
+     */
+    private static List<PresenceRecord> parsePresenceBatch(ByteBuffer batch) throws IOException {
+        List<PresenceRecord> records = new ArrayList<>();
+        try {
+            while (batch.hasRemaining()) {
+                long tag = readVarint(batch);
+                if (tag == ((1 << 3) | WIRE_LENGTH_DELIMITED)) {
+                    records.add(parsePresenceUpdate(readLengthDelimited(batch)));
+                } else {
+                    skipField(batch, (int) tag & 7);
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated protobuf frame");
+        }
+        return records;
+    }
+
+    private static PresenceRecord parsePresenceUpdate(ByteBuffer update) throws IOException {
+        String email = "";
+        long lastSeen = 0;
+        String ip = "";
+        int port = 0;
+
+        while (update.hasRemaining()) {
+            long tag = readVarint(update);
+            int wireType = (int) tag & 7;
+            switch ((int) (tag >>> 3)) {
+                case 1 -> email = readString(update, wireType);
+                case 2 -> lastSeen = readVarint(update, wireType);
+                case 3 -> ip = readAddress(update, wireType);
+                case 4 -> port = (int) readVarint(update, wireType);
+                case 5 -> ip = readString(update, wireType);
+                default -> skipField(update, wireType);
+            }
+        }
+        return new PresenceRecord(email, lastSeen, ip, port);
+    }
+
+    private static String readString(ByteBuffer buffer, int wireType) throws IOException {
+        ByteBuffer bytes = readLengthDelimited(buffer, wireType);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    private static String readAddress(ByteBuffer buffer, int wireType) throws IOException {
+        ByteBuffer bytes = readLengthDelimited(buffer, wireType);
+        byte[] address = new byte[bytes.remaining()];
+        bytes.get(address);
+        // getByAddress only formats the raw bytes, it never performs a lookup
+        return InetAddress.getByAddress(address).getHostAddress();
+    }
+
+    private static long readVarint(ByteBuffer buffer, int wireType) throws IOException {
+        if (wireType != WIRE_VARINT) {
+            throw new IOException("Unexpected wire type " + wireType + " for a varint field");
+        }
+        return readVarint(buffer);
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static ByteBuffer readLengthDelimited(ByteBuffer buffer, int wireType) throws IOException {
+        if (wireType != WIRE_LENGTH_DELIMITED) {
+            throw new IOException("Unexpected wire type " + wireType + " for a length-delimited field");
+        }
+        return readLengthDelimited(buffer);
+    }
+
+    private static ByteBuffer readLengthDelimited(ByteBuffer buffer) throws IOException {
+        long length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Invalid field length: " + length);
+        }
+        ByteBuffer field = buffer.slice();
+        field.limit((int) length);
+        buffer.position(buffer.position() + (int) length);
+        return field;
+    }
+
+    private static void skipField(ByteBuffer buffer, int wireType) throws IOException {
+        switch (wireType) {
+            case WIRE_VARINT -> readVarint(buffer);
+            case WIRE_FIXED64 -> skip(buffer, 8);
+            case WIRE_LENGTH_DELIMITED -> readLengthDelimited(buffer);
+            case WIRE_FIXED32 -> skip(buffer, 4);
+            default -> throw new IOException("Unsupported wire type " + wireType);
+        }
+    }
+
+    private static void skip(ByteBuffer buffer, int bytes) {
+        if (bytes > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + bytes);
+    }
+
+    /**
+     * Receives the records of a datagram decoded by {@link InPlaceDecoder}. The view is reused,
+     * so it is only valid for the duration of the call.
+     */
+    interface RecordConsumer {
+        void accept(RecordView record);
+    }
+
+    /**
+     * Same formats as {@link #parseBinaryMessage}, but read with absolute gets straight from the
+     * receive buffer. Field offsets go into the view and strings are only decoded if the consumer
+     * asks for them.
+     */
+    static final class InPlaceDecoder {
+
+        private final RecordView view = new RecordView();
+        private ByteBuffer buffer;
+        private int position;
+        private int limit;
+        private boolean malformed;
+
+        /**
+         * Returns the number of records, or -1 if the datagram is malformed. Records decoded before
+         * the error have already been passed to the consumer.
+         */
+        int decode(ByteBuffer datagram, RecordConsumer consumer) {
+            buffer = datagram;
+            position = datagram.position();
+            limit = datagram.limit();
+            malformed = false;
+            view.buffer = datagram;
+            if (position == limit) {
+                return -1;
+            }
+
+            int version = datagram.get(position) & 0xFF;
+            if (version == 0) {
+                return legacyRecord(consumer) ? 1 : -1;
+            }
+            position++;
+            if (version == PROTOBUF_FRAME_VERSION) {
+                return presenceBatch(consumer);
+            }
+            if (version != FRAME_VERSION || limit - position < 2) {
+                return -1;
+            }
+
+            int count = datagram.getShort(position) & 0xFFFF;
+            position += 2;
+            for (int i = 0; i < count; i++) {
+                if (!legacyRecord(consumer)) {
+                    return -1;
+                }
+            }
+            return count;
+        }
+
+        private boolean legacyRecord(RecordConsumer consumer) {
+            view.clear();
+            int emailLength = lengthPrefix();
+            if (emailLength < 0) {
+                return false;
+            }
+            view.emailOffset = position;
+            view.emailLength = emailLength;
+            position += emailLength;
+
+            if (limit - position < 8) {
+                return false;
+            }
+            view.lastSeen = buffer.getLong(position);
+            position += 8;
+
+            int ipLength = lengthPrefix();
+            if (ipLength < 0) {
+                return false;
+            }
+            view.ipOffset = position;
+            view.ipLength = ipLength;
+            position += ipLength;
+
+            if (limit - position < 4) {
+                return false;
+            }
+            view.port = buffer.getInt(position);
+            position += 4;
+
+            consumer.accept(view);
+            return true;
+        }
+
+        private int lengthPrefix() {
+            if (limit - position < 4) {
+                return -1;
+            }
+            int length = buffer.getInt(position);
+            position += 4;
+            return length <= limit - position ? length : -1;
+        }
+
+        private int presenceBatch(RecordConsumer consumer) {
+            int records = 0;
+            while (position < limit) {
+                long tag = varint();
+                if (malformed) {
+                    return -1;
+                }
+                if (tag == ((1 << 3) | WIRE_LENGTH_DELIMITED)) {
+                    int length = length();
+                    if (malformed || !presenceUpdate(position + length)) {
+                        return -1;
+                    }
+                    consumer.accept(view);
+                    records++;
+                } else if (!skipField((int) tag & 7)) {
+                    return -1;
+                }
+            }
+            return records;
+        }
+
+        private boolean presenceUpdate(int end) {
+            int batchLimit = limit;
+            limit = end;
+            view.clear();
+            while (position < limit && !malformed) {
+                long tag = varint();
+                int wireType = (int) tag & 7;
+                int field = (int) (tag >>> 3);
+                if (malformed) {
+                    break;
+                }
+                // Known fields with an unexpected wire type are skipped like unknown ones
+                if ((field == 2 || field == 4 || field == 6) && wireType == WIRE_VARINT) {
+                    long value = varint();
+                    if (field == 2) {
+                        view.lastSeen = value;
+                    } else if (field == 4) {
+                        view.port = (int) value;
+                    } else {
+                        view.offline = value != 0;
+                    }
+                } else if (field == 1 || field == 3 || field == 5) {
+                    int length = wireType == WIRE_LENGTH_DELIMITED ? length() : -1;
+                    if (length < 0 || field == 3 && length != 4 && length != 16) {
+                        malformed = true;
+                        break;
+                    }
+                    if (field == 1) {
+                        view.emailOffset = position;
+                        view.emailLength = length;
+                    } else {
+                        view.ipOffset = position;
+                        view.ipLength = length;
+                        view.rawIp = field == 3;
+                    }
+                    position += length;
+                } else if (!skipField(wireType)) {
+                    malformed = true;
+                }
+            }
+            limit = batchLimit;
+            return !malformed;
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64 && position < limit; shift += 7) {
+                byte b = buffer.get(position++);
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            malformed = true;
+            return 0;
+        }
+
+        private int length() {
+            long length = varint();
+            if (malformed || length < 0 || length > limit - position) {
+                malformed = true;
+                return -1;
+            }
+            return (int) length;
+        }
+
+        private boolean skipField(int wireType) {
+            int bytes = switch (wireType) {
+                case WIRE_VARINT -> {
+                    varint();
+                    yield 0;
+                }
+                case WIRE_FIXED64 -> 8;
+                case WIRE_LENGTH_DELIMITED -> length();
+                case WIRE_FIXED32 -> 4;
+                default -> -1;
+            };
+            if (malformed || bytes < 0 || bytes > limit - position) {
+                return false;
+            }
+            position += bytes;
+            return true;
+        }
+    }
+
+    /**
+     * One record inside the receive buffer. The numeric fields are decoded eagerly, the email and
+     * address allocate a String only when requested.
+     */
+    static final class RecordView {
+
+        private ByteBuffer buffer;
+        private int emailOffset;
+        private int emailLength;
+        private int ipOffset;
+        private int ipLength;
+        private boolean rawIp;
+        private long lastSeen;
+        private int port;
+        private boolean offline;
+
+        private void clear() {
+            emailLength = 0;
+            ipLength = 0;
+            rawIp = false;
+            lastSeen = 0;
+            port = 0;
+            offline = false;
+        }
+
+        long lastSeen() {
+            return lastSeen;
+        }
+
+        int port() {
+            return port;
+        }
+
+        // Same rule as PresenceRecord.offline(), plus the protobuf offline field
+        boolean offline() {
+            return offline || ipLength == 0 && port == 0;
+        }
+
+        String email() {
+            return new String(bytes(emailOffset, emailLength), StandardCharsets.UTF_8);
+        }
+
+        String ip() {
+            byte[] ip = bytes(ipOffset, ipLength);
+            if (!rawIp) {
+                return new String(ip, StandardCharsets.UTF_8);
+            }
+            try {
+                return InetAddress.getByAddress(ip).getHostAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        PresenceRecord toRecord() {
+            return new PresenceRecord(email(), lastSeen, ip(), port);
+        }
+
+        private byte[] bytes(int offset, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(offset, bytes);
+            return bytes;
+        }
+    }
+
+    /**
+     * Written only by the receive loop and read by the reporter, so plain volatile increments suffice.
+     */
+    private static final class ReceiveCounters {
+        volatile long received;
+        volatile long records;
+        volatile long malformed;
+    }
+
+    /**
+     * The newest record per email. The receive loop updates it while query threads read it.
+     * It is checkpointed to a memory-mapped snapshot so a restarted listener can answer queries
+     * before clients heartbeat again:
+     * [magic:4][version:1][count:4] then per record [lastSeen:8][port:4][email_length:2][email][ip_length:1][ip],
+     * followed by a CRC32 of everything before it.
+     */
+    static final class PresenceTable implements RecordConsumer {
+
+        private static final int SNAPSHOT_MAGIC = 0x50524553; // "PRES"
+        private static final int SNAPSHOT_VERSION = 1;
+        private static final int SNAPSHOT_HEADER_SIZE = 9;
+
+        // Datagrams arrive out of order, so a record only replaces one with an older lastSeen. An offline
+        // announcement carries the lastSeen of the user's last heartbeat, so it also replaces that one
+        private static final BinaryOperator<PresenceRecord> NEWER = (stored, update) ->
+                update.lastSeen() > stored.lastSeen()
+                        || update.offline() && update.lastSeen() == stored.lastSeen() ? update : stored;
+
+        private final ConcurrentHashMap<String, PresenceRecord> records = new ConcurrentHashMap<>();
+        private volatile boolean dirty;
+
+        @Override
+        public void accept(RecordView view) {
+            PresenceRecord record = view.toRecord();
+            if (records.merge(record.email(), record, NEWER) == record) {
+                dirty = true;
+            }
+        }
+
+        PresenceRecord get(String email) {
+            return records.get(email);
+        }
+
+        int size() {
+            return records.size();
+        }
+
+        /**
+         * Writes the table to a temporary file and renames it over the snapshot, so a crash never
+         * leaves a partial snapshot behind. Returns the number of records, or -1 if nothing changed
+         * since the last snapshot.
+         */
+        synchronized int writeSnapshot(Path path) throws IOException {
+            if (!dirty) {
+                return -1;
+            }
+            dirty = false;
+
+            List<PresenceRecord> snapshot = new ArrayList<>(records.values());
+            byte[][] emails = new byte[snapshot.size()][];
+            byte[][] ips = new byte[snapshot.size()][];
+            int count = 0;
+            long size = SNAPSHOT_HEADER_SIZE + 4;
+            for (int i = 0; i < snapshot.size(); i++) {
+                byte[] email = snapshot.get(i).email().getBytes(StandardCharsets.UTF_8);
+                byte[] ip = snapshot.get(i).ip().getBytes(StandardCharsets.UTF_8);
+                // Nothing the server sends is this long
+                if (email.length <= 0xFFFF && ip.length <= 0xFF) {
+                    emails[i] = email;
+                    ips[i] = ip;
+                    size += 8 + 4 + 2 + email.length + 1 + ip.length;
+                    count++;
+                }
+            }
+
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                map.putInt(SNAPSHOT_MAGIC).put((byte) SNAPSHOT_VERSION).putInt(count);
+                for (int i = 0; i < snapshot.size(); i++) {
+                    if (emails[i] == null) {
+                        continue;
+                    }
+                    map.putLong(snapshot.get(i).lastSeen()).putInt(snapshot.get(i).port());
+                    map.putShort((short) emails[i].length).put(emails[i]);
+                    map.put((byte) ips[i].length).put(ips[i]);
+                }
+                CRC32 crc = new CRC32();
+                crc.update(map.duplicate().flip());
+                map.putInt((int) crc.getValue());
+                map.force();
+            } catch (IOException e) {
+                dirty = true;
+                throw e;
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        }
+
+        int loadSnapshot(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < SNAPSHOT_HEADER_SIZE + 4 || size > Integer.MAX_VALUE) {
+                    throw new IOException("Unexpected size " + size);
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                CRC32 crc = new CRC32();
+                crc.update(map.duplicate().limit((int) size - 4));
+                if ((int) crc.getValue() != map.getInt((int) size - 4)) {
+                    throw new IOException("Checksum mismatch");
+                }
+                if (map.getInt() != SNAPSHOT_MAGIC || map.get() != SNAPSHOT_VERSION) {
+                    throw new IOException("Not a presence table snapshot");
+                }
+
+                int count = map.getInt();
+                for (int i = 0; i < count; i++) {
+                    long lastSeen = map.getLong();
+                    int port = map.getInt();
+                    String email = readString(map, map.getShort() & 0xFFFF);
+                    String ip = readString(map, map.get() & 0xFF);
+                    records.merge(email, new PresenceRecord(email, lastSeen, ip, port), NEWER);
+                }
+                return count;
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated snapshot");
+            }
+        }
+
+        private static String readString(ByteBuffer buffer, int length) {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * GET /presence?email=... returns one record (404 if unknown), GET /presence returns all of them.
+         */
+        void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    send(exchange, 405, "{\"error\":\"Only GET is supported\"}");
+                    return;
+                }
+
+                String email = queryParameter(exchange.getRequestURI().getRawQuery(), "email");
+                if (email != null) {
+                    PresenceRecord record = records.get(email);
+                    if (record == null) {
+                        send(exchange, 404, "{\"error\":\"Unknown email\"}");
+                    } else {
+                        send(exchange, 200, appendJson(new StringBuilder(), record).toString());
+                    }
+                    return;
+                }
+
+                StringBuilder json = new StringBuilder("{\"users\":[");
+                int count = 0;
+                for (PresenceRecord record : records.values()) {
+                    if (count++ > 0) {
+                        json.append(',');
+                    }
+                    appendJson(json, record);
+                }
+                send(exchange, 200, json.append("],\"count\":").append(count).append('}').toString());
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private static String queryParameter(String query, String name) {
+            if (query == null) {
+                return null;
+            }
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0 && parameter.substring(0, equals).equals(name)) {
+                    return URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+
+        private static StringBuilder appendJson(StringBuilder json, PresenceRecord record) {
+            json.append("{\"email\":");
+            appendString(json, record.email());
+            json.append(",\"lastSeen\":").append(record.lastSeen());
+            if (record.offline()) {
+                return json.append(",\"status\":\"offline\"}");
+            }
+            json.append(",\"ip\":");
+            appendString(json, record.ip());
+            return json.append(",\"port\":").append(record.port()).append(",\"status\":\"online\"}");
+        }
+
+        private static void appendString(StringBuilder json, String value) {
+            json.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                } else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                } else {
+                    json.append(c);
+                }
+            }
+            json.append('"');
+        }
+
+        private static void send(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    record PresenceRecord(String email, long lastSeen, String ip, int port) {
+
+        // Offline announcements carry no address (protobuf ones also set the offline field)
+        boolean offline() {
+            return ip.isEmpty() && port == 0;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,53 @@
+#!/bin/bash
+
+# Mints client certificates for load testing, signed by the CA in certs/
+# Usage: ./scripts/generate-identities.sh [count] [email-prefix]
+# Produces certs/load/identities.p12 with one key entry per identity (CN=<prefix><n>@example.com)
+
+COUNT="${1:-100}"
+PREFIX="${2:-loaduser}"
+CERTS_DIR="./certs"
+LOAD_DIR="$CERTS_DIR/load"
+WORK_DIR="$LOAD_DIR/work"
+STORE="$LOAD_DIR/identities.p12"
+PASSWORD="changeit"
+
+if [ ! -f "$CERTS_DIR/ca-cert.pem" ] || [ ! -f "$CERTS_DIR/ca-key.pem" ]; then
+  echo "CA not found in $CERTS_DIR, run ./scripts/generate.sh first"
+  exit 1
+fi
+
+set -e
+mkdir -p "$WORK_DIR"
+rm -f "$STORE"
+
+echo "=== Generating $COUNT client identities ==="
+for i in $(seq 1 "$COUNT"); do
+  EMAIL="$PREFIX$i@example.com"
+
+  # EC keys keep minting and handshakes cheap compared to the 4096-bit RSA test identity
+  openssl ecparam -name prime256v1 -genkey -noout -out "$WORK_DIR/key.pem"
+  openssl req -new -key "$WORK_DIR/key.pem" -out "$WORK_DIR/client.csr" \
+    -subj "/C=US/ST=State/L=City/O=MyOrg/OU=Load/CN=$EMAIL"
+  openssl x509 -req -days 365 -in "$WORK_DIR/client.csr" \
+    -CA "$CERTS_DIR/ca-cert.pem" -CAkey "$CERTS_DIR/ca-key.pem" -CAcreateserial \
+    -out "$WORK_DIR/cert.pem" 2>/dev/null
+  openssl pkcs12 -export -in "$WORK_DIR/cert.pem" -inkey "$WORK_DIR/key.pem" \
+    -out "$WORK_DIR/identity.p12" -name "$EMAIL" -passout pass:$PASSWORD
+
+  # Merge into one keystore so the load generator loads a single file
+  keytool -importkeystore -noprompt \
+    -srckeystore "$WORK_DIR/identity.p12" -srcstoretype PKCS12 -srcstorepass $PASSWORD \
+    -destkeystore "$STORE" -deststoretype PKCS12 -deststorepass $PASSWORD > /dev/null 2>&1
+
+  if [ $((i % 50)) -eq 0 ]; then
+    echo "  $i / $COUNT"
+  fi
+done
+
+rm -rf "$WORK_DIR"
+
+echo ""
+echo "=== Identity Generation Complete ==="
+echo "  - Keystore: $STORE ($COUNT identities, password '$PASSWORD')"
+echo "  - Run: cd client && java MtlsLoadGenerator.java (reads ../certs/load/identities.p12 by default)"
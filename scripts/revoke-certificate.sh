@@ -0,0 +1,47 @@
+#!/bin/bash
+
+# Revokes client certificates signed by the CA in certs/ and writes the CRL the server checks them against
+# Usage: ./scripts/revoke-certificate.sh [cert.pem ...]
+# Without arguments only re-issues certs/crl/crl.pem (e.g. before its next update passes)
+# Start the server with tls.revocation.crl-files=certs/crl/crl.pem; it picks up a re-issued CRL while running
+
+CERTS_DIR="./certs"
+CRL_DIR="$CERTS_DIR/crl"
+CRL_DAYS="${CRL_DAYS:-30}"
+
+if [ ! -f "$CERTS_DIR/ca-cert.pem" ] || [ ! -f "$CERTS_DIR/ca-key.pem" ]; then
+  echo "CA not found in $CERTS_DIR, run ./scripts/generate.sh first"
+  exit 1
+fi
+
+set -e
+mkdir -p "$CRL_DIR"
+touch "$CRL_DIR/index.txt"
+[ -f "$CRL_DIR/crlnumber" ] || echo 1000 > "$CRL_DIR/crlnumber"
+
+# Minimal 'openssl ca' database; the certificates themselves were issued with 'openssl x509 -req'
+cat > "$CRL_DIR/openssl.cnf" <<CNF
+[ ca ]
+default_ca = crl_ca
+
+[ crl_ca ]
+database = $CRL_DIR/index.txt
+crlnumber = $CRL_DIR/crlnumber
+certificate = $CERTS_DIR/ca-cert.pem
+private_key = $CERTS_DIR/ca-key.pem
+default_md = sha256
+default_crl_days = $CRL_DAYS
+CNF
+
+for CERT in "$@"; do
+  echo "=== Revoking $(openssl x509 -in "$CERT" -noout -subject -serial | tr '\n' ' ') ==="
+  openssl ca -config "$CRL_DIR/openssl.cnf" -revoke "$CERT" 2>&1 | grep -v "^Using configuration"
+done
+
+# Write to a temporary file and rename, so the server never reads a half-written CRL
+openssl ca -config "$CRL_DIR/openssl.cnf" -gencrl -out "$CRL_DIR/crl.pem.tmp" 2>/dev/null
+mv "$CRL_DIR/crl.pem.tmp" "$CRL_DIR/crl.pem"
+
+echo ""
+echo "=== CRL Updated ==="
+echo "  - CRL: $CRL_DIR/crl.pem ($(grep -c '^R' "$CRL_DIR/index.txt" || true) revoked, next update in $CRL_DAYS days)"
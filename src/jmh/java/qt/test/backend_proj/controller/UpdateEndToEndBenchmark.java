@@ -0,0 +1,171 @@
+package qt.test.backend_proj.controller;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.model.User;
+import qt.test.backend_proj.proto.PresenceUpdate;
+import qt.test.backend_proj.repository.UserRepository;
+import qt.test.backend_proj.service.CertificateRevocationService;
+import qt.test.backend_proj.service.ClientCertificateResolver;
+import qt.test.backend_proj.service.DatabasePresenceStore;
+import qt.test.backend_proj.service.HeartbeatGovernor;
+import qt.test.backend_proj.service.IdentityCache;
+import qt.test.backend_proj.service.PresenceExpiryService;
+import qt.test.backend_proj.service.PresenceFeed;
+import qt.test.backend_proj.service.PresenceIndex;
+import qt.test.backend_proj.service.PresenceMetrics;
+import qt.test.backend_proj.service.PresenceReplicationService;
+import qt.test.backend_proj.service.PresenceService;
+import qt.test.backend_proj.service.PresenceWriteBehindBuffer;
+import qt.test.backend_proj.service.UdpBroadcastService;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The whole update request path below the servlet container: certificate resolution, identity cache,
+ * presence write, UDP broadcast and the per-stage metrics. The repository is an in-memory stand-in, so the numbers exclude
+ * the database round trip. Uses the test client certificate from certs/, so run from the project root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateEndToEndBenchmark {
+
+	@Param({"legacy", "framed", "protobuf"})
+	public String format;
+
+	private DatagramSocket receiver;
+	private UdpBroadcastService udpBroadcastService;
+	private PresenceFeed presenceFeed;
+	private PresenceExpiryService presenceExpiryService;
+	private UserController controller;
+	private MockHttpServletRequest request;
+
+	@Setup
+	public void setUp() throws Exception {
+		X509Certificate certificate;
+		try (InputStream in = new FileInputStream("certs/client-cert.pem")) {
+			certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+		}
+
+		MeterRegistry registry = new SimpleMeterRegistry();
+		ClientCertificateResolver resolver = new ClientCertificateResolver(registry,
+				new CertificateRevocationService(registry));
+		ReflectionTestUtils.setField(resolver, "maxSize", 1000L);
+		ReflectionTestUtils.setField(resolver, "expireAfterAccessSeconds", 3600L);
+		resolver.init();
+		String email = resolver.resolveEmail(certificate);
+
+		UserRepository userRepository = inMemoryRepository(new User(UUID.randomUUID(), email, null, null, null));
+
+		IdentityCache identityCache = new IdentityCache(userRepository, registry);
+		ReflectionTestUtils.setField(identityCache, "maxSize", 1000L);
+		ReflectionTestUtils.setField(identityCache, "ttlSeconds", 3600L);
+		ReflectionTestUtils.setField(identityCache, "negativeMaxSize", 1000L);
+		ReflectionTestUtils.setField(identityCache, "negativeTtlSeconds", 5L);
+		identityCache.init();
+
+		// Never read: once its receive buffer is full the kernel drops the datagrams, like an absent listener
+		receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		udpBroadcastService = new UdpBroadcastService(registry);
+		ReflectionTestUtils.setField(udpBroadcastService, "mode", "sync");
+		ReflectionTestUtils.setField(udpBroadcastService, "broadcastAddress", "127.0.0.1");
+		ReflectionTestUtils.setField(udpBroadcastService, "broadcastDestPort", receiver.getLocalPort());
+		ReflectionTestUtils.setField(udpBroadcastService, "broadcastSourcePort", 0);
+		ReflectionTestUtils.setField(udpBroadcastService, "format", format);
+		ReflectionTestUtils.setField(udpBroadcastService, "maxFrameBytes", 1400);
+		udpBroadcastService.init();
+
+		// Write-behind stays disabled, so every update goes through UserRepository.touch
+		PresenceWriteBehindBuffer writeBehindBuffer = new PresenceWriteBehindBuffer(null, registry);
+		DatabasePresenceStore presenceStore = new DatabasePresenceStore(userRepository, writeBehindBuffer, null);
+		PresenceMetrics presenceMetrics = new PresenceMetrics(registry);
+		presenceMetrics.init();
+		// Not initialized, so nothing is loaded from the database, but heartbeats are still indexed
+		PresenceIndex presenceIndex = new PresenceIndex(null, presenceStore, registry);
+		ReflectionTestUtils.setField(presenceIndex, "enabled", true);
+		// No subscribers, so this measures sequencing and serializing each update into the ring buffer
+		presenceFeed = new PresenceFeed(new JsonMapper(), registry);
+		ReflectionTestUtils.setField(presenceFeed, "bufferSize", 65536);
+		ReflectionTestUtils.setField(presenceFeed, "maxSubscribers", 0);
+		ReflectionTestUtils.setField(presenceFeed, "dispatcherThreads", 1);
+		ReflectionTestUtils.setField(presenceFeed, "maxBatch", 1000);
+		ReflectionTestUtils.setField(presenceFeed, "keepaliveSeconds", 15L);
+		presenceFeed.init();
+		presenceExpiryService = new PresenceExpiryService(udpBroadcastService, presenceFeed, registry);
+		ReflectionTestUtils.setField(presenceExpiryService, "enabled", true);
+		ReflectionTestUtils.setField(presenceExpiryService, "ttlSeconds", 60L);
+		ReflectionTestUtils.setField(presenceExpiryService, "tickMs", 100L);
+		presenceExpiryService.init();
+		// Cluster mode stays disabled
+		PresenceReplicationService replicationService = new PresenceReplicationService(presenceIndex,
+				presenceExpiryService, presenceFeed, identityCache, registry);
+		// Governor not initialized, so it stays disabled and every request takes the full path
+		HeartbeatGovernor heartbeatGovernor = new HeartbeatGovernor(registry);
+		PresenceService presenceService = new PresenceService(heartbeatGovernor, presenceStore, udpBroadcastService,
+				identityCache, presenceMetrics, presenceIndex, presenceFeed, presenceExpiryService, replicationService);
+		ReflectionTestUtils.setField(presenceService, "lockStripes", 4096);
+		presenceService.init();
+		controller = new UserController(userRepository, identityCache, presenceService, resolver, presenceMetrics,
+				null, replicationService);
+
+		request = new MockHttpServletRequest("PATCH", "/api/update");
+		request.setAttribute("jakarta.servlet.request.X509Certificate", new X509Certificate[] {certificate});
+		request.setRemoteAddr("10.0.0.1");
+		request.setRemotePort(50000);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		udpBroadcastService.cleanup();
+		presenceExpiryService.shutdown();
+		presenceFeed.shutdown();
+		receiver.close();
+	}
+
+	@Benchmark
+	public ResponseEntity<PresenceUpdate> update() {
+		return controller.updateUser(request);
+	}
+
+	private static UserRepository inMemoryRepository(User user) {
+		return (UserRepository) Proxy.newProxyInstance(UserRepository.class.getClassLoader(),
+				new Class<?>[] {UserRepository.class}, (proxy, method, args) -> switch (method.getName()) {
+					case "findByEmail" -> user.getEmail().equals(args[0]) ? Optional.of(user) : Optional.empty();
+					case "touch" -> user.getEmail().equals(args[0]) ? 1 : 0;
+					case "insertIfAbsent" -> 0;
+					case "hashCode" -> System.identityHashCode(proxy);
+					case "equals" -> proxy == args[0];
+					case "toString" -> "InMemoryUserRepository";
+					default -> throw new UnsupportedOperationException(method.getName());
+				});
+	}
+}
@@ -0,0 +1,112 @@
+package qt.test.backend_proj.listener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Datagram decoding in client/UdpBroadcastListener, which lives in the default package
+ * and is therefore reached through a method handle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerParseBenchmark {
+
+	private static final int FRAME_RECORDS = 16;
+
+	private MethodHandle parseBinaryMessage;
+	private MethodHandle decodeInPlace;
+	private Object decoder;
+	private Object discard;
+	private byte[] legacy;
+	private byte[] framed;
+	private ByteBuffer framedDirect;
+
+	@Setup
+	public void setUp() throws Throwable {
+		Class<?> listener = Class.forName("UdpBroadcastListener");
+		parseBinaryMessage = MethodHandles.privateLookupIn(listener, MethodHandles.lookup())
+				.findStatic(listener, "parseBinaryMessage", MethodType.methodType(List.class, byte[].class, int.class));
+
+		// The --fast path: InPlaceDecoder.decode(ByteBuffer, RecordConsumer) with the consumer that ignores records
+		Class<?> decoderClass = Class.forName("UdpBroadcastListener$InPlaceDecoder");
+		Class<?> consumerClass = Class.forName("UdpBroadcastListener$RecordConsumer");
+		MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(decoderClass, MethodHandles.lookup());
+		decodeInPlace = lookup.findVirtual(decoderClass, "decode", MethodType.methodType(int.class, ByteBuffer.class, consumerClass))
+				.asType(MethodType.methodType(int.class, Object.class, ByteBuffer.class, Object.class));
+		Constructor<?> constructor = decoderClass.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		decoder = constructor.newInstance();
+		discard = MethodHandles.privateLookupIn(listener, MethodHandles.lookup())
+				.findStaticGetter(listener, "IGNORE", consumerClass).invoke();
+
+		legacy = record(0);
+
+		// [version:1][record_count:2][record]...
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(frame);
+		dos.writeByte(1);
+		dos.writeShort(FRAME_RECORDS);
+		for (int i = 0; i < FRAME_RECORDS; i++) {
+			dos.write(record(i));
+		}
+		framed = frame.toByteArray();
+		framedDirect = ByteBuffer.allocateDirect(framed.length).put(framed);
+	}
+
+	@Benchmark
+	public Object parseLegacy() throws Throwable {
+		return (List<?>) parseBinaryMessage.invokeExact(legacy, legacy.length);
+	}
+
+	@Benchmark
+	public Object parseFrame() throws Throwable {
+		return (List<?>) parseBinaryMessage.invokeExact(framed, framed.length);
+	}
+
+	@Benchmark
+	public int parseFrameInPlace() throws Throwable {
+		framedDirect.clear();
+		return (int) decodeInPlace.invokeExact(decoder, framedDirect, discard);
+	}
+
+	/**
+	 * [email_length:4][email][lastSeen:8][ip_length:4][ip][port:4], as sent by UdpBroadcastService.
+	 */
+	private static byte[] record(int i) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		byte[] email = ("user" + i + "@example.com").getBytes(StandardCharsets.UTF_8);
+		byte[] ip = ("192.168.1." + i).getBytes(StandardCharsets.UTF_8);
+		dos.writeInt(email.length);
+		dos.write(email);
+		dos.writeLong(1_760_000_000_123_456_789L + i);
+		dos.writeInt(ip.length);
+		dos.write(ip);
+		dos.writeInt(50_000 + i);
+		return baos.toByteArray();
+	}
+}
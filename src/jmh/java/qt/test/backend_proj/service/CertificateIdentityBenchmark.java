@@ -0,0 +1,67 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.util.EmailValidator;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identity resolution from the client certificate, run on every update request.
+ * Uses the test client certificate from certs/, so run from the project root.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CertificateIdentityBenchmark {
+
+	private X509Certificate certificate;
+	private ClientCertificateResolver resolver;
+	private String email;
+
+	@Setup
+	public void setUp() throws Exception {
+		try (InputStream in = new FileInputStream("certs/client-cert.pem")) {
+			certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+		}
+		email = ClientCertificateResolver.extractCommonName(certificate);
+
+		resolver = new ClientCertificateResolver(new SimpleMeterRegistry(),
+				new CertificateRevocationService(new SimpleMeterRegistry()));
+		ReflectionTestUtils.setField(resolver, "maxSize", 1000L);
+		ReflectionTestUtils.setField(resolver, "expireAfterAccessSeconds", 3600L);
+		resolver.init();
+	}
+
+	@Benchmark
+	public String extractCommonName() {
+		return ClientCertificateResolver.extractCommonName(certificate);
+	}
+
+	@Benchmark
+	public boolean validateEmail() {
+		return EmailValidator.isValid(email);
+	}
+
+	@Benchmark
+	public String resolveEmailCached() {
+		return resolver.resolveEmail(certificate);
+	}
+}
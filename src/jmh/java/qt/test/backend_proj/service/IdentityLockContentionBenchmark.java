@@ -0,0 +1,78 @@
+package qt.test.backend_proj.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import qt.test.backend_proj.util.StripedLocks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cost of the per-identity lock PresenceService holds while persisting and publishing a heartbeat, with many
+ * threads hitting a few hot identities. {@code stripes=1} is a global lock, {@code stripes=0} takes no lock
+ * at all (the unsafe baseline), and {@code work} stands in for the persist and broadcast done under the lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class IdentityLockContentionBenchmark {
+
+	@Param({"0", "1", "4096"})
+	private int stripes;
+
+	@Param({"1", "16", "100000"})
+	private int identities;
+
+	@Param({"200"})
+	private long work;
+
+	private StripedLocks locks;
+	private long[] stripeClocks;
+	private String[] emails;
+
+	@Setup
+	public void setUp() {
+		locks = new StripedLocks(Math.max(stripes, 1));
+		stripeClocks = new long[locks.size()];
+		emails = new String[identities];
+		for (int i = 0; i < identities; i++) {
+			emails[i] = "user" + i + "@example.com";
+		}
+	}
+
+	@Benchmark
+	public long heartbeat() {
+		String email = emails[ThreadLocalRandom.current().nextInt(emails.length)];
+		if (stripes == 0) {
+			Blackhole.consumeCPU(work);
+			return System.currentTimeMillis();
+		}
+		int stripe = locks.stripe(email);
+		ReentrantLock lock = locks.lock(stripe);
+		lock.lock();
+		try {
+			long now = Math.max(System.currentTimeMillis(), stripeClocks[stripe] + 1);
+			stripeClocks[stripe] = now;
+			Blackhole.consumeCPU(work);
+			return now;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
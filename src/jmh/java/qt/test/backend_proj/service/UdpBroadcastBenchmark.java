@@ -0,0 +1,46 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import qt.test.backend_proj.proto.PresenceUpdate;
+import qt.test.backend_proj.util.PresenceMessages;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding cost of one presence broadcast, paid on every successful update.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UdpBroadcastBenchmark {
+
+	private final UdpBroadcastService service = new UdpBroadcastService(new SimpleMeterRegistry());
+
+	private String email = "user@example.com";
+	private long lastSeen = 1_760_000_000_123_456_789L;
+	private String ip = "192.168.1.42";
+	private int port = 54321;
+
+	@Benchmark
+	public byte[] createBinaryMessage() throws IOException {
+		return service.createBinaryMessage(email, lastSeen, ip, port);
+	}
+
+	@Benchmark
+	public PresenceUpdate protobufPresenceUpdate() {
+		return PresenceMessages.presenceUpdate(email, lastSeen, ip, port);
+	}
+}
@@ -0,0 +1,15 @@
+package qt.test.backend_proj.Dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * One line of the bulk registration response, for the input line with the same number.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public record BulkRegistrationResult(long line, String email, String result, String error) {
+
+    public static final String CREATED = "created";
+    public static final String CONFLICT = "conflict";
+    public static final String INVALID = "invalid";
+    public static final String FAILED = "failed";
+}
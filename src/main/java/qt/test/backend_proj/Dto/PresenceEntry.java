@@ -0,0 +1,9 @@
+package qt.test.backend_proj.Dto;
+
+/**
+ * Last recorded presence of a user.
+ *
+ * @param lastSeen nanoseconds since the Unix epoch
+ */
+public record PresenceEntry(String email, long lastSeen, String ip, int port) {
+}
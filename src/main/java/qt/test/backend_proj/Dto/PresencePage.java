@@ -0,0 +1,10 @@
+package qt.test.backend_proj.Dto;
+
+import java.util.List;
+
+/**
+ * One page of a presence query. Pass {@code nextCursor} back as {@code cursor} for the next page;
+ * it is null on the last page.
+ */
+public record PresencePage(List<PresenceEntry> users, String nextCursor) {
+}
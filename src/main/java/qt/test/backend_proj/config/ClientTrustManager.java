@@ -0,0 +1,111 @@
+package qt.test.backend_proj.config;
+
+import qt.test.backend_proj.service.CertificateRevocationService;
+import qt.test.backend_proj.service.TlsHandshakeMetrics;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Trust manager for client certificates that delegates verification to the truststore, fails the handshake of
+ * certificates revoked by {@link CertificateRevocationService}, and reports every successfully verified handshake,
+ * i.e. every full handshake, to {@link TlsHandshakeMetrics}.
+ */
+public class ClientTrustManager extends X509ExtendedTrustManager {
+
+    private final X509ExtendedTrustManager delegate;
+    private final TlsHandshakeMetrics tlsHandshakeMetrics;
+    private final CertificateRevocationService certificateRevocationService;
+
+    public ClientTrustManager(X509ExtendedTrustManager delegate, TlsHandshakeMetrics tlsHandshakeMetrics,
+                              CertificateRevocationService certificateRevocationService) {
+        this.delegate = delegate;
+        this.tlsHandshakeMetrics = tlsHandshakeMetrics;
+        this.certificateRevocationService = certificateRevocationService;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        delegate.checkClientTrusted(chain, authType, socket);
+        checkNotRevoked(chain);
+        if (socket instanceof SSLSocket sslSocket) {
+            tlsHandshakeMetrics.recordClientVerification(sslSocket.getHandshakeSession());
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        delegate.checkClientTrusted(chain, authType, engine);
+        checkNotRevoked(chain);
+        if (engine != null) {
+            tlsHandshakeMetrics.recordClientVerification(engine.getHandshakeSession());
+        }
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        delegate.checkClientTrusted(chain, authType);
+        checkNotRevoked(chain);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        delegate.checkServerTrusted(chain, authType, socket);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        delegate.checkServerTrusted(chain, authType, engine);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        delegate.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return delegate.getAcceptedIssuers();
+    }
+
+    private void checkNotRevoked(X509Certificate[] chain) throws CertificateException {
+        // The chain has been verified, so chain[0] is the client certificate
+        if (certificateRevocationService.isRevoked(chain[0])) {
+            throw new CertificateException("Client certificate " + chain[0].getSerialNumber().toString(16)
+                    + " of " + chain[0].getIssuerX500Principal() + " has been revoked");
+        }
+    }
+
+    /**
+     * Variant for Tomcat, which instantiates trust managers by class name through a no-arg constructor
+     * ({@code SSLHostConfig.trustManagerClassName}). {@link #install} must be called before the connector starts.
+     */
+    public static class ForTomcat extends ClientTrustManager {
+
+        private static volatile X509ExtendedTrustManager installedDelegate;
+        private static volatile TlsHandshakeMetrics installedMetrics;
+        private static volatile CertificateRevocationService installedRevocation;
+
+        public ForTomcat() {
+            super(requireInstalled(), installedMetrics, installedRevocation);
+        }
+
+        public static void install(X509ExtendedTrustManager delegate, TlsHandshakeMetrics tlsHandshakeMetrics,
+                                   CertificateRevocationService certificateRevocationService) {
+            installedMetrics = tlsHandshakeMetrics;
+            installedRevocation = certificateRevocationService;
+            installedDelegate = delegate;
+        }
+
+        private static X509ExtendedTrustManager requireInstalled() {
+            if (installedDelegate == null) {
+                throw new IllegalStateException("ClientTrustManager.ForTomcat used before install()");
+            }
+            return installedDelegate;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package qt.test.backend_proj.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.protobuf.ProtobufHttpMessageConverter;
+
+/**
+ * Lets controllers read and write protobuf bodies as application/x-protobuf.
+ */
+@Configuration
+public class ProtobufConfig {
+
+    @Bean
+    public ProtobufHttpMessageConverter protobufHttpMessageConverter() {
+        return new ProtobufHttpMessageConverter();
+    }
+}
@@ -0,0 +1,60 @@
+package qt.test.backend_proj.config;
+
+import org.apache.coyote.UpgradeProtocol;
+import org.apache.coyote.http2.Http2Protocol;
+import org.apache.tomcat.util.net.SSLHostConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.tomcat.TomcatConnectorCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import qt.test.backend_proj.service.CertificateRevocationService;
+import qt.test.backend_proj.service.TlsHandshakeMetrics;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Applies the TLS session settings to the HTTPS connector and instruments its client certificate verification.
+ * With {@code server.http2.enabled}, clients negotiate HTTP/2 over ALPN on the same connector, so the client
+ * certificate is still required during the handshake and every stream on the connection shares it.
+ */
+@Configuration
+public class TlsConfig {
+
+    @Bean
+    public TomcatConnectorCustomizer tlsSessionCustomizer(TlsContextFactory tlsContextFactory,
+                                                          TlsHandshakeMetrics tlsHandshakeMetrics,
+                                                          CertificateRevocationService certificateRevocationService)
+            throws IOException, GeneralSecurityException {
+        ClientTrustManager.ForTomcat.install(tlsContextFactory.createTrustManager(), tlsHandshakeMetrics,
+                certificateRevocationService);
+
+        // Runs after Spring Boot has configured SSL on the connector from server.ssl.*
+        return connector -> {
+            for (SSLHostConfig sslHostConfig : connector.findSslHostConfigs()) {
+                sslHostConfig.setSessionCacheSize(tlsContextFactory.getSessionCacheSize());
+                sslHostConfig.setSessionTimeout(tlsContextFactory.getSessionTimeoutSeconds());
+                sslHostConfig.setTrustManagerClassName(ClientTrustManager.ForTomcat.class.getName());
+            }
+        };
+    }
+
+    /**
+     * Tomcat's HTTP/2 defaults (100 open streams, 20 of them executing) would make a client multiplexing all
+     * its heartbeats over one connection queue or open more connections.
+     */
+    @Bean
+    public TomcatConnectorCustomizer http2Customizer(
+            @Value("${server.http2.max-concurrent-streams:100}") long maxConcurrentStreams,
+            @Value("${server.http2.max-concurrent-stream-execution:20}") int maxConcurrentStreamExecution) {
+        // Runs after Spring Boot has added the HTTP/2 upgrade protocol for server.http2.enabled
+        return connector -> {
+            for (UpgradeProtocol upgradeProtocol : connector.findUpgradeProtocols()) {
+                if (upgradeProtocol instanceof Http2Protocol http2Protocol) {
+                    http2Protocol.setMaxConcurrentStreams(maxConcurrentStreams);
+                    http2Protocol.setMaxConcurrentStreamExecution(maxConcurrentStreamExecution);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,48 @@
+package qt.test.backend_proj.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import qt.test.backend_proj.service.TlsHandshakeMetrics;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Reports each new HTTPS connection to {@link TlsHandshakeMetrics}.
+ * Servlets never see the handshake itself, so a connection is recognised by the first request
+ * with a new (client address, client port, TLS session id) combination.
+ */
+@Component
+@RequiredArgsConstructor
+public class TlsConnectionFilter extends OncePerRequestFilter {
+
+    private static final String SESSION_ID_ATTRIBUTE = "jakarta.servlet.request.ssl_session_id";
+
+    private final TlsHandshakeMetrics tlsHandshakeMetrics;
+
+    // Outlives Tomcat's keep-alive timeout, so an idle connection is never counted twice
+    private final Cache<String, Boolean> knownConnections = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterAccess(Duration.ofMinutes(5))
+            .build();
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        Object sessionId = request.getAttribute(SESSION_ID_ATTRIBUTE);
+        if (sessionId != null) {
+            String connection = request.getRemoteAddr() + ':' + request.getRemotePort() + '/' + sessionId;
+            if (knownConnections.asMap().putIfAbsent(connection, Boolean.TRUE) == null) {
+                tlsHandshakeMetrics.recordConnection("https", sessionId.toString());
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+}
@@ -0,0 +1,144 @@
+package qt.test.backend_proj.config;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Component;
+import qt.test.backend_proj.service.CertificateRevocationService;
+import qt.test.backend_proj.service.TlsHandshakeMetrics;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+
+/**
+ * Builds server-side TLS contexts from the same keystore and truststore as the HTTPS connector ({@code server.ssl.*}),
+ * for listeners that live outside of Tomcat, and owns the TLS session settings shared by all listeners.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class TlsContextFactory {
+
+    private static final String SERVER_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+
+    private final ResourceLoader resourceLoader;
+    private final TlsHandshakeMetrics tlsHandshakeMetrics;
+    private final CertificateRevocationService certificateRevocationService;
+
+    @Value("${server.ssl.key-store}")
+    private String keyStoreLocation;
+
+    @Value("${server.ssl.key-store-password}")
+    private String keyStorePassword;
+
+    @Value("${server.ssl.key-store-type:PKCS12}")
+    private String keyStoreType;
+
+    @Value("${server.ssl.key-alias:}")
+    private String keyAlias;
+
+    @Value("${server.ssl.trust-store}")
+    private String trustStoreLocation;
+
+    @Value("${server.ssl.trust-store-password}")
+    private String trustStorePassword;
+
+    @Value("${server.ssl.trust-store-type:JKS}")
+    private String trustStoreType;
+
+    @Value("${tls.session.cache-size:20480}")
+    private int sessionCacheSize;
+
+    @Value("${tls.session.timeout-seconds:86400}")
+    private int sessionTimeoutSeconds;
+
+    @Value("${tls.session.tickets-enabled:true}")
+    private boolean ticketsEnabled;
+
+    @PostConstruct
+    public void init() {
+        // The JDK reads this once, when the first TLS context is created; an explicit -D flag wins
+        if (System.getProperty(SERVER_TICKETS_PROPERTY) == null) {
+            System.setProperty(SERVER_TICKETS_PROPERTY, Boolean.toString(ticketsEnabled));
+        }
+        log.info("TLS sessions: cache size {}, timeout {} s, session tickets {}",
+                sessionCacheSize, sessionTimeoutSeconds, System.getProperty(SERVER_TICKETS_PROPERTY));
+    }
+
+    public SSLContext createServerContext() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = load(keyStoreLocation, keyStoreType, keyStorePassword);
+        if (!keyAlias.isEmpty()) {
+            keyStore = onlyAlias(keyStore);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, keyStorePassword.toCharArray());
+
+        TrustManager[] trustManagers = {
+                new ClientTrustManager(createTrustManager(), tlsHandshakeMetrics, certificateRevocationService)};
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), trustManagers, null);
+
+        SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+        sessionContext.setSessionCacheSize(sessionCacheSize);
+        sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+        return sslContext;
+    }
+
+    /**
+     * Returns the default trust manager for the configured truststore.
+     */
+    public X509ExtendedTrustManager createTrustManager() throws IOException, GeneralSecurityException {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(load(trustStoreLocation, trustStoreType, trustStorePassword));
+        for (TrustManager trustManager : tmf.getTrustManagers()) {
+            if (trustManager instanceof X509ExtendedTrustManager x509TrustManager) {
+                return x509TrustManager;
+            }
+        }
+        throw new KeyStoreException("No X.509 trust manager for " + trustStoreLocation);
+    }
+
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    public int getSessionTimeoutSeconds() {
+        return sessionTimeoutSeconds;
+    }
+
+    private KeyStore load(String location, String type, String password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = resourceLoader.getResource(location).getInputStream()) {
+            keyStore.load(in, password.toCharArray());
+        }
+        return keyStore;
+    }
+
+    /**
+     * Copies just the configured key entry, so the key manager presents the same certificate as Tomcat.
+     */
+    private KeyStore onlyAlias(KeyStore keyStore) throws IOException, GeneralSecurityException {
+        KeyStore.ProtectionParameter protection = new KeyStore.PasswordProtection(keyStorePassword.toCharArray());
+        KeyStore.Entry entry = keyStore.getEntry(keyAlias, protection);
+        if (entry == null) {
+            throw new KeyStoreException("Key alias '" + keyAlias + "' not found in " + keyStoreLocation);
+        }
+
+        KeyStore single = KeyStore.getInstance(keyStoreType);
+        single.load(null, null);
+        single.setEntry(keyAlias, entry, protection);
+        return single;
+    }
+}
@@ -0,0 +1,102 @@
+package qt.test.backend_proj.controller;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import qt.test.backend_proj.Dto.PresencePage;
+import qt.test.backend_proj.service.PresenceFeed;
+import qt.test.backend_proj.service.PresenceIndex;
+
+import java.util.function.Supplier;
+
+@RestController
+@RequiredArgsConstructor
+@Tag(name = "Presence Queries", description = "Cursor-paginated queries over the latest presence of every user")
+public class PresenceQueryController {
+
+    private static final int MAX_LIMIT = 1000;
+
+    private final PresenceIndex presenceIndex;
+    private final PresenceFeed presenceFeed;
+
+    @GetMapping("/api/presence/recent")
+    @Operation(summary = "Most recently seen users", description = "Lists users by last seen time, newest first.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One page of users"),
+            @ApiResponse(responseCode = "400", description = "Invalid limit or cursor")
+    })
+    public ResponseEntity<PresencePage> recent(@RequestParam(defaultValue = "100") int limit,
+                                               @RequestParam(required = false) String cursor) {
+        return query(limit, () -> presenceIndex.seenSince(Long.MIN_VALUE, cursor, limit));
+    }
+
+    @GetMapping("/api/presence/since")
+    @Operation(summary = "Users seen since a time", description = "Lists users seen at or after the given time "
+            + "(nanoseconds since the Unix epoch, as in lastSeen), newest first.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One page of users"),
+            @ApiResponse(responseCode = "400", description = "Invalid limit or cursor")
+    })
+    public ResponseEntity<PresencePage> since(@RequestParam long since,
+                                              @RequestParam(defaultValue = "100") int limit,
+                                              @RequestParam(required = false) String cursor) {
+        return query(limit, () -> presenceIndex.seenSince(since, cursor, limit));
+    }
+
+    @GetMapping("/api/presence/address")
+    @Operation(summary = "Users by address", description = "Lists users whose last heartbeat came from the given IP, "
+            + "and port if given, ordered by port.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "One page of users"),
+            @ApiResponse(responseCode = "400", description = "Invalid limit, port or cursor")
+    })
+    public ResponseEntity<PresencePage> address(@RequestParam String ip,
+                                                @RequestParam(required = false) Integer port,
+                                                @RequestParam(defaultValue = "100") int limit,
+                                                @RequestParam(required = false) String cursor) {
+        if (port != null && (port < 0 || port > 0xFFFF)) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        return query(limit, () -> presenceIndex.atAddress(ip, port, cursor, limit));
+    }
+
+    @GetMapping(value = "/api/presence/feed", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @Operation(summary = "Live presence feed", description = "Server-Sent Events stream of every accepted update. "
+            + "Each event id is a sequence number; reconnect with Last-Event-ID (or since) to resume after it. "
+            + "A resync event means updates were missed and the client should re-read /api/presence/recent.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Event stream"),
+            @ApiResponse(responseCode = "400", description = "Invalid Last-Event-ID or since"),
+            @ApiResponse(responseCode = "503", description = "Too many subscribers")
+    })
+    public ResponseEntity<SseEmitter> feed(@RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId,
+                                           @RequestParam(required = false) Long since) {
+        SseEmitter emitter = presenceFeed.subscribe(lastEventId != null ? lastEventId : since);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        return ResponseEntity.ok(emitter);
+    }
+
+    private ResponseEntity<PresencePage> query(int limit, Supplier<PresencePage> query) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+        try {
+            return ResponseEntity.ok(query.get());
+        } catch (IllegalArgumentException e) {
+            // Malformed cursor
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+    }
+}
@@ -5,8 +5,10 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import io.swagger.v3.oas.annotations.responses.ApiResponses;
 import io.swagger.v3.oas.annotations.tags.Tag;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import jakarta.validation.Valid;
@@ -15,12 +17,23 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 import qt.test.backend_proj.Dto.RegisterRequest;
-import qt.test.backend_proj.model.User;
+import qt.test.backend_proj.proto.PresenceUpdate;
+import qt.test.backend_proj.proto.RegisterUserRequest;
 import qt.test.backend_proj.repository.UserRepository;
-import qt.test.backend_proj.service.UdpBroadcastService;
-
-import java.security.cert.X509Certificate;
-import java.util.regex.Pattern;
+import qt.test.backend_proj.service.BulkRegistrationService;
+import qt.test.backend_proj.service.ClientCertificateResolver;
+import qt.test.backend_proj.service.IdentityCache;
+import qt.test.backend_proj.service.PresenceMetrics;
+import qt.test.backend_proj.service.PresenceMetrics.Endpoint;
+import qt.test.backend_proj.service.PresenceMetrics.Stage;
+import qt.test.backend_proj.service.PresenceReplicationService;
+import qt.test.backend_proj.service.PresenceService;
+import qt.test.backend_proj.service.PresenceService.Heartbeat;
+import qt.test.backend_proj.util.EmailValidator;
+import qt.test.backend_proj.util.PresenceMessages;
+
+import java.io.IOException;
+import java.util.UUID;
 
 @RestController
 @RequiredArgsConstructor
@@ -28,13 +41,16 @@ import java.util.regex.Pattern;
 @Tag(name = "User Management", description = "APIs for managing user presence and updates")
 public class UserController {
 
-    private final UserRepository userRepository;
-    private final UdpBroadcastService udpBroadcastService;
+    private static final String PROTOBUF_MEDIA_TYPE = "application/x-protobuf";
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
 
-    // Email validation pattern
-    private static final Pattern EMAIL_PATTERN = Pattern.compile(
-            "^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$"
-    );
+    private final UserRepository userRepository;
+    private final IdentityCache identityCache;
+    private final PresenceService presenceService;
+    private final ClientCertificateResolver clientCertificateResolver;
+    private final PresenceMetrics presenceMetrics;
+    private final BulkRegistrationService bulkRegistrationService;
+    private final PresenceReplicationService presenceReplicationService;
 
     @PostMapping("/api/register")
     @Operation(summary = "Register a new user", description = "Registers a new user with the provided email address.")
@@ -45,146 +61,120 @@ public class UserController {
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
     public ResponseEntity<Void> registerUser(@Valid @RequestBody RegisterRequest registerRequest) {
-        try {
-            String email = registerRequest.getEmail();
+        return register(registerRequest.getEmail());
+    }
 
-            if (email == null || email.trim().isEmpty()) {
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
-            }
+    @PostMapping(value = "/api/register", consumes = PROTOBUF_MEDIA_TYPE)
+    @Operation(summary = "Register a new user (protobuf)", description = "Registers a new user from a RegisterUserRequest protobuf body.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "201", description = "User registered successfully"),
+            @ApiResponse(responseCode = "400", description = "Invalid email format"),
+            @ApiResponse(responseCode = "409", description = "User already exists"),
+            @ApiResponse(responseCode = "500", description = "Internal server error")
+    })
+    public ResponseEntity<Void> registerUserProtobuf(@RequestBody RegisterUserRequest registerRequest) {
+        return register(registerRequest.getEmail());
+    }
 
+    @PostMapping(value = "/api/register/bulk", consumes = NDJSON_MEDIA_TYPE, produces = NDJSON_MEDIA_TYPE)
+    @Operation(summary = "Register users in bulk", description = "Registers one user per {\"email\": \"...\"} line of an NDJSON body "
+            + "and streams back one result line (created, conflict, invalid or failed) per input line, in order.")
+    @ApiResponses(value = {
+            @ApiResponse(responseCode = "200", description = "Results streamed as NDJSON")
+    })
+    public void registerBulk(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // Written directly to the response so results go out batch by batch while the body is still being read
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(NDJSON_MEDIA_TYPE);
+        bulkRegistrationService.register(request.getInputStream(), response.getOutputStream());
+    }
+
+    private ResponseEntity<Void> register(String email) {
+        long start = System.nanoTime();
+        HttpStatus status = applyRegistration(email, start);
+        presenceMetrics.recordOutcome(Endpoint.REGISTER, status.value(), start);
+        return ResponseEntity.status(status).build();
+    }
+
+    private HttpStatus applyRegistration(String email, long start) {
+        try {
             // Validate email format
-            if (!isValidEmail(email)) {
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+            boolean valid = email != null && !email.trim().isEmpty() && EmailValidator.isValid(email);
+            long stageStart = presenceMetrics.recordStage(Stage.VALIDATE, start);
+            if (!valid) {
+                return HttpStatus.BAD_REQUEST;
             }
 
-            // Check if user already exists
-            if (userRepository.findByEmail(email).isPresent()) {
-                return ResponseEntity.status(HttpStatus.CONFLICT).build();
-            }
+            // Insert in one statement: 0 rows means the email is already registered
+            int inserted = userRepository.insertIfAbsent(UUID.randomUUID(), email);
+            identityCache.invalidate(email);
+            presenceMetrics.recordStage(Stage.INSERT, stageStart);
 
-            // Create new user
-            User newUser = new User();
-            newUser.setEmail(email);
-            userRepository.save(newUser);
+            if (inserted == 0) {
+                return HttpStatus.CONFLICT;
+            }
 
-            return ResponseEntity.status(HttpStatus.CREATED).build();
+            presenceReplicationService.replicateRegistration(email);
+            return HttpStatus.CREATED;
 
         } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+            return HttpStatus.INTERNAL_SERVER_ERROR;
         }
     }
 
     @PatchMapping("/api/update")
     @Operation(summary = "Update user presence", description = "Updates the user's last seen time, IP address, and port based on the client certificate. Requires mTLS authentication.")
     @ApiResponses(value = {
-            @ApiResponse(responseCode = "200", description = "User updated successfully"),
+            @ApiResponse(responseCode = "200", description = "User updated successfully (PresenceUpdate body when Accept is application/x-protobuf)"),
             @ApiResponse(responseCode = "400", description = "Invalid request or certificate"),
             @ApiResponse(responseCode = "403", description = "User not found"),
+            @ApiResponse(responseCode = "429", description = "Too many heartbeats for this identity"),
             @ApiResponse(responseCode = "500", description = "Internal server error")
     })
-    public ResponseEntity<Void> updateUser(HttpServletRequest request) {
-        try {
-            // Extract CN from client certificate
-            String cn = extractCNFromCertificate(request);
+    public ResponseEntity<PresenceUpdate> updateUser(HttpServletRequest request) {
+        long start = System.nanoTime();
+        UpdateOutcome outcome = applyUpdate(request, start);
+        presenceMetrics.recordOutcome(Endpoint.UPDATE, outcome.status().value(), start);
+
+        // Only clients that explicitly accept protobuf get the recorded presence back;
+        // a wildcard Accept keeps the original empty response
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        if (outcome.status() != HttpStatus.OK || accept == null || !accept.contains(PROTOBUF_MEDIA_TYPE)) {
+            return ResponseEntity.status(outcome.status()).build();
+        }
+        return ResponseEntity.ok(PresenceMessages.presenceUpdate(
+                outcome.email(), outcome.lastSeen(), outcome.ip(), outcome.port()));
+    }
 
-            System.out.println("CN extracted: " + cn);
+    private UpdateOutcome applyUpdate(HttpServletRequest request, long start) {
+        try {
+            // Extract the email CN from the client certificate (cached per certificate)
+            String cn = clientCertificateResolver.resolveEmail(request);
+            presenceMetrics.recordStage(Stage.CERTIFICATE, start);
 
+            // Missing certificate, or CN is not email-like
             if (cn == null) {
-                System.out.println("CN is null");
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
-            }
-
-
-            // Validate CN format (must be email-like)
-            if (!isValidEmail(cn)) {
-                System.out.println("CN does not match email pattern: " + cn);
-                return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
-            }
-
-            // Find user by email
-            User user = userRepository.findByEmail(cn).orElse(null);
-
-            if (user == null) {
-                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+                return UpdateOutcome.failed(HttpStatus.BAD_REQUEST);
             }
 
             // Get client IP and port
             String clientIp = getClientIp(request);
             int clientPort = request.getRemotePort();
 
-            // Get current time in nanoseconds since Unix epoch
-            long currentTimeNanos = System.currentTimeMillis() * 1_000_000L +
-                    (System.nanoTime() % 1_000_000L);
-
-            // Update user record
-            user.setLastSeen(currentTimeNanos);
-            user.setIp(clientIp);
-            user.setPort(clientPort);
-
-            userRepository.save(user);
-
-            // Broadcast the user update
-            udpBroadcastService.broadcastUserUpdate(cn, currentTimeNanos, clientIp, clientPort);
-
-            return ResponseEntity.ok().build();
+            Heartbeat heartbeat = presenceService.recordHeartbeat(cn, clientIp, clientPort);
+            return switch (heartbeat.status()) {
+                case RECORDED -> new UpdateOutcome(HttpStatus.OK,
+                        heartbeat.email(), heartbeat.lastSeen(), heartbeat.ip(), heartbeat.port());
+                case UNKNOWN_USER -> UpdateOutcome.failed(HttpStatus.FORBIDDEN);
+                case THROTTLED -> UpdateOutcome.failed(HttpStatus.TOO_MANY_REQUESTS);
+                case FAILED -> UpdateOutcome.failed(HttpStatus.INTERNAL_SERVER_ERROR);
+            };
 
         } catch (Exception e) {
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+            return UpdateOutcome.failed(HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
-    private String extractCNFromCertificate(HttpServletRequest request) {
-        X509Certificate[] certs = (X509Certificate[]) request.getAttribute(
-                "jakarta.servlet.request.X509Certificate"
-        );
-
-        // Try fallback for Tomcat-style attribute name
-        if (certs == null) {
-            certs = (X509Certificate[]) request.getAttribute(
-                    "javax.servlet.request.X509Certificate"
-            );
-        }
-
-        System.out.println("Certs array: " + (certs == null ? "null" : certs.length));
-
-        if (certs == null || certs.length == 0) {
-            // Debug: Print all request attributes
-            System.out.println("All request attributes:");
-            java.util.Enumeration<String> attrNames = request.getAttributeNames();
-            while (attrNames.hasMoreElements()) {
-                String name = attrNames.nextElement();
-                System.out.println("  " + name + " = " + request.getAttribute(name));
-            }
-            return null;
-        }
-
-        X509Certificate clientCert = certs[0];
-        String dn = clientCert.getSubjectX500Principal().getName();
-        System.out.println("DN: " + dn);
-
-        // Extract CN from DN (format: CN=email@example.com,O=...)
-        String[] parts = dn.split(",");
-        for (String part : parts) {
-            String trimmed = part.trim();
-            System.out.println("Part: " + trimmed);
-            if (trimmed.startsWith("CN=")) {
-                String[] kv = trimmed.split("=", 2);
-                System.out.println("KV: " + java.util.Arrays.toString(kv));
-                if (kv.length == 2 && kv[0].trim().equals("CN")) {
-                    return kv[1].trim();
-                }
-            }
-        }
-
-        return null;
-    }
-
-    private boolean isValidEmail(String email) {
-        boolean matches = email != null && EMAIL_PATTERN.matcher(email).matches();
-        System.out.println("Email validation for '" + email + "': " + matches);
-        return matches;
-    }
-
     private String getClientIp(HttpServletRequest request) {
         String ip = request.getHeader("X-Forwarded-For");
         if (ip == null || ip.isEmpty() || "unknown".equalsIgnoreCase(ip)) {
@@ -195,4 +185,11 @@ public class UserController {
         }
         return ip;
     }
+
+    private record UpdateOutcome(HttpStatus status, String email, long lastSeen, String ip, int port) {
+
+        static UpdateOutcome failed(HttpStatus status) {
+            return new UpdateOutcome(status, null, 0L, null, 0);
+        }
+    }
 }
@@ -6,7 +6,7 @@ import lombok.*;
 import java.util.UUID;
 
 @Entity
-@Table(name = "users")
+@Table(name = "users", indexes = @Index(name = "idx_users_last_seen", columnList = "last_seen"))
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -2,7 +2,11 @@ package qt.test.backend_proj.repository;
 
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import qt.test.backend_proj.model.User;
 
 
@@ -12,4 +16,34 @@ import java.util.UUID;
 @Repository
 public interface UserRepository extends JpaRepository<User, UUID> {
     Optional<User> findByEmail(String email);
-}
\ No newline at end of file
+
+    /**
+     * Updates presence for the given email in a single statement. A {@code lastSeen} older than the stored one
+     * keeps the stored values, so heartbeats committing out of order never move a user back in time.
+     *
+     * @return number of rows matched, 0 when the email is not registered
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE users SET"
+            + " ip = CASE WHEN last_seen IS NULL OR last_seen < :lastSeen THEN :ip ELSE ip END,"
+            + " port = CASE WHEN last_seen IS NULL OR last_seen < :lastSeen THEN :port ELSE port END,"
+            + " last_seen = GREATEST(last_seen, :lastSeen)"
+            + " WHERE email = :email",
+            nativeQuery = true)
+    int touch(@Param("email") String email,
+              @Param("lastSeen") long lastSeen,
+              @Param("ip") String ip,
+              @Param("port") int port);
+
+    /**
+     * Inserts a new user unless the email is already taken, in a single statement.
+     *
+     * @return number of rows inserted, 0 when the email already exists
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO users (id, email) VALUES (:id, :email) ON CONFLICT (email) DO NOTHING",
+            nativeQuery = true)
+    int insertIfAbsent(@Param("id") UUID id, @Param("email") String email);
+}
@@ -0,0 +1,232 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import qt.test.backend_proj.Dto.BulkRegistrationResult;
+import qt.test.backend_proj.Dto.RegisterRequest;
+import qt.test.backend_proj.util.EmailValidator;
+import tools.jackson.core.JacksonException;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Registers emails from an NDJSON stream ({"email": "..."} per line) in batched inserts.
+ * <p>
+ * At most one batch of lines is held in memory: each batch is inserted in one transaction and its results
+ * are written and flushed, in input order, before the next batch is read.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BulkRegistrationService {
+
+    private static final String INSERT_SQL =
+            "INSERT INTO users (id, email) VALUES (?, ?) ON CONFLICT (email) DO NOTHING";
+
+    // How readLine ended
+    private static final int EOF = -1;
+    private static final int NEWLINE = 0;
+    private static final int TOO_LONG = 1;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final Validator validator;
+    private final JsonMapper jsonMapper;
+    private final IdentityCache identityCache;
+    private final PresenceReplicationService presenceReplicationService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${registration.bulk.batch-size:1000}")
+    private int batchSize;
+
+    @Value("${registration.bulk.max-line-length:1024}")
+    private int maxLineLength;
+
+    private Counter createdCounter;
+    private Counter conflictCounter;
+    private Counter invalidCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        createdCounter = meterRegistry.counter("registration.bulk.lines", "result", BulkRegistrationResult.CREATED);
+        conflictCounter = meterRegistry.counter("registration.bulk.lines", "result", BulkRegistrationResult.CONFLICT);
+        invalidCounter = meterRegistry.counter("registration.bulk.lines", "result", BulkRegistrationResult.INVALID);
+        failedCounter = meterRegistry.counter("registration.bulk.lines", "result", BulkRegistrationResult.FAILED);
+    }
+
+    /**
+     * Reads registrations from {@code in} and writes one NDJSON result per non-blank input line to {@code out}.
+     *
+     * @return number of users created
+     */
+    public long register(InputStream in, OutputStream out) throws IOException {
+        Reader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        StringBuilder line = new StringBuilder();
+        List<PendingLine> batch = new ArrayList<>(batchSize);
+        long lineNumber = 0;
+        long created = 0;
+
+        int end;
+        while ((end = readLine(reader, line)) != EOF || !line.isEmpty()) {
+            lineNumber++;
+            if (end == TOO_LONG) {
+                batch.add(PendingLine.invalid(lineNumber, "Line exceeds " + maxLineLength + " characters"));
+            } else if (!line.toString().isBlank()) {
+                batch.add(parse(lineNumber, line.toString()));
+            }
+
+            if (batch.size() == batchSize) {
+                created += writeBatch(batch, out);
+                batch.clear();
+            }
+            if (end == EOF) {
+                break;
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            created += writeBatch(batch, out);
+        }
+        out.flush();
+        log.debug("Bulk registration read {} lines, created {} users", lineNumber, created);
+        return created;
+    }
+
+    private PendingLine parse(long lineNumber, String line) {
+        RegisterRequest request;
+        try {
+            request = jsonMapper.readValue(line, RegisterRequest.class);
+        } catch (JacksonException e) {
+            return PendingLine.invalid(lineNumber, "Malformed JSON");
+        }
+        if (request == null) {
+            return PendingLine.invalid(lineNumber, "Malformed JSON");
+        }
+
+        // Same rules as POST /api/register: the RegisterRequest constraints, then EmailValidator
+        Set<ConstraintViolation<RegisterRequest>> violations = validator.validate(request);
+        if (!violations.isEmpty()) {
+            return new PendingLine(lineNumber, request.getEmail(), violations.iterator().next().getMessage());
+        }
+        if (!EmailValidator.isValid(request.getEmail())) {
+            return new PendingLine(lineNumber, request.getEmail(), "Invalid email format");
+        }
+        return new PendingLine(lineNumber, request.getEmail(), null);
+    }
+
+    private long writeBatch(List<PendingLine> batch, OutputStream out) throws IOException {
+        List<PendingLine> valid = batch.stream().filter(PendingLine::isValid).toList();
+        int[] inserted = insert(valid);
+
+        long created = 0;
+        int next = 0;
+        for (PendingLine pending : batch) {
+            BulkRegistrationResult result;
+            if (!pending.isValid()) {
+                invalidCounter.increment();
+                result = new BulkRegistrationResult(pending.line(), pending.email(),
+                        BulkRegistrationResult.INVALID, pending.error());
+            } else if (inserted == null) {
+                failedCounter.increment();
+                result = new BulkRegistrationResult(pending.line(), pending.email(), BulkRegistrationResult.FAILED, null);
+            } else if (inserted[next++] > 0) {
+                created++;
+                createdCounter.increment();
+                identityCache.invalidate(pending.email());
+                presenceReplicationService.replicateRegistration(pending.email());
+                result = new BulkRegistrationResult(pending.line(), pending.email(), BulkRegistrationResult.CREATED, null);
+            } else {
+                conflictCounter.increment();
+                result = new BulkRegistrationResult(pending.line(), pending.email(), BulkRegistrationResult.CONFLICT, null);
+            }
+            out.write(jsonMapper.writeValueAsBytes(result));
+            out.write('\n');
+        }
+        out.flush();
+        return created;
+    }
+
+    /**
+     * Inserts the batch in one transaction, so it costs one commit instead of one per row.
+     * Each statement of the JDBC batch reports 1 row when inserted and 0 when the email already existed,
+     * including an earlier line of the same batch. This needs per-statement counts, so the PostgreSQL driver's
+     * reWriteBatchedInserts must stay off.
+     *
+     * @return the per-line insert counts, or null when the batch failed
+     */
+    private int[] insert(List<PendingLine> valid) {
+        if (valid.isEmpty()) {
+            return new int[0];
+        }
+        try {
+            int[][] counts = transactionTemplate.execute(status ->
+                    jdbcTemplate.batchUpdate(INSERT_SQL, valid, valid.size(), (ps, pending) -> {
+                        ps.setObject(1, UUID.randomUUID());
+                        ps.setString(2, pending.email());
+                    }));
+            return counts[0];
+        } catch (DataAccessException e) {
+            log.error("Failed to insert bulk registration batch of {} emails", valid.size(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads the next line into {@code line} without its terminator. A line longer than the maximum is discarded
+     * up to its end, so one oversized line cannot exhaust memory.
+     */
+    private int readLine(Reader reader, StringBuilder line) throws IOException {
+        line.setLength(0);
+        boolean tooLong = false;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == '\n') {
+                return tooLong ? TOO_LONG : NEWLINE;
+            }
+            // Dropped before the length check, so the CR of a CRLF terminator does not count towards the line
+            if (c == '\r' || tooLong) {
+                continue;
+            }
+            if (line.length() == maxLineLength) {
+                tooLong = true;
+                line.setLength(0);
+                continue;
+            }
+            line.append((char) c);
+        }
+        return tooLong ? TOO_LONG : EOF;
+    }
+
+    private record PendingLine(long line, String email, String error) {
+
+        static PendingLine invalid(long line, String error) {
+            return new PendingLine(line, null, error);
+        }
+
+        boolean isValid() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.util.LongBloomFilter;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.cert.CRL;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rejects client certificates listed in locally provided CRL files, without any network access on the handshake.
+ * <p>
+ * The revoked serial numbers of all files are loaded into a {@link LongBloomFilter} in front of an exact set per
+ * issuer. Almost every certificate is not revoked and is cleared by the filter alone, so a check costs a few tens
+ * of nanoseconds even with millions of revoked serials; only filter hits look up the exact set.
+ * <p>
+ * The files are polled for changes and reloaded into a new list that replaces the old one in a single volatile
+ * write, so a check sees either the old or the new list. A file that fails to parse (e.g. half copied) keeps the
+ * previous list until the next successful reload. CRL files are trusted like the truststore: they are local
+ * configuration and their signatures are not verified, but an entry only revokes certificates of its issuer.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class CertificateRevocationService {
+
+    private final MeterRegistry meterRegistry;
+
+    // Comma-separated CRL files (PEM or DER); empty disables revocation checking
+    @Value("${tls.revocation.crl-files:}")
+    private String crlFiles;
+
+    @Value("${tls.revocation.reload-interval-seconds:30}")
+    private long reloadIntervalSeconds;
+
+    @Value("${tls.revocation.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    private volatile RevocationList revocationList = RevocationList.EMPTY;
+    private List<Path> files = List.of();
+    // Modification time and size of each file at the last successful load
+    private Map<Path, String> loadedVersions = Map.of();
+    private ScheduledExecutorService reloader;
+
+    private Counter rejectedCounter;
+    private Counter reloadFailureCounter;
+
+    @PostConstruct
+    public void init() throws IOException, GeneralSecurityException {
+        Gauge.builder("tls.revocation.serials", this, service -> service.revocationList.size())
+                .description("Revoked certificate serial numbers currently loaded")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("tls.revocation.rejected")
+                .description("Client certificates rejected as revoked")
+                .register(meterRegistry);
+        reloadFailureCounter = Counter.builder("tls.revocation.reload.failures")
+                .description("CRL reloads that failed and kept the previous revocation list")
+                .register(meterRegistry);
+
+        files = Arrays.stream(crlFiles.split(","))
+                .map(String::trim)
+                .filter(file -> !file.isEmpty())
+                .map(Path::of)
+                .toList();
+        if (files.isEmpty()) {
+            log.info("Certificate revocation checking disabled (no tls.revocation.crl-files)");
+            return;
+        }
+
+        // Failing here stops startup: serving without the configured CRLs would accept revoked certificates
+        reload();
+        reloader = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "crl-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(this::reloadIfChanged, reloadIntervalSeconds, reloadIntervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+        }
+    }
+
+    /**
+     * Whether the certificate's serial number is listed in a loaded CRL of its issuer.
+     */
+    public boolean isRevoked(X509Certificate certificate) {
+        RevocationList list = revocationList;
+        BigInteger serial = certificate.getSerialNumber();
+        if (!list.filter().mightContain(serial.longValue())) {
+            return false;
+        }
+        Set<BigInteger> serials = list.byIssuer().get(certificate.getIssuerX500Principal());
+        if (serials == null || !serials.contains(serial)) {
+            return false;
+        }
+        rejectedCounter.increment();
+        return true;
+    }
+
+    private void reloadIfChanged() {
+        try {
+            if (!versions().equals(loadedVersions)) {
+                reload();
+            }
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            reloadFailureCounter.increment();
+            log.error("Failed to reload CRLs, keeping the previous revocation list of {} serials",
+                    revocationList.size(), e);
+        }
+    }
+
+    /**
+     * Parses every file, then builds and publishes a new revocation list; the current one stays in place on failure.
+     */
+    private void reload() throws IOException, GeneralSecurityException {
+        long start = System.nanoTime();
+        Map<Path, String> versions = versions();
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        Date now = new Date();
+
+        List<X509CRL> crls = new ArrayList<>();
+        long count = 0;
+        for (Path file : files) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file))) {
+                for (CRL crl : factory.generateCRLs(in)) {
+                    X509CRL x509Crl = (X509CRL) crl;
+                    if (x509Crl.getNextUpdate() != null && x509Crl.getNextUpdate().before(now)) {
+                        log.warn("CRL of {} in {} is past its next update ({})", x509Crl.getIssuerX500Principal(),
+                                file, x509Crl.getNextUpdate());
+                    }
+                    Set<? extends X509CRLEntry> entries = x509Crl.getRevokedCertificates();
+                    count += entries == null ? 0 : entries.size();
+                    crls.add(x509Crl);
+                }
+            }
+        }
+
+        LongBloomFilter filter = new LongBloomFilter(count, falsePositiveRate);
+        Map<X500Principal, Set<BigInteger>> byIssuer = new HashMap<>();
+        for (X509CRL crl : crls) {
+            Set<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+            if (entries == null) {
+                continue;
+            }
+            for (X509CRLEntry entry : entries) {
+                // Entries of an indirect CRL can name another issuer
+                X500Principal issuer = entry.getCertificateIssuer() != null
+                        ? entry.getCertificateIssuer() : crl.getIssuerX500Principal();
+                filter.put(entry.getSerialNumber().longValue());
+                byIssuer.computeIfAbsent(issuer, key -> new HashSet<>()).add(entry.getSerialNumber());
+            }
+        }
+
+        revocationList = new RevocationList(filter, byIssuer, count);
+        loadedVersions = versions;
+        log.info("Loaded {} revoked serials from {} CRLs in {} ms ({} KB filter)", count, crls.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), filter.bitSize() / 8 / 1024);
+    }
+
+    private Map<Path, String> versions() throws IOException {
+        Map<Path, String> versions = new LinkedHashMap<>();
+        for (Path file : files) {
+            versions.put(file, Files.getLastModifiedTime(file) + "/" + Files.size(file));
+        }
+        return versions;
+    }
+
+    private record RevocationList(LongBloomFilter filter, Map<X500Principal, Set<BigInteger>> byIssuer, long size) {
+
+        static final RevocationList EMPTY = new RevocationList(new LongBloomFilter(0, 0.01), Map.of(), 0);
+    }
+}
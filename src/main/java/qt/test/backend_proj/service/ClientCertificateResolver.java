@@ -0,0 +1,141 @@
+package qt.test.backend_proj.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.util.EmailValidator;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resolves the email identity from a client certificate's CN.
+ * Results are cached per certificate, so a returning client skips DN parsing and validation.
+ * Revoked certificates resolve to no identity, since a resumed TLS session or a connection opened before a CRL
+ * reload never goes through the trust manager again.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ClientCertificateResolver {
+
+    private static final String CERTIFICATE_ATTRIBUTE = "jakarta.servlet.request.X509Certificate";
+    private static final String LEGACY_CERTIFICATE_ATTRIBUTE = "javax.servlet.request.X509Certificate";
+    private static final long MISSING_CERTIFICATE_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Marks certificates whose CN is missing or not an email
+    private static final String INVALID = "";
+
+    private final MeterRegistry meterRegistry;
+    private final CertificateRevocationService certificateRevocationService;
+
+    @Value("${certificate-cache.max-size:100000}")
+    private long maxSize;
+
+    @Value("${certificate-cache.expire-after-access-seconds:3600}")
+    private long expireAfterAccessSeconds;
+
+    // Certificates compare and hash by their DER encoding, so the same certificate presented on another
+    // connection hits the same entry; the hash is computed once per certificate instance
+    private Cache<X509Certificate, String> resolved;
+
+    private final AtomicLong nextMissingCertificateLog = new AtomicLong(System.nanoTime());
+    private final LongAdder suppressedMissingCertificateLogs = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        resolved = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(Duration.ofSeconds(expireAfterAccessSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, resolved, "client-certificates");
+    }
+
+    /**
+     * Returns the validated email CN of the request's client certificate,
+     * or null when there is no certificate or its CN is not an email.
+     */
+    public String resolveEmail(HttpServletRequest request) {
+        X509Certificate[] certs = (X509Certificate[]) request.getAttribute(CERTIFICATE_ATTRIBUTE);
+
+        // Try fallback for Tomcat-style attribute name
+        if (certs == null) {
+            certs = (X509Certificate[]) request.getAttribute(LEGACY_CERTIFICATE_ATTRIBUTE);
+        }
+
+        if (certs == null || certs.length == 0) {
+            logMissingCertificate(request);
+            return null;
+        }
+
+        return resolveEmail(certs[0]);
+    }
+
+    /**
+     * Returns the validated email CN of the certificate, or null when its CN is not an email or it is revoked.
+     */
+    public String resolveEmail(X509Certificate certificate) {
+        if (certificateRevocationService.isRevoked(certificate)) {
+            return null;
+        }
+        String email = resolved.get(certificate, ClientCertificateResolver::extractEmail);
+        return email.isEmpty() ? null : email;
+    }
+
+    private static String extractEmail(X509Certificate certificate) {
+        String cn = extractCommonName(certificate);
+        if (!EmailValidator.isValid(cn)) {
+            log.debug("Rejecting certificate {}: CN '{}' is not an email", certificate.getSerialNumber(), cn);
+            return INVALID;
+        }
+        log.debug("Resolved certificate {} to {}", certificate.getSerialNumber(), cn);
+        return cn;
+    }
+
+    /**
+     * Extracts the CN from the certificate subject (format: CN=email@example.com,O=...).
+     */
+    static String extractCommonName(X509Certificate certificate) {
+        String dn = certificate.getSubjectX500Principal().getName(X500Principal.RFC2253);
+        try {
+            // The most significant RDN comes last in LdapName order, so scan from the end
+            List<Rdn> rdns = new LdapName(dn).getRdns();
+            for (int i = rdns.size() - 1; i >= 0; i--) {
+                Rdn rdn = rdns.get(i);
+                if ("CN".equalsIgnoreCase(rdn.getType())) {
+                    return rdn.getValue().toString().trim();
+                }
+            }
+        } catch (InvalidNameException e) {
+            log.debug("Could not parse certificate subject '{}'", dn, e);
+        }
+        return null;
+    }
+
+    private void logMissingCertificate(HttpServletRequest request) {
+        long now = System.nanoTime();
+        long next = nextMissingCertificateLog.get();
+        if (now - next < 0 || !nextMissingCertificateLog.compareAndSet(next, now + MISSING_CERTIFICATE_LOG_INTERVAL_NANOS)) {
+            suppressedMissingCertificateLogs.increment();
+            return;
+        }
+        log.warn("No client certificate on request from {} ({} similar messages suppressed)",
+                request.getRemoteAddr(), suppressedMissingCertificateLogs.sumThenReset());
+    }
+}
@@ -0,0 +1,53 @@
+package qt.test.backend_proj.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.Dto.PresenceEntry;
+import qt.test.backend_proj.repository.UserRepository;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Presence on the users row: queued in the write-behind buffer when it is enabled, otherwise written with
+ * one UPDATE per heartbeat.
+ */
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "presence.store", havingValue = "database", matchIfMissing = true)
+public class DatabasePresenceStore implements PresenceStore {
+
+    // Keyset pagination along the unique email index
+    private static final String PAGE_SQL = "SELECT email, last_seen, ip, port FROM users"
+            + " WHERE last_seen IS NOT NULL AND email > ? ORDER BY email LIMIT ?";
+
+    private final UserRepository userRepository;
+    private final PresenceWriteBehindBuffer presenceWriteBehindBuffer;
+    private final JdbcTemplate jdbcTemplate;
+
+    @Value("${presence.index.load-page-size:10000}")
+    private int pageSize;
+
+    @Override
+    public boolean record(String email, long lastSeen, String ip, int port) {
+        // Queue the write when write-behind is enabled, otherwise update in one statement
+        return presenceWriteBehindBuffer.offer(email, lastSeen, ip, port)
+                || userRepository.touch(email, lastSeen, ip, port) > 0;
+    }
+
+    @Override
+    public void forEach(Consumer<PresenceEntry> consumer) {
+        String after = "";
+        while (!Thread.currentThread().isInterrupted()) {
+            List<PresenceEntry> rows = jdbcTemplate.query(PAGE_SQL, PresenceIndex.ROW_MAPPER, after, pageSize);
+            rows.forEach(consumer);
+            if (rows.size() < pageSize) {
+                return;
+            }
+            after = rows.get(rows.size() - 1).email();
+        }
+    }
+}
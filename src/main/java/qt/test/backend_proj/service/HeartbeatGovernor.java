@@ -0,0 +1,160 @@
+package qt.test.backend_proj.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-identity admission of heartbeats in front of {@link PresenceService}.
+ * <p>
+ * Every identity has a token bucket refilled at {@code rate-per-second} up to {@code burst}; a heartbeat
+ * without a token is throttled before it reaches the identity cache or the presence store. The state also
+ * remembers the address of the last recorded heartbeat: a heartbeat from the same IP and port within
+ * {@code keepalive-seconds} of it changes nothing anyone can observe, so it is suppressed instead of being
+ * persisted and broadcast again. A new address is always recorded immediately.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class HeartbeatGovernor {
+
+    public enum Decision {
+        RECORD,
+        SUPPRESS,
+        THROTTLE
+    }
+
+    /**
+     * Outcome of {@link #admit}; for a suppressed heartbeat, {@code lastSeen} is the one recorded last.
+     */
+    public record Admission(Decision decision, long lastSeen) {
+
+        static final Admission RECORD = new Admission(Decision.RECORD, 0L);
+        static final Admission THROTTLE = new Admission(Decision.THROTTLE, 0L);
+    }
+
+    private final MeterRegistry meterRegistry;
+
+    // Off by default: it answers bursts with 429 and lets last_seen lag by up to keepalive-seconds
+    @Value("${presence.governor.enabled:false}")
+    private boolean enabled;
+
+    // Unchanged heartbeats refresh last_seen at most this often; 0 records every heartbeat
+    @Value("${presence.governor.keepalive-seconds:15}")
+    private long keepaliveSeconds;
+
+    @Value("${presence.governor.rate-per-second:5}")
+    private double ratePerSecond;
+
+    @Value("${presence.governor.burst:10}")
+    private double burst;
+
+    @Value("${presence.governor.max-identities:100000}")
+    private long maxIdentities;
+
+    private long keepaliveNanos;
+    private double tokensPerNano;
+    private Cache<String, State> states;
+
+    private Counter suppressedCounter;
+    private Counter throttledCounter;
+
+    @PostConstruct
+    public void init() {
+        suppressedCounter = Counter.builder("presence.heartbeats.suppressed")
+                .description("Heartbeats from an unchanged address that were not persisted or broadcast")
+                .register(meterRegistry);
+        throttledCounter = Counter.builder("presence.heartbeats.throttled")
+                .description("Heartbeats rejected because the identity exceeded its rate")
+                .register(meterRegistry);
+
+        keepaliveNanos = TimeUnit.SECONDS.toNanos(keepaliveSeconds);
+        tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        // An identity idle for this long has a full bucket and is past its keepalive, so its state can go
+        long idleNanos = Math.max(keepaliveNanos, (long) Math.ceil(burst / tokensPerNano));
+        states = Caffeine.newBuilder()
+                .maximumSize(maxIdentities)
+                .expireAfterAccess(Duration.ofNanos(idleNanos))
+                .build();
+
+        if (enabled) {
+            log.info("Heartbeat governor initialized ({}/s per identity, burst {}, keepalive {} s)",
+                    ratePerSecond, burst, keepaliveSeconds);
+        }
+    }
+
+    /**
+     * Takes a token for the identity and decides what to do with a heartbeat from {@code ip}:{@code port}.
+     */
+    public Admission admit(String email, String ip, int port) {
+        if (!enabled) {
+            return Admission.RECORD;
+        }
+        long now = System.nanoTime();
+        State state = states.get(email, key -> new State(burst, now));
+        synchronized (state) {
+            state.tokens = Math.min(burst, state.tokens + (now - state.refilledAt) * tokensPerNano);
+            state.refilledAt = now;
+            if (state.tokens < 1) {
+                throttledCounter.increment();
+                return Admission.THROTTLE;
+            }
+            state.tokens -= 1;
+
+            if (state.recorded && now - state.recordedAt < keepaliveNanos
+                    && port == state.port && Objects.equals(ip, state.ip)) {
+                suppressedCounter.increment();
+                return new Admission(Decision.SUPPRESS, state.lastSeen);
+            }
+            return Admission.RECORD;
+        }
+    }
+
+    /**
+     * Remembers a heartbeat that has been persisted and broadcast, starting its keepalive interval.
+     */
+    public void recorded(String email, long lastSeen, String ip, int port) {
+        if (!enabled) {
+            return;
+        }
+        State state = states.getIfPresent(email);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.recorded = true;
+            state.recordedAt = System.nanoTime();
+            state.lastSeen = lastSeen;
+            state.ip = ip;
+            state.port = port;
+        }
+    }
+
+    private static final class State {
+
+        // Token bucket
+        private double tokens;
+        private long refilledAt;
+        // Last recorded heartbeat
+        private boolean recorded;
+        private long recordedAt;
+        private long lastSeen;
+        private String ip;
+        private int port;
+
+        private State(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.config.TlsContextFactory;
+import qt.test.backend_proj.service.PresenceService.Heartbeat;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent mTLS heartbeat endpoint that bypasses the HTTP stack.
+ * <p>
+ * A client keeps one connection open and sends length-prefixed frames:
+ * [payload_length:2][payload:variable]
+ * The payload is reserved and currently ignored, so an empty frame is a plain heartbeat.
+ * Every frame is answered with a one-byte ack, see the {@code ACK_*} constants.
+ * The identity is taken from the peer certificate once, right after the handshake.
+ * <p>
+ * Each connection is served by its own thread blocked in a read, so {@code heartbeat.server.max-connections}
+ * also caps the number of threads. The saving over HTTPS is per heartbeat (no HTTP parsing, one small TLS
+ * record each way on an already verified connection), not per connection: keep the limit in the low thousands
+ * and spread more clients over several nodes.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class HeartbeatServer {
+
+    // Ack codes mirror the HTTP statuses of PATCH /api/update
+    static final byte ACK_RECORDED = 0;
+    static final byte ACK_INVALID_CERTIFICATE = 1;
+    static final byte ACK_UNKNOWN_USER = 2;
+    static final byte ACK_FAILED = 3;
+    static final byte ACK_THROTTLED = 4;
+
+    private static final int MAX_PAYLOAD_BYTES = 1024;
+    // Connection threads only parse frames, so a small stack keeps max-connections threads cheap
+    private static final long CONNECTION_STACK_BYTES = 256 * 1024;
+
+    private final TlsContextFactory tlsContextFactory;
+    private final ClientCertificateResolver clientCertificateResolver;
+    private final CertificateRevocationService certificateRevocationService;
+    private final PresenceService presenceService;
+    private final TlsHandshakeMetrics tlsHandshakeMetrics;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${heartbeat.server.enabled:false}")
+    private boolean enabled;
+
+    @Value("${heartbeat.server.port:8444}")
+    private int port;
+
+    // One thread per connection
+    @Value("${heartbeat.server.max-connections:1000}")
+    private int maxConnections;
+
+    @Value("${heartbeat.server.handshake-timeout-ms:10000}")
+    private int handshakeTimeoutMs;
+
+    // Connections without a heartbeat for this long are closed
+    @Value("${heartbeat.server.idle-timeout-ms:120000}")
+    private int idleTimeoutMs;
+
+    private SSLServerSocket serverSocket;
+    private Thread acceptor;
+    private ExecutorService connections;
+    private Semaphore connectionSlots;
+    private final Set<SSLSocket> openSockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    private volatile boolean running;
+
+    private Counter framesCounter;
+    private Counter rejectedCounter;
+
+    @PostConstruct
+    public void start() throws IOException, GeneralSecurityException {
+        if (!enabled) {
+            return;
+        }
+
+        SSLContext sslContext = tlsContextFactory.createServerContext();
+        serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+        serverSocket.setNeedClientAuth(true);
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port), 1024);
+
+        connectionSlots = new Semaphore(maxConnections);
+        connections = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(null, task, "heartbeat-connection-" + connectionIds.incrementAndGet(),
+                    CONNECTION_STACK_BYTES);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Gauge.builder("heartbeat.server.connections", openSockets, Set::size)
+                .description("Open heartbeat connections")
+                .register(meterRegistry);
+        framesCounter = meterRegistry.counter("heartbeat.server.frames");
+        rejectedCounter = meterRegistry.counter("heartbeat.server.rejected");
+
+        running = true;
+        acceptor = new Thread(this::acceptConnections, "heartbeat-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Heartbeat server listening on port {} (max {} connections)", port, maxConnections);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeQuietly(serverSocket);
+        openSockets.forEach(HeartbeatServer::closeQuietly);
+        connections.shutdownNow();
+        acceptor.join(TimeUnit.SECONDS.toMillis(5));
+        log.info("Heartbeat server stopped");
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            SSLSocket socket;
+            try {
+                socket = (SSLSocket) serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Failed to accept heartbeat connection", e);
+                }
+                continue;
+            }
+
+            if (!connectionSlots.tryAcquire()) {
+                rejectedCounter.increment();
+                closeQuietly(socket);
+                continue;
+            }
+            openSockets.add(socket);
+            connections.execute(() -> {
+                try {
+                    serve(socket);
+                } finally {
+                    openSockets.remove(socket);
+                    closeQuietly(socket);
+                    connectionSlots.release();
+                }
+            });
+        }
+    }
+
+    private void serve(SSLSocket socket) {
+        String remote = socket.getRemoteSocketAddress().toString();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(handshakeTimeoutMs);
+            long handshakeStart = System.nanoTime();
+            socket.startHandshake();
+            tlsHandshakeMetrics.recordHandshake("heartbeat", socket.getSession(), System.nanoTime() - handshakeStart);
+            socket.setSoTimeout(idleTimeoutMs);
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            // Identity is fixed for the lifetime of the connection
+            X509Certificate certificate = peerCertificate(socket);
+            String email = certificate == null ? null : clientCertificateResolver.resolveEmail(certificate);
+            if (email == null) {
+                out.write(ACK_INVALID_CERTIFICATE);
+                out.flush();
+                return;
+            }
+            String ip = socket.getInetAddress().getHostAddress();
+            int clientPort = socket.getPort();
+
+            while (running) {
+                int length = in.readUnsignedShort();
+                if (length > MAX_PAYLOAD_BYTES) {
+                    log.warn("Closing heartbeat connection from {}: frame of {} bytes", remote, length);
+                    return;
+                }
+                in.skipNBytes(length);
+                framesCounter.increment();
+
+                // A CRL reload can revoke the certificate of a connection that is already open
+                if (certificateRevocationService.isRevoked(certificate)) {
+                    log.info("Closing heartbeat connection of {} from {}: certificate revoked", email, remote);
+                    out.write(ACK_INVALID_CERTIFICATE);
+                    out.flush();
+                    return;
+                }
+
+                out.write(ack(presenceService.recordHeartbeat(email, ip, clientPort)));
+                // Pipelined frames are acked together in one TLS record
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            log.debug("Heartbeat connection from {} closed", remote);
+        } catch (SocketTimeoutException e) {
+            log.debug("Heartbeat connection from {} timed out", remote);
+        } catch (IOException e) {
+            log.warn("Heartbeat connection from {} failed: {}", remote, e.getMessage());
+        }
+    }
+
+    private static X509Certificate peerCertificate(SSLSocket socket) throws IOException {
+        Certificate[] chain = socket.getSession().getPeerCertificates();
+        if (chain.length == 0 || !(chain[0] instanceof X509Certificate certificate)) {
+            return null;
+        }
+        return certificate;
+    }
+
+    private static byte ack(Heartbeat heartbeat) {
+        return switch (heartbeat.status()) {
+            case RECORDED -> ACK_RECORDED;
+            case UNKNOWN_USER -> ACK_UNKNOWN_USER;
+            case THROTTLED -> ACK_THROTTLED;
+            case FAILED -> ACK_FAILED;
+        };
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed or reset by the peer
+        }
+    }
+}
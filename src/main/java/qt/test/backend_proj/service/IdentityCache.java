@@ -0,0 +1,100 @@
+package qt.test.backend_proj.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.model.User;
+import qt.test.backend_proj.repository.UserRepository;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Bounded email to user id cache in front of {@link UserRepository#findByEmail}.
+ * Unknown emails are remembered for a short time so unregistered certificates
+ * that keep retrying do not reach the database.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class IdentityCache {
+
+    private final UserRepository userRepository;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${identity-cache.max-size:100000}")
+    private long maxSize;
+
+    @Value("${identity-cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${identity-cache.negative-max-size:10000}")
+    private long negativeMaxSize;
+
+    @Value("${identity-cache.negative-ttl-seconds:5}")
+    private long negativeTtlSeconds;
+
+    // Replaced in tests to expire entries without waiting
+    private Ticker ticker = Ticker.systemTicker();
+
+    private Cache<String, UUID> identities;
+    private Cache<String, Boolean> unknownIdentities;
+
+    @PostConstruct
+    public void init() {
+        identities = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .ticker(ticker)
+                .recordStats()
+                .build();
+        unknownIdentities = Caffeine.newBuilder()
+                .maximumSize(negativeMaxSize)
+                .expireAfterWrite(Duration.ofSeconds(negativeTtlSeconds))
+                .ticker(ticker)
+                .recordStats()
+                .build();
+
+        // Publishes hit, miss and eviction counts as cache.* meters
+        CaffeineCacheMetrics.monitor(meterRegistry, identities, "identities");
+        CaffeineCacheMetrics.monitor(meterRegistry, unknownIdentities, "unknown-identities");
+    }
+
+    /**
+     * Resolves the user id for an email, hitting the database only on a cache miss.
+     */
+    public Optional<UUID> findUserId(String email) {
+        UUID id = identities.getIfPresent(email);
+        if (id != null) {
+            return Optional.of(id);
+        }
+        if (unknownIdentities.getIfPresent(email) != null) {
+            return Optional.empty();
+        }
+
+        Optional<UUID> loaded = userRepository.findByEmail(email).map(User::getId);
+        if (loaded.isPresent()) {
+            identities.put(email, loaded.get());
+        } else {
+            unknownIdentities.put(email, Boolean.TRUE);
+            log.debug("Caching unknown identity {} for {} s", email, negativeTtlSeconds);
+        }
+        return loaded;
+    }
+
+    /**
+     * Drops any cached state for the email, e.g. after it has been registered.
+     */
+    public void invalidate(String email) {
+        identities.invalidate(email);
+        unknownIdentities.invalidate(email);
+    }
+}
@@ -0,0 +1,490 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.Dto.PresenceEntry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded log-structured presence store. Heartbeats are appended to memory-mapped segment files and the
+ * latest entry per email is kept in a hash index, so a heartbeat costs a memory copy instead of an UPDATE
+ * that leaves a dead tuple in the users table.
+ * <p>
+ * A committer thread forces every segment written since its last pass in one go, and {@link #record} returns
+ * once a force has covered its append, so concurrent heartbeats share one fsync (group commit). On startup
+ * all segments are replayed; replay stops at the first record whose checksum does not match, which can only
+ * be a write torn by a crash before it was committed. A compactor copies the live entries out of segments
+ * that are mostly superseded and deletes them.
+ * <p>
+ * Segment layout: [magic:4][version:4] then records of
+ * [length:4][crc32:4][lastSeen:8][port:4][email_length:2][email][ip_length:1][ip], where length and the CRC32
+ * cover everything after the CRC. New segments are zero filled, so a zero length marks the end.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "presence.store", havingValue = "journal")
+public class JournalPresenceStore implements PresenceStore {
+
+    private static final int SEGMENT_MAGIC = 0x504A524E; // "PJRN"
+    private static final int SEGMENT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    // lastSeen, port, email length and ip length
+    private static final int FIXED_BODY_SIZE = 8 + 4 + 2 + 1;
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${presence.store.journal.directory:data/presence-journal}")
+    private String directory;
+
+    @Value("${presence.store.journal.segment-bytes:67108864}")
+    private int segmentBytes;
+
+    @Value("${presence.store.journal.compaction-interval-seconds:30}")
+    private long compactionIntervalSeconds;
+
+    // Segments whose share of live entries has dropped to this ratio are compacted
+    @Value("${presence.store.journal.compaction-live-ratio:0.5}")
+    private double compactionLiveRatio;
+
+    private final ConcurrentHashMap<String, Slot> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Guards appends to the head segment; taken inside index bins, never the other way round
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final CRC32 appendCrc = new CRC32();
+    private volatile Segment head;
+    // Bytes appended and bytes forced to disk since startup, across all segments
+    private volatile long appended;
+    private volatile long committed;
+    // Segments filled since the committer's last pass, which still need to be forced
+    private final ConcurrentLinkedQueue<Segment> unforced = new ConcurrentLinkedQueue<>();
+
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final Condition commitRequested = commitLock.newCondition();
+    private final Condition commitDone = commitLock.newCondition();
+
+    private volatile boolean running;
+    private Thread committer;
+    private ScheduledExecutorService compactor;
+
+    private Counter appendCounter;
+    private Timer commitTimer;
+    private Counter compactedCounter;
+
+    @PostConstruct
+    public void init() throws IOException {
+        Gauge.builder("presence.journal.segments", segments, Map::size)
+                .description("Segment files in the presence journal")
+                .register(meterRegistry);
+        appendCounter = meterRegistry.counter("presence.journal.appends");
+        commitTimer = Timer.builder("presence.journal.commit")
+                .description("Latency of one group commit (force of the segments written since the last one)")
+                .register(meterRegistry);
+        compactedCounter = meterRegistry.counter("presence.journal.compacted");
+
+        long start = System.nanoTime();
+        Path root = Path.of(directory);
+        Files.createDirectories(root);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(root)) {
+            // Zero-padded ids, so name order is append order
+            files = listing.filter(file -> file.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        long replayed = 0;
+        for (Path file : files) {
+            replayed += replay(file);
+        }
+
+        // Recovered segments are never appended to again, so a torn tail is never overwritten
+        head = createSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+
+        running = true;
+        committer = new Thread(this::runCommitter, "presence-journal-committer");
+        committer.start();
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "presence-journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactSafely, compactionIntervalSeconds, compactionIntervalSeconds,
+                TimeUnit.SECONDS);
+
+        log.info("Presence journal replayed {} records from {} segments into {} users in {} ms", replayed, files.size(),
+                index.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        compactor.shutdownNow();
+        compactor.awaitTermination(10, TimeUnit.SECONDS);
+
+        // The committer makes a last pass before it exits
+        running = false;
+        commitLock.lock();
+        try {
+            commitRequested.signal();
+        } finally {
+            commitLock.unlock();
+        }
+        committer.join(TimeUnit.SECONDS.toMillis(10));
+        log.info("Presence journal closed, {} users in {} segments", index.size(), segments.size());
+    }
+
+    /**
+     * Appends the heartbeat and waits until it is on disk. A heartbeat older than the stored one is ignored.
+     * The journal holds no identities, so this never reports an unknown email.
+     */
+    @Override
+    public boolean record(String email, long lastSeen, String ip, int port) {
+        long[] end = {0};
+        index.compute(email, (key, current) -> {
+            if (current != null && current.entry().lastSeen() > lastSeen) {
+                return current;
+            }
+            Slot slot = append(new PresenceEntry(email, lastSeen, ip, port), end);
+            if (current != null) {
+                current.segment().live.decrementAndGet();
+            }
+            return slot;
+        });
+        awaitCommit(end[0]);
+        return true;
+    }
+
+    @Override
+    public void forEach(Consumer<PresenceEntry> consumer) {
+        for (Slot slot : index.values()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            consumer.accept(slot.entry());
+        }
+    }
+
+    /**
+     * Moves the live entries of every sealed segment at or below the live ratio to the head segment, and deletes
+     * those segments once the copies and every other append made so far are committed.
+     *
+     * @return number of segments deleted
+     */
+    int compact() throws IOException {
+        List<Segment> victims = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment != head && segment.live.get() <= segment.records.get() * compactionLiveRatio) {
+                victims.add(segment);
+            }
+        }
+        if (victims.isEmpty()) {
+            return 0;
+        }
+
+        long[] end = {0};
+        for (String email : index.keySet()) {
+            index.computeIfPresent(email, (key, slot) -> {
+                if (!victims.contains(slot.segment())) {
+                    return slot;
+                }
+                slot.segment().live.decrementAndGet();
+                return append(slot.entry(), end);
+            });
+        }
+        // Originals are only deleted once everything that superseded them is durable: the copies made above, but
+        // also heartbeats appended by record() callers that are still waiting for their commit
+        awaitCommit(appended);
+
+        int deleted = 0;
+        for (Segment victim : victims) {
+            if (victim.live.get() != 0) {
+                log.warn("Presence journal segment {} still has {} live entries after compaction", victim.path,
+                        victim.live.get());
+                continue;
+            }
+            segments.remove(victim.id);
+            Files.deleteIfExists(victim.path);
+            compactedCounter.increment();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    private void compactSafely() {
+        try {
+            int deleted = compact();
+            if (deleted > 0) {
+                log.debug("Presence journal compaction deleted {} segments", deleted);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Presence journal compaction failed", e);
+        }
+    }
+
+    /**
+     * Writes one record to the head segment, rolling over to a new segment when it is full.
+     * Stores the logical end position of the record in {@code end[0]}.
+     */
+    private Slot append(PresenceEntry entry, long[] end) {
+        byte[] email = entry.email().getBytes(StandardCharsets.UTF_8);
+        byte[] ip = entry.ip() == null ? new byte[0] : entry.ip().getBytes(StandardCharsets.UTF_8);
+        int bodyLength = FIXED_BODY_SIZE + email.length + ip.length;
+        int recordLength = RECORD_HEADER_SIZE + bodyLength;
+        if (email.length > 0xFFFF || ip.length > 0xFF || recordLength > segmentBytes - SEGMENT_HEADER_SIZE) {
+            throw new IllegalArgumentException("Presence entry too large for the journal: " + entry.email());
+        }
+
+        appendLock.lock();
+        try {
+            if (head.position + recordLength > segmentBytes) {
+                Segment full = head;
+                // Queued before the new head is published, so a committer that sees the new head also drains this one
+                unforced.add(full);
+                head = createSegment(full.id + 1);
+            }
+            Segment segment = head;
+            int start = segment.position;
+            ByteBuffer body = segment.buffer.slice(start + RECORD_HEADER_SIZE, bodyLength);
+            body.putLong(entry.lastSeen()).putInt(entry.port())
+                    .putShort((short) email.length).put(email)
+                    .put((byte) ip.length).put(ip);
+            appendCrc.reset();
+            appendCrc.update(body.flip());
+            segment.buffer.putInt(start, bodyLength).putInt(start + 4, (int) appendCrc.getValue());
+
+            segment.position = start + recordLength;
+            segment.records.incrementAndGet();
+            segment.live.incrementAndGet();
+            appended += recordLength;
+            end[0] = appended;
+            appendCounter.increment();
+            return new Slot(entry, segment);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to create a presence journal segment", e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void awaitCommit(long position) {
+        if (committed >= position) {
+            return;
+        }
+        commitLock.lock();
+        try {
+            commitRequested.signal();
+            while (committed < position) {
+                commitDone.awaitUninterruptibly();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Forces everything appended since the previous pass. Appends that arrive during a force are covered by
+     * the next one, so the number of forces per second stays bounded by the disk, not by the request rate.
+     */
+    private void runCommitter() {
+        while (running || committed < appended) {
+            commitLock.lock();
+            try {
+                while (running && committed == appended) {
+                    commitRequested.await(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                commitLock.unlock();
+            }
+
+            // Read the head before draining: a segment sealed in between was queued before the new head was
+            // published, so it is drained rather than skipped
+            long target = appended;
+            Segment current = head;
+            long start = System.nanoTime();
+            try {
+                Segment full;
+                while ((full = unforced.peek()) != null) {
+                    full.buffer.force();
+                    unforced.poll();
+                }
+                current.buffer.force();
+            } catch (UncheckedIOException e) {
+                log.error("Failed to force the presence journal, retrying", e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            commitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+            commitLock.lock();
+            try {
+                committed = target;
+                commitDone.signalAll();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Path path = Path.of(directory).resolve(String.format("%020d%s", id, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            buffer.putInt(0, SEGMENT_MAGIC).putInt(4, SEGMENT_VERSION);
+            Segment segment = new Segment(id, path, buffer);
+            segment.position = SEGMENT_HEADER_SIZE;
+            segments.put(id, segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Loads one segment into the index and returns the number of intact records.
+     */
+    private long replay(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) == 0) {
+            // Created just before a crash: nothing in it was ever committed
+            log.warn("Deleting presence journal segment {} without a header", path);
+            Files.delete(path);
+            return 0;
+        }
+        if (buffer.getInt(0) != SEGMENT_MAGIC || buffer.getInt(4) != SEGMENT_VERSION) {
+            throw new IllegalStateException("Not a presence journal segment: " + path);
+        }
+
+        Segment segment = new Segment(id, path, buffer);
+        CRC32 crc = new CRC32();
+        int position = SEGMENT_HEADER_SIZE;
+        long replayed = 0;
+        while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            PresenceEntry entry = null;
+            if (length >= FIXED_BODY_SIZE && length <= buffer.capacity() - position - RECORD_HEADER_SIZE) {
+                crc.reset();
+                crc.update(buffer.slice(position + RECORD_HEADER_SIZE, length));
+                if ((int) crc.getValue() == buffer.getInt(position + 4)) {
+                    entry = decode(buffer, position + RECORD_HEADER_SIZE, length);
+                }
+            }
+            if (entry == null) {
+                log.warn("Presence journal segment {} ends with a torn record at offset {}", path, position);
+                break;
+            }
+
+            segment.records.incrementAndGet();
+            PresenceEntry replayedEntry = entry;
+            index.compute(entry.email(), (key, current) -> {
+                // Compaction can leave an older copy behind a newer one
+                if (current != null && current.entry().lastSeen() > replayedEntry.lastSeen()) {
+                    return current;
+                }
+                if (current != null) {
+                    current.segment().live.decrementAndGet();
+                }
+                segment.live.incrementAndGet();
+                return new Slot(replayedEntry, segment);
+            });
+            position += RECORD_HEADER_SIZE + length;
+            replayed++;
+        }
+        segment.position = position;
+        segments.put(id, segment);
+        return replayed;
+    }
+
+    private static PresenceEntry decode(ByteBuffer buffer, int offset, int length) {
+        long lastSeen = buffer.getLong(offset);
+        int port = buffer.getInt(offset + 8);
+        int emailLength = buffer.getShort(offset + 12) & 0xFFFF;
+        if (FIXED_BODY_SIZE + emailLength > length) {
+            return null;
+        }
+        int ipLength = buffer.get(offset + 14 + emailLength) & 0xFF;
+        if (FIXED_BODY_SIZE + emailLength + ipLength != length) {
+            return null;
+        }
+        String email = string(buffer, offset + 14, emailLength);
+        String ip = string(buffer, offset + 15 + emailLength, ipLength);
+        return new PresenceEntry(email, lastSeen, ip, port);
+    }
+
+    private static String string(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Latest entry for one email and the segment holding it.
+     */
+    private record Slot(PresenceEntry entry, Segment segment) {
+    }
+
+    private static final class Segment {
+
+        private final long id;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        // Records written to this segment, and how many of them are still the latest for their email
+        private final AtomicInteger records = new AtomicInteger();
+        private final AtomicInteger live = new AtomicInteger();
+        // Next free byte, only moved under the append lock
+        private int position;
+
+        private Segment(long id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.util.TimingWheel;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjLongConsumer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Announces users as offline once no heartbeat has arrived for the configured TTL.
+ * <p>
+ * Every user seen since startup has a timer in a hierarchical {@link TimingWheel}, driven by one ticker thread.
+ * A heartbeat only advances the user's last seen time; when the timer fires, a user that was seen since it was
+ * scheduled is rescheduled from the new time, and any other user is dropped and broadcast as offline.
+ * Both steps are O(1), so the cost does not grow with the number of tracked users and the users table is
+ * never scanned.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PresenceExpiryService {
+
+    private final UdpBroadcastService udpBroadcastService;
+    private final PresenceFeed presenceFeed;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${presence.expiry.enabled:true}")
+    private boolean enabled;
+
+    @Value("${presence.expiry.ttl-seconds:60}")
+    private long ttlSeconds;
+
+    // Offline events go out up to one tick after the TTL has passed
+    @Value("${presence.expiry.tick-ms:100}")
+    private long tickMs;
+
+    private final ConcurrentHashMap<String, Tracked> tracked = new ConcurrentHashMap<>();
+    // Users seen for the first time, added to the wheel by the ticker thread
+    private final ConcurrentLinkedQueue<Tracked> added = new ConcurrentLinkedQueue<>();
+    private final List<ObjLongConsumer<String>> offlineListeners = new CopyOnWriteArrayList<>();
+
+    private long ttlNanos;
+    private long tickNanos;
+    private TimingWheel<Tracked> wheel;
+    private Thread ticker;
+    private volatile boolean running;
+
+    private Counter offlineCounter;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("presence.expiry.tracked", tracked, Map::size)
+                .description("Users that will be announced as offline when their heartbeats stop")
+                .register(meterRegistry);
+        offlineCounter = meterRegistry.counter("presence.expiry.offline");
+
+        if (!enabled) {
+            log.info("Presence expiry disabled, users are never announced as offline");
+            return;
+        }
+        ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        wheel = new TimingWheel<>(currentTick());
+
+        running = true;
+        ticker = new Thread(this::runTicker, "presence-expiry-ticker");
+        ticker.setDaemon(true);
+        ticker.start();
+
+        log.info("Presence expiry initialized (TTL {} s, tick {} ms)", ttlSeconds, tickMs);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (ticker != null) {
+            running = false;
+            LockSupport.unpark(ticker);
+            ticker.join(TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    /**
+     * Records a heartbeat at {@code lastSeen} (nanoseconds since the Unix epoch), postponing the user's expiry.
+     *
+     * @param local whether this node accepted the heartbeat; only that node broadcasts the offline event over UDP
+     */
+    public void touch(String email, long lastSeen, boolean local) {
+        if (!running) {
+            return;
+        }
+        tracked.compute(email, (key, current) -> {
+            if (current == null) {
+                Tracked entry = new Tracked(key, lastSeen, local);
+                added.offer(entry);
+                return entry;
+            }
+            if (lastSeen > current.lastSeen) {
+                current.lastSeen = lastSeen;
+                current.local = local;
+            }
+            return current;
+        });
+    }
+
+    /**
+     * Registers a callback run on the ticker thread with the email and last seen time of every user announced
+     * as offline, so per-user state elsewhere can be dropped along with the timer.
+     */
+    public void addOfflineListener(ObjLongConsumer<String> listener) {
+        offlineListeners.add(listener);
+    }
+
+    private void runTicker() {
+        while (running) {
+            try {
+                Tracked entry;
+                while ((entry = added.poll()) != null) {
+                    wheel.schedule(entry, deadlineTick(entry.lastSeen));
+                }
+                wheel.advance(currentTick(), this::expire);
+            } catch (RuntimeException e) {
+                log.error("Presence expiry tick failed", e);
+            }
+            LockSupport.parkNanos(this, tickNanos);
+        }
+    }
+
+    private void expire(Tracked entry) {
+        long now = wheel.currentTick();
+        // Removed atomically with touch: a racing heartbeat either lands before and keeps the user,
+        // or after and starts tracking it again
+        Tracked remaining = tracked.computeIfPresent(entry.email, (key, current) ->
+                current == entry && deadlineTick(current.lastSeen) <= now ? null : current);
+        if (remaining == entry) {
+            // Seen since this timer was scheduled
+            wheel.schedule(entry, deadlineTick(entry.lastSeen));
+            return;
+        }
+
+        offlineCounter.increment();
+        if (entry.local) {
+            // In a cluster every node sees the expiry, but only the one that accepted the last heartbeat broadcasts
+            udpBroadcastService.broadcastOffline(entry.email, entry.lastSeen);
+        }
+        presenceFeed.publishOffline(entry.email, entry.lastSeen);
+        offlineListeners.forEach(listener -> listener.accept(entry.email, entry.lastSeen));
+        log.debug("User {} went offline", entry.email);
+    }
+
+    private long deadlineTick(long lastSeen) {
+        // Rounded up so the TTL has always fully passed when the timer fires
+        return (lastSeen + ttlNanos + tickNanos - 1) / tickNanos;
+    }
+
+    private long currentTick() {
+        // Same clock as lastSeen
+        return System.currentTimeMillis() * 1_000_000L / tickNanos;
+    }
+
+    private static final class Tracked extends TimingWheel.Timer {
+
+        private final String email;
+        // Written by heartbeats under the map's lock, read by the ticker thread
+        private volatile long lastSeen;
+        private volatile boolean local;
+
+        Tracked(String email, long lastSeen, boolean local) {
+            this.email = email;
+            this.lastSeen = lastSeen;
+            this.local = local;
+        }
+    }
+}
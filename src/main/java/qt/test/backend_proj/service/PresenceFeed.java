@@ -0,0 +1,346 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import qt.test.backend_proj.Dto.PresenceEntry;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sequenced feed of accepted presence updates for Server-Sent Events subscribers.
+ * <p>
+ * Every update gets the next sequence number and is kept in a bounded ring buffer, so a subscriber that reconnects
+ * with its last sequence (Last-Event-ID) resumes where it left off as long as those events are still buffered;
+ * otherwise it gets a resync event first. Subscribers hold no thread: one notifier thread hands subscribers with
+ * pending events to a small pool, which writes each subscriber's whole backlog in one batch.
+ * <p>
+ * Publishers take a sequence number and then store the event, so slots can be filled out of order. Subscribers
+ * only see events up to the stored watermark, which advances over consecutive stored slots, so a drain that stops
+ * at a slot still being filled is picked up again when its publisher moves the watermark past it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PresenceFeed {
+
+    private static final long NOTIFIER_IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final DataWithMediaType KEEPALIVE = new DataWithMediaType(":\n\n", MediaType.TEXT_PLAIN);
+
+    private final JsonMapper jsonMapper;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${presence.feed.buffer-size:65536}")
+    private int bufferSize;
+
+    @Value("${presence.feed.max-subscribers:10000}")
+    private int maxSubscribers;
+
+    @Value("${presence.feed.dispatcher-threads:4}")
+    private int dispatcherThreads;
+
+    @Value("${presence.feed.max-batch:1000}")
+    private int maxBatch;
+
+    @Value("${presence.feed.keepalive-seconds:15}")
+    private long keepaliveSeconds;
+
+    // Starts from the clock so sequence numbers keep increasing across restarts
+    // and a Last-Event-ID from a previous run is always older than the buffer
+    private final AtomicLong lastSequence = new AtomicLong(System.currentTimeMillis() << 20);
+    // Highest sequence whose event and all earlier ones are stored in the ring
+    private final AtomicLong stored = new AtomicLong(lastSequence.get());
+
+    private AtomicReferenceArray<FeedEvent> ring;
+    private int mask;
+    private long keepaliveNanos;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private ExecutorService dispatcher;
+    private Thread notifier;
+    private volatile boolean notifierParked;
+    private volatile boolean running;
+
+    private Counter eventsCounter;
+    private Counter resyncsCounter;
+    private Counter disconnectsCounter;
+
+    @PostConstruct
+    public void init() {
+        // Round up to a power of two so a sequence number maps to its slot with a mask
+        int capacity = Integer.highestOneBit(Math.max(1, bufferSize - 1)) << 1;
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        keepaliveNanos = TimeUnit.SECONDS.toNanos(keepaliveSeconds);
+
+        eventsCounter = meterRegistry.counter("presence.feed.events");
+        resyncsCounter = meterRegistry.counter("presence.feed.resyncs");
+        disconnectsCounter = meterRegistry.counter("presence.feed.disconnects");
+        Gauge.builder("presence.feed.subscribers", subscribers, Set::size)
+                .description("Connected presence feed subscribers")
+                .register(meterRegistry);
+
+        AtomicLong threadCount = new AtomicLong();
+        dispatcher = Executors.newFixedThreadPool(dispatcherThreads, task -> {
+            Thread thread = new Thread(task, "presence-feed-dispatcher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        notifier = new Thread(this::runNotifier, "presence-feed-notifier");
+        notifier.setDaemon(true);
+        notifier.start();
+
+        log.info("Presence feed initialized (buffer {} events, max {} subscribers)", capacity, maxSubscribers);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        if (notifier != null) {
+            LockSupport.unpark(notifier);
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdownNow();
+        }
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    /**
+     * Appends an accepted update to the feed. Never blocks; subscribers are written to by the dispatcher.
+     */
+    public void publish(String email, long lastSeen, String ip, int port) {
+        append("presence", new PresenceEntry(email, lastSeen, ip, port));
+    }
+
+    /**
+     * Appends an offline announcement: no heartbeat since {@code lastSeen} within the expiry TTL.
+     */
+    public void publishOffline(String email, long lastSeen) {
+        append("offline", new OfflineEvent(email, lastSeen));
+    }
+
+    private void append(String event, Object payload) {
+        if (ring == null) {
+            return;
+        }
+        // Serialized once here instead of once per subscriber
+        String json = jsonMapper.writeValueAsString(payload);
+        store(lastSequence.incrementAndGet(), event, json);
+    }
+
+    private void store(long sequence, String event, String json) {
+        String frame = "id:" + sequence + "\nevent:" + event + "\ndata:" + json + "\n\n";
+        ring.set((int) (sequence & mask), new FeedEvent(sequence, new DataWithMediaType(frame, MediaType.TEXT_PLAIN)));
+        eventsCounter.increment();
+
+        // Move the watermark over this slot and any later ones stored before it; a publisher whose earlier slot
+        // is still empty leaves that to the publisher of the earlier slot
+        long current = stored.get();
+        while (true) {
+            FeedEvent next = ring.get((int) ((current + 1) & mask));
+            if (next == null || next.sequence() <= current) {
+                break;
+            }
+            if (stored.compareAndSet(current, current + 1)) {
+                current++;
+            } else {
+                current = stored.get();
+            }
+        }
+
+        if (notifierParked) {
+            LockSupport.unpark(notifier);
+        }
+    }
+
+    /**
+     * Subscribes to updates after {@code lastEventId}, or to new updates only when it is null. An id this feed has
+     * not reached yet (for example from another node) gets a resync event followed by new updates.
+     *
+     * @return the emitter, or null when the subscriber limit is reached
+     */
+    public SseEmitter subscribe(Long lastEventId) {
+        if (subscribers.size() >= maxSubscribers) {
+            return null;
+        }
+        SseEmitter emitter = newEmitter();
+        long published = lastSequence.get();
+        boolean unknown = lastEventId != null && lastEventId > published;
+        long next = lastEventId == null || unknown ? published + 1 : lastEventId + 1;
+        Subscriber subscriber = new Subscriber(emitter, next, unknown);
+
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(error -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+
+        // Replays the buffered backlog right away
+        schedule(subscriber);
+        return emitter;
+    }
+
+    public long getLastSequence() {
+        return lastSequence.get();
+    }
+
+    SseEmitter newEmitter() {
+        // No async timeout: dead connections are detected by failing keepalive writes
+        return new SseEmitter(0L);
+    }
+
+    private void runNotifier() {
+        long notified = stored.get();
+        long lastKeepaliveCheck = System.nanoTime();
+
+        while (running) {
+            long published = stored.get();
+            if (published != notified) {
+                notified = published;
+                for (Subscriber subscriber : subscribers) {
+                    if (subscriber.next <= published) {
+                        schedule(subscriber);
+                    }
+                }
+            }
+
+            long now = System.nanoTime();
+            if (now - lastKeepaliveCheck >= NOTIFIER_IDLE_PARK_NANOS) {
+                lastKeepaliveCheck = now;
+                for (Subscriber subscriber : subscribers) {
+                    if (now - subscriber.lastSendNanos >= keepaliveNanos) {
+                        schedule(subscriber);
+                    }
+                }
+            }
+
+            notifierParked = true;
+            // Re-check after publishing the flag so a concurrent publish is never missed
+            if (stored.get() == notified && running) {
+                LockSupport.parkNanos(this, NOTIFIER_IDLE_PARK_NANOS);
+            }
+            notifierParked = false;
+        }
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (!subscriber.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            dispatcher.execute(() -> drain(subscriber));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            subscriber.scheduled.set(false);
+        }
+    }
+
+    /**
+     * Writes everything the subscriber has not seen yet. Only one drain per subscriber runs at a time.
+     */
+    private void drain(Subscriber subscriber) {
+        try {
+            Set<DataWithMediaType> batch = new LinkedHashSet<>();
+            boolean sent = false;
+            while (true) {
+                batch.clear();
+                long next = subscriber.next;
+                long oldest = lastSequence.get() - ring.length() + 1;
+                if (next < oldest || subscriber.resync) {
+                    // Missed events were overwritten, or the client resumes from an id this feed never issued:
+                    // tell it to resync, e.g. from /api/presence/recent
+                    batch.add(new DataWithMediaType("event:resync\ndata:{\"oldest\":" + oldest + "}\n\n", MediaType.TEXT_PLAIN));
+                    resyncsCounter.increment();
+                    subscriber.resync = false;
+                    next = Math.max(next, oldest);
+                }
+                long last = stored.get();
+                while (batch.size() < maxBatch && next <= last) {
+                    FeedEvent event = ring.get((int) (next & mask));
+                    // Overwritten since oldest was read
+                    if (event == null || event.sequence() != next) {
+                        break;
+                    }
+                    batch.add(event.frame());
+                    next++;
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                subscriber.emitter.send(batch);
+                subscriber.next = next;
+                sent = true;
+            }
+
+            if (!sent && System.nanoTime() - subscriber.lastSendNanos >= keepaliveNanos) {
+                subscriber.emitter.send(Set.of(KEEPALIVE));
+                sent = true;
+            }
+            if (sent) {
+                subscriber.lastSendNanos = System.nanoTime();
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Client went away, or the emitter already completed
+            if (subscribers.remove(subscriber)) {
+                disconnectsCounter.increment();
+            }
+            subscriber.emitter.completeWithError(e);
+            return;
+        } finally {
+            subscriber.scheduled.set(false);
+        }
+
+        // An event published during the drain may have found this subscriber still scheduled
+        if (hasPending(subscriber)) {
+            schedule(subscriber);
+        }
+    }
+
+    private boolean hasPending(Subscriber subscriber) {
+        return subscriber.next <= stored.get();
+    }
+
+    private record FeedEvent(long sequence, DataWithMediaType frame) {
+    }
+
+    private record OfflineEvent(String email, long lastSeen) {
+    }
+
+    private static final class Subscriber {
+
+        private final SseEmitter emitter;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Only written by the drain that holds the scheduled flag
+        private volatile long next;
+        private volatile long lastSendNanos = System.nanoTime();
+        // Resumed from an unknown id, the first batch starts with a resync event
+        private volatile boolean resync;
+
+        Subscriber(SseEmitter emitter, long next, boolean resync) {
+            this.emitter = emitter;
+            this.next = next;
+            this.resync = resync;
+        }
+    }
+}
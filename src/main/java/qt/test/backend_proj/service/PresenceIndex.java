@@ -0,0 +1,281 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.Dto.PresenceEntry;
+import qt.test.backend_proj.Dto.PresencePage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * In-memory index of the latest presence per user, ordered by last seen time and by address.
+ * <p>
+ * Loaded from the {@link PresenceStore} at startup and kept current by the update path, so "who is online"
+ * queries are skip list range scans instead of table scans. Until loading has finished (or when the index is
+ * disabled), queries run against the database using the last_seen index with {@code presence.store=database},
+ * and scan the presence store otherwise, since the users table then holds no presence.
+ * <p>
+ * A user updated while a page is being read can briefly be indexed under both its old and new position; a page
+ * lists each user once, but an updated user can show up again on a later page.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PresenceIndex {
+
+    // Most recently seen first, ties broken by email
+    private static final Comparator<PresenceEntry> BY_LAST_SEEN = (a, b) -> {
+        int byTime = Long.compare(b.lastSeen(), a.lastSeen());
+        return byTime != 0 ? byTime : a.email().compareTo(b.email());
+    };
+
+    private static final Comparator<PresenceEntry> BY_ADDRESS = Comparator
+            .comparing(PresenceEntry::ip, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+            .thenComparingInt(PresenceEntry::port)
+            .thenComparing(PresenceEntry::email);
+
+    // Same orderings as the comparators above, resuming strictly after the cursor
+    private static final String BY_LAST_SEEN_SQL = "SELECT email, last_seen, ip, port FROM users"
+            + " WHERE last_seen >= ? AND (last_seen < ? OR (last_seen = ? AND email > ?))"
+            + " ORDER BY last_seen DESC, email LIMIT ?";
+    private static final String BY_ADDRESS_SQL = "SELECT email, last_seen, ip, port FROM users"
+            + " WHERE ip = ? AND port BETWEEN ? AND ? AND last_seen IS NOT NULL"
+            + " AND (port > ? OR (port = ? AND email > ?))"
+            + " ORDER BY port, email LIMIT ?";
+
+    static final RowMapper<PresenceEntry> ROW_MAPPER = (rs, rowNum) ->
+            new PresenceEntry(rs.getString("email"), rs.getLong("last_seen"), rs.getString("ip"), rs.getInt("port"));
+
+    private static final Cursor FIRST_BY_LAST_SEEN = new Cursor(Long.MAX_VALUE, "");
+
+    private final JdbcTemplate jdbcTemplate;
+    private final PresenceStore presenceStore;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${presence.index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${presence.store:database}")
+    private String store;
+
+    private final ConcurrentHashMap<String, PresenceEntry> byEmail = new ConcurrentHashMap<>();
+    // Maps rather than sets so an entry with an equal key (same address, newer lastSeen) replaces the old value
+    private final ConcurrentSkipListMap<PresenceEntry, PresenceEntry> byLastSeen = new ConcurrentSkipListMap<>(BY_LAST_SEEN);
+    private final ConcurrentSkipListMap<PresenceEntry, PresenceEntry> byAddress = new ConcurrentSkipListMap<>(BY_ADDRESS);
+
+    private volatile boolean ready;
+    private Thread loader;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("presence.index.size", byEmail, Map::size)
+                .description("Users in the in-memory presence index")
+                .register(meterRegistry);
+
+        if (!enabled) {
+            log.info("Presence index disabled, presence queries go to the {} store", store);
+            return;
+        }
+        loader = new Thread(this::load, "presence-index-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (loader != null) {
+            loader.interrupt();
+        }
+    }
+
+    /**
+     * Records an accepted heartbeat. Older heartbeats than the indexed one are ignored.
+     */
+    public void record(String email, long lastSeen, String ip, int port) {
+        if (!enabled) {
+            return;
+        }
+        PresenceEntry entry = new PresenceEntry(email, lastSeen, ip, port);
+        byEmail.compute(email, (key, current) -> {
+            // Never let an older heartbeat, or a row loaded from the database, replace a newer one
+            if (current != null && current.lastSeen() >= lastSeen) {
+                return current;
+            }
+            // Add before removing, so concurrent queries never miss the user
+            byLastSeen.put(entry, entry);
+            byAddress.put(entry, entry);
+            if (current != null) {
+                byLastSeen.remove(current);
+                if (BY_ADDRESS.compare(current, entry) != 0) {
+                    byAddress.remove(current);
+                }
+            }
+            return entry;
+        });
+    }
+
+    /**
+     * Users seen at or after {@code since} (nanoseconds since the Unix epoch), most recently seen first.
+     *
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public PresencePage seenSince(long since, String cursor, int limit) {
+        Cursor after = cursor == null ? FIRST_BY_LAST_SEEN : Cursor.decode(cursor);
+        PresenceEntry probe = new PresenceEntry(after.email(), after.position(), null, 0);
+        List<PresenceEntry> users;
+        if (ready) {
+            users = new ArrayList<>(limit + 1);
+            Set<String> emails = new HashSet<>();
+            for (PresenceEntry entry : byLastSeen.tailMap(probe, false).values()) {
+                if (entry.lastSeen() < since || users.size() > limit) {
+                    break;
+                }
+                // The newer entry of a user being updated comes first
+                if (emails.add(entry.email())) {
+                    users.add(entry);
+                }
+            }
+        } else if (isDatabaseStore()) {
+            users = queryByLastSeen(since, after, limit + 1);
+        } else {
+            users = scanStore(entry -> entry.lastSeen() >= since && BY_LAST_SEEN.compare(entry, probe) > 0,
+                    BY_LAST_SEEN, limit + 1);
+        }
+        return page(users, limit, entry -> new Cursor(entry.lastSeen(), entry.email()));
+    }
+
+    /**
+     * Users whose last heartbeat came from {@code ip}, and from {@code port} unless it is null, ordered by port.
+     *
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public PresencePage atAddress(String ip, Integer port, String cursor, int limit) {
+        int minPort = port == null ? 0 : port;
+        int maxPort = port == null ? 0xFFFF : port;
+        Cursor after = cursor == null ? new Cursor(minPort, "") : Cursor.decode(cursor);
+        int fromPort = (int) Math.min(Math.max(after.position(), minPort), maxPort + 1L);
+        PresenceEntry probe = new PresenceEntry(after.email(), 0L, ip, fromPort);
+        List<PresenceEntry> users;
+        if (ready) {
+            users = new ArrayList<>(limit + 1);
+            Set<String> emails = new HashSet<>();
+            for (PresenceEntry entry : byAddress.tailMap(probe, false).values()) {
+                if (!ip.equals(entry.ip()) || entry.port() > maxPort || users.size() > limit) {
+                    break;
+                }
+                if (emails.add(entry.email())) {
+                    users.add(entry);
+                }
+            }
+        } else if (isDatabaseStore()) {
+            users = jdbcTemplate.query(BY_ADDRESS_SQL, ROW_MAPPER, ip, minPort, maxPort,
+                    after.position(), after.position(), after.email(), limit + 1);
+        } else {
+            users = scanStore(entry -> ip.equals(entry.ip()) && entry.port() <= maxPort
+                    && BY_ADDRESS.compare(entry, probe) > 0, BY_ADDRESS, limit + 1);
+        }
+        return page(users, limit, entry -> new Cursor(entry.port(), entry.email()));
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    private boolean isDatabaseStore() {
+        return "database".equals(store);
+    }
+
+    private List<PresenceEntry> queryByLastSeen(long since, Cursor after, int limit) {
+        return jdbcTemplate.query(BY_LAST_SEEN_SQL, ROW_MAPPER,
+                since, after.position(), after.position(), after.email(), limit);
+    }
+
+    /**
+     * First {@code limit} matching entries of the presence store in the given order, by a full pass over it.
+     */
+    private List<PresenceEntry> scanStore(Predicate<PresenceEntry> filter, Comparator<PresenceEntry> order, int limit) {
+        TreeSet<PresenceEntry> first = new TreeSet<>(order);
+        presenceStore.forEach(entry -> {
+            if (filter.test(entry)) {
+                first.add(entry);
+                if (first.size() > limit) {
+                    first.pollLast();
+                }
+            }
+        });
+        return new ArrayList<>(first);
+    }
+
+    /**
+     * Reads every stored presence from the {@link PresenceStore}, in pages when it is the database.
+     */
+    private void load() {
+        long start = System.nanoTime();
+        long[] loaded = {0};
+        try {
+            presenceStore.forEach(entry -> {
+                record(entry.email(), entry.lastSeen(), entry.ip(), entry.port());
+                loaded[0]++;
+            });
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            ready = true;
+            log.info("Presence index loaded {} users in {} ms", loaded[0],
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (DataAccessException e) {
+            log.error("Failed to load the presence index after {} users, presence queries stay on the {} store",
+                    loaded[0], store, e);
+        }
+    }
+
+    private static PresencePage page(List<PresenceEntry> users, int limit, Function<PresenceEntry, Cursor> cursorOf) {
+        if (users.size() <= limit) {
+            return new PresencePage(users, null);
+        }
+        List<PresenceEntry> page = users.subList(0, limit);
+        return new PresencePage(page, cursorOf.apply(page.get(limit - 1)).encode());
+    }
+
+    /**
+     * Position of the last returned user: its lastSeen or port, and its email as tie breaker.
+     */
+    private record Cursor(long position, String email) {
+
+        String encode() {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString((position + ":" + email).getBytes(StandardCharsets.UTF_8));
+        }
+
+        static Cursor decode(String cursor) {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int split = decoded.indexOf(':');
+            if (split < 0) {
+                throw new IllegalArgumentException("Malformed cursor");
+            }
+            return new Cursor(Long.parseLong(decoded.substring(0, split)), decoded.substring(split + 1));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-stage timers and per-status outcome counters for the register and update paths.
+ * <p>
+ * All meters for the expected stages and status codes are registered up front, so recording is a map read
+ * plus Micrometer's lock-free counter and histogram updates, with no registry lookup on the request thread.
+ * The identity, persist and broadcast stages are recorded by {@link PresenceService}, so they include
+ * heartbeats received by the heartbeat server.
+ */
+@Service
+@RequiredArgsConstructor
+public class PresenceMetrics {
+
+    // Histogram buckets stop here, slower requests land in +Inf
+    private static final Duration MAX_EXPECTED = Duration.ofSeconds(10);
+
+    public enum Endpoint {
+        REGISTER(List.of(201, 400, 409, 500)),
+        UPDATE(List.of(200, 400, 403, 429, 500));
+
+        private final List<Integer> expectedStatuses;
+
+        Endpoint(List<Integer> expectedStatuses) {
+            this.expectedStatuses = expectedStatuses;
+        }
+    }
+
+    public enum Stage {
+        VALIDATE(Endpoint.REGISTER),
+        INSERT(Endpoint.REGISTER),
+        CERTIFICATE(Endpoint.UPDATE),
+        IDENTITY(Endpoint.UPDATE),
+        // Waiting for the identity's lock, i.e. contention
+        LOCK(Endpoint.UPDATE),
+        PERSIST(Endpoint.UPDATE),
+        BROADCAST(Endpoint.UPDATE);
+
+        private final Endpoint endpoint;
+
+        Stage(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+    }
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<Stage, Timer> stageTimers = new EnumMap<>(Stage.class);
+    private final Map<Endpoint, Timer> requestTimers = new EnumMap<>(Endpoint.class);
+    private final Map<Endpoint, Map<Integer, Counter>> outcomeCounters = new EnumMap<>(Endpoint.class);
+
+    @PostConstruct
+    public void init() {
+        for (Endpoint endpoint : Endpoint.values()) {
+            requestTimers.put(endpoint, Timer.builder("presence.request.duration")
+                    .description("Time spent handling a request, excluding the servlet container")
+                    .tag("endpoint", tag(endpoint))
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(MAX_EXPECTED)
+                    .register(meterRegistry));
+
+            Map<Integer, Counter> counters = new ConcurrentHashMap<>();
+            for (int status : endpoint.expectedStatuses) {
+                counters.put(status, outcomeCounter(endpoint, status));
+            }
+            outcomeCounters.put(endpoint, counters);
+        }
+
+        for (Stage stage : Stage.values()) {
+            stageTimers.put(stage, Timer.builder("presence.stage.duration")
+                    .description("Time spent in one stage of a request")
+                    .tag("endpoint", tag(stage.endpoint))
+                    .tag("stage", tag(stage))
+                    .publishPercentileHistogram()
+                    .maximumExpectedValue(MAX_EXPECTED)
+                    .register(meterRegistry));
+        }
+    }
+
+    /**
+     * Records a stage that started at {@code startNanos} and ends now.
+     *
+     * @return the end time, to be used as the start of the next stage
+     */
+    public long recordStage(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        stageTimers.get(stage).record(now - startNanos, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
+    /**
+     * Records the outcome and total duration of a request that started at {@code startNanos}.
+     */
+    public void recordOutcome(Endpoint endpoint, int status, long startNanos) {
+        requestTimers.get(endpoint).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        outcomeCounters.get(endpoint)
+                .computeIfAbsent(status, unexpected -> outcomeCounter(endpoint, unexpected))
+                .increment();
+    }
+
+    private Counter outcomeCounter(Endpoint endpoint, int status) {
+        return Counter.builder("presence.requests")
+                .description("Requests by outcome")
+                .tag("endpoint", tag(endpoint))
+                .tag("status", Integer.toString(status))
+                .register(meterRegistry);
+    }
+
+    private static String tag(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,385 @@
+package qt.test.backend_proj.service;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.proto.PresenceUpdate;
+import qt.test.backend_proj.proto.ReplicationEnvelope;
+import qt.test.backend_proj.util.PresenceMessages;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cluster mode: exchanges accepted heartbeats and registrations with peer nodes over UDP, so the presence index,
+ * expiry timers, SSE feed and identity cache of every node reflect updates accepted anywhere in the cluster.
+ * <p>
+ * Updates are batched into {@link ReplicationEnvelope}s stamped with this node's id and a per-node sequence
+ * number, which lets receivers count lost and reordered envelopes. Ordering between nodes does not matter:
+ * each node keeps the newest lastSeen per user and ignores anything older, local or replicated, so all nodes
+ * converge on the same state regardless of arrival order.
+ * Only the node that accepted a heartbeat persists and broadcasts it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PresenceReplicationService {
+
+    // Largest payload that fits in a single UDP datagram
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    // Room for the node id and sequence fields of an envelope
+    private static final int ENVELOPE_HEADER_BYTES = 128;
+    private static final long SENDER_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // A larger jump in a peer's sequence numbers means it restarted rather than that envelopes were lost
+    private static final long MAX_SEQUENCE_GAP = 1L << 20;
+
+    private final PresenceIndex presenceIndex;
+    private final PresenceExpiryService presenceExpiryService;
+    private final PresenceFeed presenceFeed;
+    private final IdentityCache identityCache;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${cluster.enabled:false}")
+    private boolean enabled;
+
+    // Defaults to a random id per process
+    @Value("${cluster.node-id:}")
+    private String nodeId;
+
+    @Value("${cluster.bind-port:7100}")
+    private int bindPort;
+
+    // Comma-separated host:port list; may include this node, whose envelopes are ignored
+    @Value("${cluster.peers:}")
+    private String peers;
+
+    @Value("${cluster.queue-capacity:65536}")
+    private int queueCapacity;
+
+    // Keep envelopes below a typical Ethernet MTU so they are never IP-fragmented
+    @Value("${cluster.max-frame-bytes:1400}")
+    private int maxFrameBytes;
+
+    @Value("${cluster.linger-ms:2}")
+    private long lingerMs;
+
+    // Newest lastSeen per user, accepted locally or replicated; dropped when the user expires, so with expiry
+    // disabled it grows with the number of users like the presence index does
+    private final ConcurrentHashMap<String, Long> latest = new ConcurrentHashMap<>();
+    // Next expected sequence number per peer node, only used by the receiver thread
+    private final Map<String, Long> expectedSequence = new HashMap<>();
+
+    private DatagramChannel channel;
+    private List<InetSocketAddress> peerAddresses;
+    // Starts from the clock so a restarted node's sequence numbers keep increasing
+    private long sequence = System.currentTimeMillis() << 20;
+
+    private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private Thread sender;
+    private Thread receiver;
+    private volatile boolean senderParked;
+    private volatile boolean running;
+
+    private Counter sentCounter;
+    private Counter receivedCounter;
+    private Counter staleCounter;
+    private Counter lostCounter;
+    private Counter reorderedCounter;
+    private Counter droppedCounter;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (nodeId == null || nodeId.isBlank()) {
+            nodeId = UUID.randomUUID().toString();
+        }
+        peerAddresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int split = peer.lastIndexOf(':');
+            if (split < 0) {
+                throw new IllegalArgumentException("Cluster peer must be host:port: " + peer);
+            }
+            // Resolved once instead of per envelope
+            peerAddresses.add(new InetSocketAddress(peer.substring(0, split),
+                    Integer.parseInt(peer.substring(split + 1))));
+        }
+        maxFrameBytes = Math.min(maxFrameBytes, MAX_DATAGRAM_SIZE);
+
+        sentCounter = meterRegistry.counter("cluster.replication.sent");
+        receivedCounter = meterRegistry.counter("cluster.replication.received");
+        staleCounter = meterRegistry.counter("cluster.replication.stale");
+        lostCounter = meterRegistry.counter("cluster.replication.lost");
+        reorderedCounter = meterRegistry.counter("cluster.replication.reordered");
+        droppedCounter = meterRegistry.counter("cluster.replication.dropped");
+
+        presenceExpiryService.addOfflineListener(this::forget);
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.bind(new InetSocketAddress(bindPort));
+
+        running = true;
+        sender = new Thread(this::runSender, "cluster-replication-sender");
+        sender.setDaemon(true);
+        sender.start();
+        receiver = new Thread(this::runReceiver, "cluster-replication-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        log.info("Cluster replication initialized as node {} on port {} with peers {}",
+                nodeId, getLocalPort(), peerAddresses);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(sender);
+        sender.join(TimeUnit.SECONDS.toMillis(5));
+        try {
+            // Unblocks the receiver
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close cluster replication channel", e);
+        }
+    }
+
+    /**
+     * Records a heartbeat accepted by this node and sends it to the peers.
+     *
+     * @return false when a newer heartbeat for the user is already known, so the update must not be published
+     */
+    public boolean replicate(String email, long lastSeen, String ip, int port) {
+        if (!running) {
+            return true;
+        }
+        if (!advance(email, lastSeen)) {
+            // The peers already have the newer heartbeat
+            return false;
+        }
+        enqueue(PresenceMessages.presenceUpdate(email, lastSeen, ip, port));
+        return true;
+    }
+
+    /**
+     * Tells the peers that the email was registered, so they drop any cached "unknown user" for it.
+     */
+    public void replicateRegistration(String email) {
+        if (running) {
+            enqueue(email);
+        }
+    }
+
+    public int getLocalPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Last-writer-wins on lastSeen: true when {@code lastSeen} is newer than anything known for the user.
+     */
+    private boolean advance(String email, long lastSeen) {
+        boolean[] advanced = new boolean[1];
+        latest.compute(email, (key, current) -> {
+            if (current != null && current >= lastSeen) {
+                return current;
+            }
+            advanced[0] = true;
+            return lastSeen;
+        });
+        return advanced[0];
+    }
+
+    /**
+     * Drops the user once it has expired, unless a newer heartbeat arrived in the meantime.
+     */
+    private void forget(String email, long lastSeen) {
+        latest.remove(email, lastSeen);
+    }
+
+    private void enqueue(Object item) {
+        // Reserve a slot first so the queue never grows past its capacity
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            droppedCounter.increment();
+            return;
+        }
+        queue.offer(item);
+        if (senderParked) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    private void runSender() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+
+        ReplicationEnvelope.Builder envelope = ReplicationEnvelope.newBuilder();
+        int envelopeBytes = 0;
+        long envelopeDeadline = 0;
+
+        while (running || !queue.isEmpty()) {
+            Object item = queue.poll();
+            if (item == null) {
+                long waitNanos = SENDER_IDLE_PARK_NANOS;
+                if (envelopeBytes > 0) {
+                    waitNanos = envelopeDeadline - System.nanoTime();
+                    if (waitNanos <= 0 || !running) {
+                        send(buffer, envelope);
+                        envelope.clear();
+                        envelopeBytes = 0;
+                        continue;
+                    }
+                }
+                senderParked = true;
+                // Re-check after publishing the flag so a concurrent enqueue is never missed
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, waitNanos);
+                }
+                senderParked = false;
+                continue;
+            }
+            queued.decrementAndGet();
+
+            int itemBytes = item instanceof PresenceUpdate update
+                    ? CodedOutputStream.computeMessageSize(ReplicationEnvelope.UPDATES_FIELD_NUMBER, update)
+                    : CodedOutputStream.computeStringSize(ReplicationEnvelope.REGISTERED_FIELD_NUMBER, (String) item);
+            if (ENVELOPE_HEADER_BYTES + itemBytes > maxFrameBytes) {
+                droppedCounter.increment();
+                continue;
+            }
+            if (envelopeBytes > 0 && ENVELOPE_HEADER_BYTES + envelopeBytes + itemBytes > maxFrameBytes) {
+                // Envelope is full: send it and start the next one with this item
+                send(buffer, envelope);
+                envelope.clear();
+                envelopeBytes = 0;
+            }
+            if (envelopeBytes == 0) {
+                envelopeDeadline = System.nanoTime() + lingerNanos;
+            }
+            if (item instanceof PresenceUpdate update) {
+                envelope.addUpdates(update);
+            } else {
+                envelope.addRegistered((String) item);
+            }
+            envelopeBytes += itemBytes;
+
+            if (System.nanoTime() - envelopeDeadline >= 0) {
+                send(buffer, envelope);
+                envelope.clear();
+                envelopeBytes = 0;
+            }
+        }
+    }
+
+    private void send(ByteBuffer buffer, ReplicationEnvelope.Builder envelope) {
+        byte[] bytes = envelope.setNodeId(nodeId).setSequence(++sequence).build().toByteArray();
+        for (InetSocketAddress peer : peerAddresses) {
+            buffer.clear();
+            buffer.put(bytes).flip();
+            try {
+                channel.send(buffer, peer);
+                sentCounter.increment();
+            } catch (IOException e) {
+                droppedCounter.increment();
+                log.warn("Failed to send replication envelope to {}", peer, e);
+            }
+        }
+    }
+
+    private void runReceiver() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        while (running) {
+            try {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                apply(ReplicationEnvelope.parseFrom(buffer));
+            } catch (InvalidProtocolBufferException e) {
+                log.warn("Ignoring malformed replication envelope: {}", e.getMessage());
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.error("Failed to apply replication envelope", e);
+            }
+        }
+    }
+
+    void apply(ReplicationEnvelope envelope) {
+        if (nodeId.equals(envelope.getNodeId())) {
+            return;
+        }
+        receivedCounter.increment();
+        trackSequence(envelope.getNodeId(), envelope.getSequence());
+
+        for (String email : envelope.getRegisteredList()) {
+            identityCache.invalidate(email);
+        }
+        for (PresenceUpdate update : envelope.getUpdatesList()) {
+            String email = update.getEmail();
+            long lastSeen = update.getLastSeen();
+            if (update.getOffline()) {
+                // Each node derives offline from its own expiry timers
+                continue;
+            }
+            if (!advance(email, lastSeen)) {
+                // Older than what this node already has
+                staleCounter.increment();
+                continue;
+            }
+            String ip = PresenceMessages.ip(update);
+            presenceIndex.record(email, lastSeen, ip, update.getPort());
+            presenceExpiryService.touch(email, lastSeen, false);
+            presenceFeed.publish(email, lastSeen, ip, update.getPort());
+        }
+    }
+
+    private void trackSequence(String peer, long received) {
+        Long expected = expectedSequence.get(peer);
+        if (expected != null && received < expected) {
+            // Late or duplicated; still applied, as last-writer-wins makes that harmless
+            reorderedCounter.increment();
+            return;
+        }
+        if (expected != null && received > expected) {
+            if (received - expected > MAX_SEQUENCE_GAP) {
+                log.info("Cluster node {} restarted", peer);
+            } else {
+                lostCounter.increment(received - expected);
+            }
+        }
+        expectedSequence.put(peer, received + 1);
+    }
+}
@@ -0,0 +1,140 @@
+package qt.test.backend_proj.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import qt.test.backend_proj.service.PresenceMetrics.Stage;
+import qt.test.backend_proj.util.StripedLocks;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records presence heartbeats: persists the user's last seen time, IP and port in the {@link PresenceStore}
+ * and broadcasts the update. The {@link HeartbeatGovernor} first throttles identities over their rate and
+ * suppresses heartbeats that repeat the last recorded address within the keepalive interval.
+ * Shared by the HTTP update endpoint and the raw mTLS heartbeat server.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PresenceService {
+
+    private final HeartbeatGovernor heartbeatGovernor;
+    private final PresenceStore presenceStore;
+    private final UdpBroadcastService udpBroadcastService;
+    private final IdentityCache identityCache;
+    private final PresenceMetrics presenceMetrics;
+    private final PresenceIndex presenceIndex;
+    private final PresenceFeed presenceFeed;
+    private final PresenceExpiryService presenceExpiryService;
+    private final PresenceReplicationService presenceReplicationService;
+
+    // Rounded up to a power of two
+    @Value("${presence.update.lock-stripes:4096}")
+    private int lockStripes;
+
+    private StripedLocks identityLocks;
+    // Last timestamp handed out under each stripe's lock
+    private long[] stripeClocks;
+
+    @PostConstruct
+    public void init() {
+        identityLocks = new StripedLocks(lockStripes);
+        stripeClocks = new long[identityLocks.size()];
+    }
+
+    /**
+     * Records a heartbeat for an already authenticated email identity.
+     */
+    public Heartbeat recordHeartbeat(String email, String ip, int port) {
+        long stageStart = System.nanoTime();
+        try {
+            // Rejected before anything reaches the database
+            HeartbeatGovernor.Admission admission = heartbeatGovernor.admit(email, ip, port);
+            if (admission.decision() == HeartbeatGovernor.Decision.THROTTLE) {
+                return Heartbeat.failed(Heartbeat.Status.THROTTLED);
+            }
+            if (admission.decision() == HeartbeatGovernor.Decision.SUPPRESS) {
+                // Nothing changed since the recorded heartbeat. Expiry keeps its lastSeen, the one every peer has
+                // seen and the offline announcement must carry; keepalive-seconds below the TTL keeps the user online
+                presenceExpiryService.touch(email, admission.lastSeen(), true);
+                return new Heartbeat(Heartbeat.Status.RECORDED, email, admission.lastSeen(), ip, port);
+            }
+
+            // Resolve the identity from the cache, only going to the database on a miss
+            boolean known = identityCache.findUserId(email).isPresent();
+            stageStart = presenceMetrics.recordStage(Stage.IDENTITY, stageStart);
+            if (!known) {
+                return Heartbeat.failed(Heartbeat.Status.UNKNOWN_USER);
+            }
+
+            // One identity's heartbeats take their timestamps and are applied in turn, so a slower request never
+            // persists or broadcasts an older lastSeen after a newer one; other identities rarely share the lock
+            int stripe = identityLocks.stripe(email);
+            ReentrantLock lock = identityLocks.lock(stripe);
+            lock.lock();
+            try {
+                return apply(stripe, email, ip, port, presenceMetrics.recordStage(Stage.LOCK, stageStart));
+            } finally {
+                lock.unlock();
+            }
+
+        } catch (Exception e) {
+            log.error("Failed to record heartbeat for user {}", email, e);
+            return Heartbeat.failed(Heartbeat.Status.FAILED);
+        }
+    }
+
+    /**
+     * Persists and publishes a heartbeat of a known identity, holding its stripe's lock.
+     */
+    private Heartbeat apply(int stripe, String email, String ip, int port, long stageStart) {
+        // The sub-millisecond part wraps and the wall clock can step back, so never go back within a stripe
+        long currentTimeNanos = Math.max(currentTimeNanos(), stripeClocks[stripe] + 1);
+        stripeClocks[stripe] = currentTimeNanos;
+
+        boolean persisted = presenceStore.record(email, currentTimeNanos, ip, port);
+        stageStart = presenceMetrics.recordStage(Stage.PERSIST, stageStart);
+        if (!persisted) {
+            // Cached identity no longer exists in the database
+            identityCache.invalidate(email);
+            return Heartbeat.failed(Heartbeat.Status.UNKNOWN_USER);
+        }
+        presenceIndex.record(email, currentTimeNanos, ip, port);
+        presenceExpiryService.touch(email, currentTimeNanos, true);
+
+        // Broadcast the user update
+        udpBroadcastService.broadcastUserUpdate(email, currentTimeNanos, ip, port);
+        // In a cluster, a newer heartbeat may already have arrived from another node
+        if (presenceReplicationService.replicate(email, currentTimeNanos, ip, port)) {
+            presenceFeed.publish(email, currentTimeNanos, ip, port);
+        }
+        presenceMetrics.recordStage(Stage.BROADCAST, stageStart);
+        heartbeatGovernor.recorded(email, currentTimeNanos, ip, port);
+
+        return new Heartbeat(Heartbeat.Status.RECORDED, email, currentTimeNanos, ip, port);
+    }
+
+    /**
+     * Current time in nanoseconds since the Unix epoch.
+     */
+    private static long currentTimeNanos() {
+        return System.currentTimeMillis() * 1_000_000L + (System.nanoTime() % 1_000_000L);
+    }
+
+    public record Heartbeat(Status status, String email, long lastSeen, String ip, int port) {
+
+        public enum Status {
+            RECORDED,
+            UNKNOWN_USER,
+            THROTTLED,
+            FAILED
+        }
+
+        static Heartbeat failed(Status status) {
+            return new Heartbeat(status, null, 0L, null, 0);
+        }
+    }
+}
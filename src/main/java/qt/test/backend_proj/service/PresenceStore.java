@@ -0,0 +1,26 @@
+package qt.test.backend_proj.service;
+
+import qt.test.backend_proj.Dto.PresenceEntry;
+
+import java.util.function.Consumer;
+
+/**
+ * Where heartbeats (last seen time, IP and port per email) are persisted. Identities always stay in the
+ * users table; {@code presence.store} selects the implementation: {@code database} keeps presence on the
+ * users row, {@code journal} keeps it in an embedded append-only journal.
+ */
+public interface PresenceStore {
+
+    /**
+     * Persists a heartbeat for an email whose identity has already been resolved.
+     *
+     * @return false when the store found that the email is not registered
+     */
+    boolean record(String email, long lastSeen, String ip, int port);
+
+    /**
+     * Passes the stored presence of every user seen at least once to the consumer, in no particular order.
+     * Stops early when the calling thread is interrupted.
+     */
+    void forEach(Consumer<PresenceEntry> consumer);
+}
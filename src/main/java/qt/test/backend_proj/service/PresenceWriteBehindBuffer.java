@@ -0,0 +1,264 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalescing write-behind buffer for presence updates.
+ * Updates are keyed by email so only the newest lastSeen/ip/port per user is kept,
+ * and a background flusher writes them as batched JDBC updates.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PresenceWriteBehindBuffer {
+
+    // Never let an older heartbeat overwrite a newer one that reached the database first
+    private static final String UPDATE_SQL =
+            "UPDATE users SET last_seen = ?, ip = ?, port = ? WHERE email = ? AND (last_seen IS NULL OR last_seen < ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${presence.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${presence.write-behind.max-pending:100000}")
+    private int maxPending;
+
+    @Value("${presence.write-behind.batch-size:500}")
+    private int batchSize;
+
+    @Value("${presence.write-behind.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${presence.write-behind.offer-timeout-ms:50}")
+    private long offerTimeoutMs;
+
+    private final ConcurrentHashMap<String, PendingUpdate> pending = new ConcurrentHashMap<>();
+    private final Semaphore flushSignal = new Semaphore(0);
+    private Semaphore capacity;
+    private Thread flusher;
+    private volatile boolean running;
+    // Offers between their running check and their insert; shutdown waits for them before the final flush
+    private final AtomicInteger activeOffers = new AtomicInteger();
+
+    private Timer flushTimer;
+    private Counter flushedCounter;
+    private Counter coalescedCounter;
+    private Counter rejectedCounter;
+    private Counter failedCounter;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+
+        capacity = new Semaphore(maxPending);
+
+        Gauge.builder("presence.write_behind.depth", pending, ConcurrentHashMap::size)
+                .description("Presence updates waiting to be flushed")
+                .register(meterRegistry);
+        flushTimer = Timer.builder("presence.write_behind.flush")
+                .description("Latency of one batched presence flush")
+                .register(meterRegistry);
+        flushedCounter = meterRegistry.counter("presence.write_behind.flushed");
+        coalescedCounter = meterRegistry.counter("presence.write_behind.coalesced");
+        rejectedCounter = meterRegistry.counter("presence.write_behind.rejected");
+        failedCounter = meterRegistry.counter("presence.write_behind.failed");
+
+        running = true;
+        flusher = new Thread(this::runFlusher, "presence-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+        log.info("Presence write-behind enabled (max pending {}, batch size {}, flush interval {} ms)",
+                maxPending, batchSize, flushIntervalMs);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        flushSignal.release();
+        flusher.join(TimeUnit.SECONDS.toMillis(10));
+
+        // An offer that saw running before it was cleared can still insert, for at most offer-timeout-ms
+        while (activeOffers.get() > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        // Drain whatever arrived after the flusher's last pass
+        int flushed = flush();
+        log.info("Presence write-behind stopped, flushed {} pending updates on shutdown", flushed);
+    }
+
+    /**
+     * Queues an update for the given user, replacing any older pending update.
+     * Blocks for at most {@code offer-timeout-ms} when the buffer is full.
+     *
+     * @return false when write-behind is disabled or the buffer stayed full,
+     *         in which case the caller must write synchronously
+     */
+    public boolean offer(String email, long lastSeen, String ip, int port) {
+        // Counted before running is read, so shutdown either sees this offer or this offer sees shutdown
+        activeOffers.incrementAndGet();
+        try {
+            return running && enqueue(email, lastSeen, ip, port);
+        } finally {
+            activeOffers.decrementAndGet();
+        }
+    }
+
+    private boolean enqueue(String email, long lastSeen, String ip, int port) {
+        PendingUpdate update = new PendingUpdate(email, lastSeen, ip, port);
+
+        // Fast path: coalesce into an update that is already waiting
+        if (pending.computeIfPresent(email, (key, current) -> newest(current, update)) != null) {
+            coalescedCounter.increment();
+            return true;
+        }
+
+        if (!capacity.tryAcquire()) {
+            // Buffer is full: wake the flusher and wait briefly for room
+            flushSignal.release();
+            try {
+                if (!capacity.tryAcquire(offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    rejectedCounter.increment();
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                rejectedCounter.increment();
+                return false;
+            }
+        }
+
+        boolean[] inserted = new boolean[1];
+        pending.compute(email, (key, current) -> {
+            if (current == null) {
+                inserted[0] = true;
+                return update;
+            }
+            return newest(current, update);
+        });
+
+        // Another thread inserted the same email concurrently, so our slot is not needed
+        if (!inserted[0]) {
+            capacity.release();
+            coalescedCounter.increment();
+        }
+
+        if (pending.size() >= batchSize) {
+            flushSignal.release();
+        }
+        return true;
+    }
+
+    public int getDepth() {
+        return pending.size();
+    }
+
+    private void runFlusher() {
+        while (running) {
+            try {
+                flushSignal.tryAcquire(flushIntervalMs, TimeUnit.MILLISECONDS);
+                flushSignal.drainPermits();
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Presence write-behind flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * Writes every pending update in batches of {@code batch-size}.
+     */
+    int flush() {
+        int flushed = 0;
+        List<PendingUpdate> batch = new ArrayList<>(batchSize);
+
+        for (String email : pending.keySet()) {
+            PendingUpdate update = pending.remove(email);
+            if (update == null) {
+                continue;
+            }
+            capacity.release();
+            batch.add(update);
+
+            if (batch.size() == batchSize) {
+                flushed += writeBatch(batch);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            flushed += writeBatch(batch);
+        }
+        return flushed;
+    }
+
+    private int writeBatch(List<PendingUpdate> batch) {
+        long start = System.nanoTime();
+        try {
+            jdbcTemplate.batchUpdate(UPDATE_SQL, batch, batch.size(), (ps, update) -> {
+                ps.setLong(1, update.lastSeen());
+                ps.setString(2, update.ip());
+                ps.setInt(3, update.port());
+                ps.setString(4, update.email());
+                ps.setLong(5, update.lastSeen());
+            });
+            flushedCounter.increment(batch.size());
+            return batch.size();
+        } catch (DataAccessException e) {
+            log.error("Failed to flush {} presence updates, re-queueing", batch.size(), e);
+            batch.forEach(this::requeue);
+            return 0;
+        } finally {
+            flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void requeue(PendingUpdate update) {
+        if (pending.computeIfPresent(update.email(), (key, current) -> newest(current, update)) != null) {
+            return;
+        }
+        if (!capacity.tryAcquire()) {
+            failedCounter.increment();
+            return;
+        }
+        if (pending.putIfAbsent(update.email(), update) != null) {
+            capacity.release();
+            pending.computeIfPresent(update.email(), (key, current) -> newest(current, update));
+        }
+    }
+
+    private static PendingUpdate newest(PendingUpdate current, PendingUpdate candidate) {
+        return candidate.lastSeen() >= current.lastSeen() ? candidate : current;
+    }
+
+    private record PendingUpdate(String email, long lastSeen, String ip, int port) {
+    }
+}
@@ -0,0 +1,120 @@
+package qt.test.backend_proj.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import javax.net.ssl.SSLSession;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts full vs. resumed TLS handshakes per listener.
+ * <p>
+ * A full handshake with {@code client-auth=need} always verifies the client certificate, while a resumed one does not.
+ * The trust manager reports the session of every handshake that verified a certificate, and each new connection
+ * is then classified by looking up its session id. This works for TLS 1.2 (resumption reuses the session id)
+ * and TLS 1.3 (every connection gets a fresh session id).
+ */
+@Service
+@RequiredArgsConstructor
+public class TlsHandshakeMetrics {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final MeterRegistry meterRegistry;
+
+    // Session ids of completed full handshakes that no connection has been attributed to yet
+    private final Cache<String, Boolean> verifiedSessions = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(Duration.ofMinutes(5))
+            .build();
+
+    private final Map<String, ListenerMeters> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * Called by the trust manager after it verified a client certificate during a handshake.
+     */
+    public void recordClientVerification(SSLSession handshakeSession) {
+        if (handshakeSession != null) {
+            verifiedSessions.put(sessionId(handshakeSession), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Records a handshake whose duration was measured by the listener.
+     *
+     * @return true when it was a full handshake
+     */
+    public boolean recordHandshake(String listener, SSLSession session, long durationNanos) {
+        boolean full = classify(sessionId(session));
+        ListenerMeters meters = meters(listener);
+        (full ? meters.full : meters.resumed).increment();
+        (full ? meters.fullDuration : meters.resumedDuration).record(durationNanos, TimeUnit.NANOSECONDS);
+        return full;
+    }
+
+    /**
+     * Records the first request seen on a new connection, identified by its hex session id.
+     */
+    public boolean recordConnection(String listener, String sessionId) {
+        boolean full = classify(sessionId);
+        ListenerMeters meters = meters(listener);
+        (full ? meters.full : meters.resumed).increment();
+        return full;
+    }
+
+    private boolean classify(String sessionId) {
+        return verifiedSessions.asMap().remove(sessionId) != null;
+    }
+
+    private ListenerMeters meters(String listener) {
+        return listeners.computeIfAbsent(listener, this::registerMeters);
+    }
+
+    private ListenerMeters registerMeters(String listener) {
+        Counter full = Counter.builder("tls.handshakes")
+                .description("TLS connections by handshake type")
+                .tags("listener", listener, "type", "full")
+                .register(meterRegistry);
+        Counter resumed = Counter.builder("tls.handshakes")
+                .description("TLS connections by handshake type")
+                .tags("listener", listener, "type", "resumed")
+                .register(meterRegistry);
+        Timer fullDuration = Timer.builder("tls.handshake.duration")
+                .description("Time to complete a TLS handshake")
+                .tags("listener", listener, "type", "full")
+                .register(meterRegistry);
+        Timer resumedDuration = Timer.builder("tls.handshake.duration")
+                .description("Time to complete a TLS handshake")
+                .tags("listener", listener, "type", "resumed")
+                .register(meterRegistry);
+
+        ListenerMeters meters = new ListenerMeters(full, resumed, fullDuration, resumedDuration);
+        Gauge.builder("tls.session.cache.hit_ratio", meters, ListenerMeters::hitRatio)
+                .description("Share of TLS connections that resumed a cached session")
+                .tag("listener", listener)
+                .register(meterRegistry);
+        return meters;
+    }
+
+    private static String sessionId(SSLSession session) {
+        return HEX.formatHex(session.getId());
+    }
+
+    private record ListenerMeters(Counter full, Counter resumed, Timer fullDuration, Timer resumedDuration) {
+
+        double hitRatio() {
+            double total = full.count() + resumed.count();
+            return total == 0 ? 0 : resumed.count() / total;
+        }
+    }
+}
@@ -1,72 +1,426 @@
 package qt.test.backend_proj.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import com.google.protobuf.CodedOutputStream;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import qt.test.backend_proj.proto.PresenceBatch;
+import qt.test.backend_proj.proto.PresenceUpdate;
+import qt.test.backend_proj.util.PresenceMessages;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Broadcasts presence updates over UDP.
+ * <p>
+ * The legacy format sends one record per datagram:
+ * [email_length:4][email:variable][lastSeen:8][ip_length:4][ip:variable][port:4]
+ * <p>
+ * The framed format packs several records into one datagram:
+ * [version:1][record_count:2][record]...
+ * The protobuf format carries a {@link PresenceBatch} instead:
+ * [version:1 = 2][PresenceBatch]
+ * Legacy datagrams always start with a zero byte (the high byte of the email length),
+ * so a non-zero first byte identifies a frame and its version.
+ * <p>
+ * An offline announcement is a record with an empty IP and port 0 carrying the user's last heartbeat time;
+ * in protobuf it also sets {@code offline}.
+ */
 @Slf4j
 @Service
+@RequiredArgsConstructor
 public class UdpBroadcastService {
 
-    private static final int BROADCAST_SOURCE_PORT = 6668;
-    private static final int BROADCAST_DEST_PORT = 6667;
-    private DatagramSocket socket;
+    // Largest payload that fits in a single UDP datagram
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    static final byte FRAME_VERSION = 1;
+    static final byte PROTOBUF_FRAME_VERSION = 2;
+    private static final int MAX_FRAME_RECORDS = 0xFFFF;
+    private static final long SENDER_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${udp.broadcast.mode:sync}")
+    private String mode;
+
+    @Value("${udp.broadcast.address:255.255.255.255}")
+    private String broadcastAddress;
+
+    @Value("${udp.broadcast.port:6667}")
+    private int broadcastDestPort;
+
+    @Value("${udp.broadcast.source-port:6668}")
+    private int broadcastSourcePort;
+
+    @Value("${udp.broadcast.queue-capacity:65536}")
+    private int queueCapacity;
+
+    @Value("${udp.broadcast.format:legacy}")
+    private String format;
+
+    // Keep frames below a typical Ethernet MTU so they are never IP-fragmented
+    @Value("${udp.broadcast.max-frame-bytes:1400}")
+    private int maxFrameBytes;
+
+    @Value("${udp.broadcast.linger-ms:5}")
+    private long lingerMs;
+
+    // Version byte of outgoing frames, 0 for legacy single-record datagrams
+    private byte frameVersion;
+
+    private DatagramChannel channel;
+    private InetSocketAddress destination;
+
+    // Async mode: lock-free queue bounded by an explicit counter, drained by one sender thread
+    private final ConcurrentLinkedQueue<BroadcastUpdate> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private Thread sender;
+    private volatile boolean senderParked;
+    private volatile boolean running;
+
+    private Counter sentCounter;
+    private Counter recordsCounter;
+    private Counter droppedCounter;
+    private Counter queueFullCounter;
 
     @PostConstruct
-    public void init() throws SocketException {
-        socket = new DatagramSocket(BROADCAST_SOURCE_PORT);
-        socket.setBroadcast(true);
-        log.info("UDP Broadcast service initialized on port {}", BROADCAST_SOURCE_PORT);
+    public void init() throws IOException {
+        // Resolve the destination once instead of per broadcast
+        destination = new InetSocketAddress(InetAddress.getByName(broadcastAddress), broadcastDestPort);
+
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        channel.bind(new InetSocketAddress(broadcastSourcePort));
+
+        if ("framed".equalsIgnoreCase(format)) {
+            frameVersion = FRAME_VERSION;
+        } else if ("protobuf".equalsIgnoreCase(format)) {
+            frameVersion = PROTOBUF_FRAME_VERSION;
+        }
+        maxFrameBytes = Math.min(maxFrameBytes, MAX_DATAGRAM_SIZE);
+
+        sentCounter = meterRegistry.counter("udp.broadcast.sent");
+        recordsCounter = meterRegistry.counter("udp.broadcast.records");
+        droppedCounter = meterRegistry.counter("udp.broadcast.dropped");
+        queueFullCounter = meterRegistry.counter("udp.broadcast.queue_full");
+
+        if ("async".equalsIgnoreCase(mode)) {
+            channel.configureBlocking(false);
+            Gauge.builder("udp.broadcast.queue.depth", queued, AtomicInteger::get)
+                    .description("Broadcasts waiting for the sender thread")
+                    .register(meterRegistry);
+
+            running = true;
+            sender = new Thread(this::runSender, "udp-broadcast-sender");
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        log.info("UDP Broadcast service initialized on port {} ({} mode, {} format, destination {})",
+                broadcastSourcePort, mode, format, destination);
     }
 
     @PreDestroy
-    public void cleanup() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+    public void cleanup() throws InterruptedException {
+        if (sender != null) {
+            running = false;
+            LockSupport.unpark(sender);
+            sender.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        if (channel != null && channel.isOpen()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Failed to close UDP broadcast channel", e);
+            }
             log.info("UDP Broadcast service closed");
         }
     }
 
     public void broadcastUserUpdate(String email, long lastSeen, String ip, int port) {
-        try {
-            byte[] message = createBinaryMessage(email, lastSeen, ip, port);
+        broadcast(new BroadcastUpdate(email, lastSeen, ip, port, false));
+    }
 
-            // Broadcast to 255.255.255.255
-            InetAddress broadcastAddress = InetAddress.getByName("255.255.255.255");
-            DatagramPacket packet = new DatagramPacket(
-                    message,
-                    message.length,
-                    broadcastAddress,
-                    BROADCAST_DEST_PORT
-            );
+    /**
+     * Announces that the user's heartbeats stopped, {@code lastSeen} being the last one.
+     */
+    public void broadcastOffline(String email, long lastSeen) {
+        broadcast(new BroadcastUpdate(email, lastSeen, "", 0, true));
+    }
 
-            socket.send(packet);
-            log.info("Broadcasted update for user: {} to port {}", email, BROADCAST_DEST_PORT);
+    private void broadcast(BroadcastUpdate update) {
+        if (sender != null) {
+            enqueue(update);
+            return;
+        }
+
+        try {
+            ByteBuffer datagram;
+            if (frameVersion == PROTOBUF_FRAME_VERSION) {
+                byte[] batch = PresenceBatch.newBuilder()
+                        .addUpdates(toMessage(update))
+                        .build()
+                        .toByteArray();
+                datagram = ByteBuffer.allocate(1 + batch.length);
+                datagram.put(PROTOBUF_FRAME_VERSION).put(batch).flip();
+            } else if (frameVersion == FRAME_VERSION) {
+                // A frame holding a single record
+                byte[] message = createBinaryMessage(update.email(), update.lastSeen(), update.ip(), update.port());
+                datagram = ByteBuffer.allocate(frameHeaderSize() + message.length);
+                datagram.put(FRAME_VERSION).putShort((short) 1).put(message).flip();
+            } else {
+                datagram = ByteBuffer.wrap(
+                        createBinaryMessage(update.email(), update.lastSeen(), update.ip(), update.port()));
+            }
+            channel.send(datagram, destination);
+            sentCounter.increment();
+            recordsCounter.increment();
+            log.debug("Broadcasted update for user: {} to port {}", update.email(), broadcastDestPort);
 
         } catch (IOException e) {
+            droppedCounter.increment();
             log.error("Failed to broadcast user update", e);
         }
     }
 
+    private void enqueue(BroadcastUpdate update) {
+        // Reserve a slot first so the queue never grows past its capacity
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            queueFullCounter.increment();
+            return;
+        }
+        queue.offer(update);
+        if (senderParked) {
+            LockSupport.unpark(sender);
+        }
+    }
+
+    private void runSender() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        long lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+
+        // Records in the frame being built, and when that frame must go out at the latest
+        int frameRecords = 0;
+        long frameDeadline = 0;
+
+        while (running || !queue.isEmpty()) {
+            BroadcastUpdate update = queue.poll();
+            if (update == null) {
+                long waitNanos = SENDER_IDLE_PARK_NANOS;
+                if (frameRecords > 0) {
+                    waitNanos = frameDeadline - System.nanoTime();
+                    if (waitNanos <= 0 || !running) {
+                        sendFrame(buffer, frameRecords);
+                        frameRecords = 0;
+                        continue;
+                    }
+                }
+                senderParked = true;
+                // Re-check after publishing the flag so a concurrent enqueue is never missed
+                if (queue.isEmpty() && running) {
+                    LockSupport.parkNanos(this, waitNanos);
+                }
+                senderParked = false;
+                continue;
+            }
+            queued.decrementAndGet();
+
+            if (frameVersion == 0) {
+                buffer.clear();
+                if (appendRecord(buffer, encoder, update)) {
+                    buffer.flip();
+                    send(buffer, 1);
+                }
+                continue;
+            }
+
+            if (frameRecords == 0) {
+                startFrame(buffer);
+                frameDeadline = System.nanoTime() + lingerNanos;
+            }
+            if (!appendRecord(buffer, encoder, update)) {
+                if (frameRecords == 0) {
+                    // A single record larger than a frame can never be sent
+                    continue;
+                }
+                // Frame is full: send it and start the next one with this record
+                sendFrame(buffer, frameRecords);
+                startFrame(buffer);
+                frameDeadline = System.nanoTime() + lingerNanos;
+                frameRecords = 0;
+                if (!appendRecord(buffer, encoder, update)) {
+                    continue;
+                }
+            }
+
+            frameRecords++;
+            if (frameRecords == MAX_FRAME_RECORDS || System.nanoTime() - frameDeadline >= 0) {
+                sendFrame(buffer, frameRecords);
+                frameRecords = 0;
+            }
+        }
+
+        if (frameRecords > 0) {
+            sendFrame(buffer, frameRecords);
+        }
+    }
+
+    private int frameHeaderSize() {
+        // Binary frames carry a record count; protobuf batches are self-delimiting
+        return frameVersion == FRAME_VERSION ? 3 : 1;
+    }
+
+    private void startFrame(ByteBuffer buffer) {
+        buffer.clear();
+        buffer.limit(maxFrameBytes);
+        buffer.put(frameVersion);
+        if (frameVersion == FRAME_VERSION) {
+            // Record count is filled in when the frame is sent
+            buffer.putShort((short) 0);
+        }
+    }
+
+    private void sendFrame(ByteBuffer buffer, int records) {
+        if (frameVersion == FRAME_VERSION) {
+            buffer.putShort(1, (short) records);
+        }
+        buffer.flip();
+        send(buffer, records);
+    }
+
+    private void send(ByteBuffer datagram, int records) {
+        try {
+            if (channel.send(datagram, destination) == 0) {
+                // Socket send buffer is full; UDP is best effort so drop rather than stall
+                droppedCounter.increment(records);
+            } else {
+                sentCounter.increment();
+                recordsCounter.increment(records);
+            }
+        } catch (IOException e) {
+            droppedCounter.increment(records);
+            log.warn("Failed to send UDP broadcast of {} records", records, e);
+        }
+    }
+
+    /**
+     * Appends one record, leaving the buffer untouched when it does not fit.
+     */
+    private boolean appendRecord(ByteBuffer buffer, CharsetEncoder encoder, BroadcastUpdate update) {
+        int start = buffer.position();
+        try {
+            if (frameVersion == PROTOBUF_FRAME_VERSION) {
+                encodeProtobuf(buffer, update);
+            } else {
+                encode(buffer, encoder, update);
+            }
+            return true;
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            if (start <= frameHeaderSize()) {
+                droppedCounter.increment();
+                log.warn("Broadcast record for user {} does not fit in a datagram", update.email());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Appends the update as one repeated {@code updates} field of a {@link PresenceBatch}.
+     */
+    private static void encodeProtobuf(ByteBuffer buffer, BroadcastUpdate update) {
+        PresenceUpdate message = toMessage(update);
+        if (CodedOutputStream.computeMessageSize(PresenceBatch.UPDATES_FIELD_NUMBER, message) > buffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(buffer);
+            output.writeMessage(PresenceBatch.UPDATES_FIELD_NUMBER, message);
+            // Flushing advances the buffer position past the written bytes
+            output.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Protobuf encoding into a sized buffer failed", e);
+        }
+    }
+
+    private static PresenceUpdate toMessage(BroadcastUpdate update) {
+        return update.offline()
+                ? PresenceMessages.offline(update.email(), update.lastSeen())
+                : PresenceMessages.presenceUpdate(update.email(), update.lastSeen(), update.ip(), update.port());
+    }
+
+    /**
+     * Encodes the same layout as {@link #createBinaryMessage} directly into a reused buffer.
+     */
+    private static void encode(ByteBuffer buffer, CharsetEncoder encoder, BroadcastUpdate update) {
+        putString(buffer, encoder, update.email());
+        buffer.putLong(update.lastSeen());
+        putString(buffer, encoder, update.ip());
+        buffer.putInt(update.port());
+    }
+
+    /**
+     * Writes [length:4][utf-8 bytes], back-filling the length once the bytes are written.
+     */
+    private static void putString(ByteBuffer buffer, CharsetEncoder encoder, String value) {
+        int lengthPosition = buffer.position();
+        int start = lengthPosition + 4;
+        buffer.position(start);
+
+        // ASCII fast path covers emails and textual IPs without touching the encoder
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                buffer.position(start);
+                encoder.reset();
+                CoderResult result = encoder.encode(CharBuffer.wrap(value), buffer, true);
+                if (result.isOverflow() || encoder.flush(buffer).isOverflow()) {
+                    throw new BufferOverflowException();
+                }
+                break;
+            }
+            buffer.put((byte) c);
+        }
+
+        buffer.putInt(lengthPosition, buffer.position() - start);
+    }
+
     /**
      * Creates a simple binary message format:
      * [email_length:4][email:variable][lastSeen:8][ip_length:4][ip:variable][port:4]
      */
-    private byte[] createBinaryMessage(String email, long lastSeen, String ip, int port) throws IOException {
+    byte[] createBinaryMessage(String email, long lastSeen, String ip, int port) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
 
         // Write email
-        byte[] emailBytes = email.getBytes();
+        byte[] emailBytes = email.getBytes(StandardCharsets.UTF_8);
         dos.writeInt(emailBytes.length);
         dos.write(emailBytes);
 
@@ -74,7 +428,7 @@ public class UdpBroadcastService {
         dos.writeLong(lastSeen);
 
         // Write IP
-        byte[] ipBytes = ip.getBytes();
+        byte[] ipBytes = ip.getBytes(StandardCharsets.UTF_8);
         dos.writeInt(ipBytes.length);
         dos.write(ipBytes);
 
@@ -84,4 +438,7 @@ public class UdpBroadcastService {
         dos.flush();
         return baos.toByteArray();
     }
+
+    private record BroadcastUpdate(String email, long lastSeen, String ip, int port, boolean offline) {
+    }
 }
@@ -0,0 +1,21 @@
+package qt.test.backend_proj.util;
+
+import java.util.regex.Pattern;
+
+/**
+ * Email format check shared by registration and certificate CN validation.
+ */
+public final class EmailValidator {
+
+    // Email validation pattern
+    private static final Pattern EMAIL_PATTERN = Pattern.compile(
+            "^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$"
+    );
+
+    private EmailValidator() {
+    }
+
+    public static boolean isValid(String email) {
+        return email != null && EMAIL_PATTERN.matcher(email).matches();
+    }
+}
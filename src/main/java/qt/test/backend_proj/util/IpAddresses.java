@@ -0,0 +1,76 @@
+package qt.test.backend_proj.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Converts textual IP addresses to raw address bytes without ever triggering a DNS lookup.
+ */
+public final class IpAddresses {
+
+    private IpAddresses() {
+    }
+
+    /**
+     * Returns the 4-byte IPv4 or 16-byte IPv6 address for an IP literal,
+     * or null when the text is not a literal (e.g. a hostname or an X-Forwarded-For list).
+     */
+    public static byte[] toBytes(String ip) {
+        if (ip == null || ip.isEmpty()) {
+            return null;
+        }
+        if (ip.indexOf(':') >= 0) {
+            // Text containing ':' is only ever parsed as an IPv6 literal, never resolved
+            try {
+                return InetAddress.getByName(ip).getAddress();
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        return parseIpv4(ip);
+    }
+
+    /**
+     * Formats raw 4 or 16 byte address bytes as an IP literal, or returns null for any other length.
+     */
+    public static String toText(byte[] address) {
+        if (address.length != 4 && address.length != 16) {
+            return null;
+        }
+        try {
+            // getByAddress only formats the raw bytes, it never performs a lookup
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static byte[] parseIpv4(String ip) {
+        byte[] address = new byte[4];
+        int octet = 0;
+        int value = 0;
+        int digits = 0;
+
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && digits > 0 && octet < 3) {
+                address[octet++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                return null;
+            }
+        }
+
+        if (octet != 3 || digits == 0) {
+            return null;
+        }
+        address[3] = (byte) value;
+        return address;
+    }
+}
@@ -0,0 +1,67 @@
+package qt.test.backend_proj.util;
+
+/**
+ * Bloom filter over 64-bit keys, sized for an expected number of keys and false positive rate.
+ * A lookup is a few multiplications and k probes into one bit array, with no allocation, so a negative answer
+ * costs a few tens of nanoseconds regardless of how many keys were added.
+ * <p>
+ * Not thread-safe while keys are being added; fill it, then publish it, e.g. through a volatile field.
+ */
+public final class LongBloomFilter {
+
+    // 512 MB of bits
+    private static final long MAX_BITS = 1L << 32;
+    private static final int MAX_HASHES = 16;
+
+    private final long[] words;
+    private final long bitMask;
+    private final int hashes;
+
+    public LongBloomFilter(long expectedKeys, double falsePositiveRate) {
+        long keys = Math.max(1, expectedKeys);
+        // m = -n ln p / (ln 2)^2, rounded up to a power of two so a probe is a mask instead of a division
+        double optimalBits = -keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long bits = Math.max(Long.SIZE, Math.min(MAX_BITS, Long.highestOneBit((long) Math.ceil(optimalBits) - 1) << 1));
+        words = new long[(int) (bits / Long.SIZE)];
+        bitMask = bits - 1;
+        // k = m / n ln 2 for the actual m
+        hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) bits / keys * Math.log(2))));
+    }
+
+    public void put(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the key was never added, true if it probably was
+     */
+    public boolean mightContain(long key) {
+        long h1 = mix(key);
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long bitSize() {
+        return bitMask + 1;
+    }
+
+    /**
+     * MurmurHash3's 64-bit finalizer, so keys that differ in a few bits land far apart.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,49 @@
+package qt.test.backend_proj.util;
+
+import com.google.protobuf.ByteString;
+import qt.test.backend_proj.proto.PresenceUpdate;
+
+/**
+ * Builds protobuf presence messages from the values stored on a user.
+ */
+public final class PresenceMessages {
+
+    private PresenceMessages() {
+    }
+
+    public static PresenceUpdate presenceUpdate(String email, long lastSeen, String ip, int port) {
+        PresenceUpdate.Builder builder = PresenceUpdate.newBuilder()
+                .setEmail(email)
+                .setLastSeen(lastSeen)
+                .setPort(port);
+
+        byte[] address = IpAddresses.toBytes(ip);
+        if (address != null) {
+            builder.setIp(ByteString.copyFrom(address));
+        } else if (ip != null) {
+            builder.setIpText(ip);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns the update's IP as text, the reverse of {@link #presenceUpdate}.
+     */
+    public static String ip(PresenceUpdate update) {
+        if (!update.getIp().isEmpty()) {
+            String ip = IpAddresses.toText(update.getIp().toByteArray());
+            if (ip != null) {
+                return ip;
+            }
+        }
+        return update.getIpText();
+    }
+
+    public static PresenceUpdate offline(String email, long lastSeen) {
+        return PresenceUpdate.newBuilder()
+                .setEmail(email)
+                .setLastSeen(lastSeen)
+                .setOffline(true)
+                .build();
+    }
+}
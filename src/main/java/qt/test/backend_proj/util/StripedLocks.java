@@ -0,0 +1,42 @@
+package qt.test.backend_proj.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks selected by key hash, so work on one key is serialized without a lock object per key.
+ * Two keys only wait for each other when they hash to the same stripe, which more stripes make rarer.
+ */
+public final class StripedLocks {
+
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public StripedLocks(int stripes) {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Index of the key's lock, for callers keeping per-stripe state guarded by it.
+     */
+    public int stripe(Object key) {
+        int hash = key.hashCode();
+        // Mix the high bits into the masked low ones, as HashMap does
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    public ReentrantLock lock(int stripe) {
+        return locks[stripe];
+    }
+
+    public int size() {
+        return locks.length;
+    }
+}
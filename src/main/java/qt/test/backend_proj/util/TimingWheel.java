@@ -0,0 +1,168 @@
+package qt.test.backend_proj.util;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: four levels of 64 slots, each level's slot spanning a whole turn of the level below.
+ * Scheduling, rescheduling and cancelling are O(1) regardless of how many timers are pending, and advancing one
+ * tick only touches the timers due in it (plus, every 64 ticks, the ones cascading down from a higher level).
+ * <p>
+ * Timers are intrusive: a scheduled object extends {@link Timer}, so scheduling allocates nothing.
+ * Deadlines beyond the wheel's range (64^4 ticks) are parked in the last level and re-placed when reached.
+ * Not thread-safe; meant to be driven by a single thread.
+ */
+public final class TimingWheel<T extends TimingWheel.Timer> {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final long MAX_DELAY = (1L << (LEVELS * SLOT_BITS)) - 1;
+
+    // Head of each slot's doubly linked list
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long startTick) {
+        this.currentTick = startTick;
+    }
+
+    /**
+     * Schedules the timer to expire at {@code deadlineTick}, moving it if it is already scheduled.
+     * A deadline that is not after the current tick expires on the next tick.
+     */
+    public void schedule(T timer, long deadlineTick) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        }
+        // Never the current slot: it has already been processed for this tick
+        place(timer, deadlineTick, 1);
+        size++;
+    }
+
+    /**
+     * Removes the timer if it is scheduled.
+     */
+    public void cancel(T timer) {
+        if (timer.isScheduled()) {
+            unlink(timer);
+        }
+    }
+
+    /**
+     * Advances to {@code toTick}, handing every timer whose deadline has been reached to {@code expired}.
+     * Expired timers are unscheduled before the callback runs, so it may schedule them again.
+     */
+    @SuppressWarnings("unchecked")
+    public void advance(long toTick, Consumer<? super T> expired) {
+        while (currentTick < toTick) {
+            long tick = ++currentTick;
+
+            // At the start of each turn of a level, spread the matching slot of the level above over it
+            for (int level = 1; level < LEVELS && (tick & ((1L << (level * SLOT_BITS)) - 1)) == 0; level++) {
+                cascade(level, (int) (tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+            }
+
+            int slot = (int) tick & SLOT_MASK;
+            Timer timer = slots[0][slot];
+            slots[0][slot] = null;
+            while (timer != null) {
+                Timer next = timer.next;
+                detach(timer);
+                size--;
+                if (timer.deadline > tick) {
+                    // Parked beyond the wheel's range
+                    place(timer, timer.deadline, 1);
+                    size++;
+                } else {
+                    expired.accept((T) timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    public long currentTick() {
+        return currentTick;
+    }
+
+    /**
+     * Number of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    private void cascade(int level, int slot) {
+        Timer timer = slots[level][slot];
+        slots[level][slot] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            detach(timer);
+            // Cascading runs before the current slot is processed, so timers due now still fire this tick
+            place(timer, timer.deadline, 0);
+            timer = next;
+        }
+    }
+
+    private void place(Timer timer, long deadline, long minDelay) {
+        timer.deadline = deadline;
+        long delay = Math.min(Math.max(deadline - currentTick, minDelay), MAX_DELAY);
+        long tick = currentTick + delay;
+        int level = 0;
+        while (delay >= 1L << ((level + 1) * SLOT_BITS)) {
+            level++;
+        }
+        int slot = (int) (tick >>> (level * SLOT_BITS)) & SLOT_MASK;
+
+        Timer head = slots[level][slot];
+        timer.next = head;
+        timer.prev = null;
+        if (head != null) {
+            head.prev = timer;
+        }
+        slots[level][slot] = timer;
+        timer.level = level;
+        timer.slot = slot;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.level][timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        detach(timer);
+        size--;
+    }
+
+    private static void detach(Timer timer) {
+        timer.next = null;
+        timer.prev = null;
+        timer.level = -1;
+    }
+
+    /**
+     * Link fields of a timer. Only the wheel that schedules it may touch them.
+     */
+    public static class Timer {
+
+        private Timer prev;
+        private Timer next;
+        private long deadline;
+        private int level = -1;
+        private int slot;
+
+        public boolean isScheduled() {
+            return level >= 0;
+        }
+
+        public long deadline() {
+            return deadline;
+        }
+    }
+}
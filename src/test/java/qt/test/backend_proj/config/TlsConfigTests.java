@@ -0,0 +1,31 @@
+package qt.test.backend_proj.config;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.coyote.http2.Http2Protocol;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TlsConfigTests {
+
+	@Test
+	void appliesTheStreamLimitsToTheHttp2UpgradeProtocol() {
+		Connector connector = new Connector("HTTP/1.1");
+		Http2Protocol http2Protocol = new Http2Protocol();
+		connector.addUpgradeProtocol(http2Protocol);
+
+		new TlsConfig().http2Customizer(1000, 200).customize(connector);
+
+		assertThat(http2Protocol.getMaxConcurrentStreams()).isEqualTo(1000);
+		assertThat(http2Protocol.getMaxConcurrentStreamExecution()).isEqualTo(200);
+	}
+
+	@Test
+	void leavesAConnectorWithoutHttp2Alone() {
+		Connector connector = new Connector("HTTP/1.1");
+
+		new TlsConfig().http2Customizer(1000, 200).customize(connector);
+
+		assertThat(connector.findUpgradeProtocols()).isEmpty();
+	}
+}
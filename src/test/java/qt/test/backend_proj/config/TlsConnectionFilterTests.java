@@ -0,0 +1,55 @@
+package qt.test.backend_proj.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import qt.test.backend_proj.service.TlsHandshakeMetrics;
+
+import javax.net.ssl.SSLSession;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TlsConnectionFilterTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final TlsHandshakeMetrics metrics = new TlsHandshakeMetrics(registry);
+	private final TlsConnectionFilter filter = new TlsConnectionFilter(metrics);
+
+	@Test
+	void classifiesEachConnectionOnItsFirstRequest() throws Exception {
+		SSLSession verified = mock(SSLSession.class);
+		when(verified.getId()).thenReturn(new byte[]{(byte) 0xab, 0x01});
+		metrics.recordClientVerification(verified);
+
+		// Full handshake, then a second request on the same keep-alive connection
+		request(5000, "ab01");
+		request(5000, "ab01");
+		// A new connection resuming the same TLS 1.2 session
+		request(5001, "ab01");
+		// A plain HTTP request carries no session id
+		request(5002, null);
+
+		assertThat(handshakes("full")).isEqualTo(1.0);
+		assertThat(handshakes("resumed")).isEqualTo(1.0);
+	}
+
+	private void request(int remotePort, String sessionId) throws Exception {
+		MockHttpServletRequest request = new MockHttpServletRequest("PATCH", "/api/update");
+		request.setRemoteAddr("10.0.0.1");
+		request.setRemotePort(remotePort);
+		if (sessionId != null) {
+			request.setAttribute("jakarta.servlet.request.ssl_session_id", sessionId);
+		}
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+		assertThat(chain.getRequest()).isSameAs(request);
+	}
+
+	private double handshakes(String type) {
+		return registry.get("tls.handshakes").tags("listener", "https", "type", type).counter().count();
+	}
+}
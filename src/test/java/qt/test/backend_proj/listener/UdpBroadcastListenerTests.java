@@ -0,0 +1,160 @@
+package qt.test.backend_proj.listener;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qt.test.backend_proj.proto.PresenceBatch;
+import qt.test.backend_proj.util.PresenceMessages;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Decoding into the presence table of client/UdpBroadcastListener. The listener is a standalone source file in
+ * the default package, so it is compiled here and reached through method handles.
+ */
+class UdpBroadcastListenerTests {
+
+	private static final String EMAIL = "user@example.com";
+
+	@TempDir
+	static Path classes;
+
+	private static MethodHandle decode;
+	private static MethodHandle get;
+	private static MethodHandle offline;
+	private static MethodHandle port;
+	private static Constructor<?> newDecoder;
+	private static Constructor<?> newTable;
+
+	private Object decoder;
+	private Object table;
+
+	@BeforeAll
+	static void compileListener() throws Throwable {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertThat(compiler.run(null, null, null, "-d", classes.toString(), "client/UdpBroadcastListener.java"))
+				.isZero();
+		ClassLoader loader = new URLClassLoader(new URL[]{classes.toUri().toURL()},
+				UdpBroadcastListenerTests.class.getClassLoader());
+
+		Class<?> decoderClass = loader.loadClass("UdpBroadcastListener$InPlaceDecoder");
+		Class<?> consumerClass = loader.loadClass("UdpBroadcastListener$RecordConsumer");
+		Class<?> tableClass = loader.loadClass("UdpBroadcastListener$PresenceTable");
+		Class<?> recordClass = loader.loadClass("UdpBroadcastListener$PresenceRecord");
+		decode = MethodHandles.privateLookupIn(decoderClass, MethodHandles.lookup())
+				.findVirtual(decoderClass, "decode", MethodType.methodType(int.class, ByteBuffer.class, consumerClass))
+				.asType(MethodType.methodType(int.class, Object.class, ByteBuffer.class, Object.class));
+		get = MethodHandles.privateLookupIn(tableClass, MethodHandles.lookup())
+				.findVirtual(tableClass, "get", MethodType.methodType(recordClass, String.class))
+				.asType(MethodType.methodType(Object.class, Object.class, String.class));
+		offline = MethodHandles.privateLookupIn(recordClass, MethodHandles.lookup())
+				.findVirtual(recordClass, "offline", MethodType.methodType(boolean.class))
+				.asType(MethodType.methodType(boolean.class, Object.class));
+		port = MethodHandles.privateLookupIn(recordClass, MethodHandles.lookup())
+				.findVirtual(recordClass, "port", MethodType.methodType(int.class))
+				.asType(MethodType.methodType(int.class, Object.class));
+		newDecoder = decoderClass.getDeclaredConstructor();
+		newDecoder.setAccessible(true);
+		newTable = tableClass.getDeclaredConstructor();
+		newTable.setAccessible(true);
+	}
+
+	@BeforeEach
+	void setUp() throws Exception {
+		decoder = newDecoder.newInstance();
+		table = newTable.newInstance();
+	}
+
+	@Test
+	void offlineAnnouncementReplacesTheHeartbeatItFollows() throws Throwable {
+		assertThat(receive(legacyRecord(100L, "10.0.0.1", 5000))).isEqualTo(1);
+		assertThat(isOffline()).isFalse();
+
+		// Expiry announces offline with the lastSeen of the last heartbeat
+		assertThat(receive(legacyRecord(100L, "", 0))).isEqualTo(1);
+		assertThat(isOffline()).isTrue();
+
+		// A late duplicate of that heartbeat does not bring the user back
+		receive(legacyRecord(100L, "10.0.0.1", 5000));
+		assertThat(isOffline()).isTrue();
+		receive(legacyRecord(101L, "10.0.0.1", 5000));
+		assertThat(isOffline()).isFalse();
+	}
+
+	@Test
+	void skipsAKnownProtobufFieldWithAnUnexpectedWireType() throws Throwable {
+		// last_seen (field 2) sent as a length-delimited field instead of a varint
+		ByteArrayOutputStream update = new ByteArrayOutputStream();
+		CodedOutputStream out = CodedOutputStream.newInstance(update);
+		out.writeString(1, EMAIL);
+		out.writeBytes(2, ByteString.copyFromUtf8("not a varint"));
+		out.writeUInt32(4, 5000);
+		out.writeBytes(3, ByteString.copyFrom(new byte[]{10, 0, 0, 1}));
+		out.flush();
+
+		assertThat(receive(protobufFrame(update.toByteArray()))).isEqualTo(1);
+		assertThat((int) port.invokeExact(get.invokeExact(table, EMAIL))).isEqualTo(5000);
+	}
+
+	@Test
+	void decodesAProtobufOfflineUpdate() throws Throwable {
+		receive(protobufFrame(PresenceMessages.presenceUpdate(EMAIL, 100L, "10.0.0.1", 5000).toByteArray()));
+		receive(protobufFrame(PresenceMessages.offline(EMAIL, 100L).toByteArray()));
+
+		assertThat(isOffline()).isTrue();
+	}
+
+	private int receive(byte[] datagram) throws Throwable {
+		return (int) decode.invokeExact(decoder, ByteBuffer.wrap(datagram), table);
+	}
+
+	private boolean isOffline() throws Throwable {
+		return (boolean) offline.invokeExact(get.invokeExact(table, EMAIL));
+	}
+
+	/**
+	 * [version:1 = 2][PresenceBatch] holding the one encoded update.
+	 */
+	private static byte[] protobufFrame(byte[] update) throws Exception {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		frame.write(2);
+		CodedOutputStream out = CodedOutputStream.newInstance(frame);
+		out.writeBytes(PresenceBatch.UPDATES_FIELD_NUMBER, ByteString.copyFrom(update));
+		out.flush();
+		return frame.toByteArray();
+	}
+
+	/**
+	 * [email_length:4][email:variable][lastSeen:8][ip_length:4][ip:variable][port:4]
+	 */
+	private static byte[] legacyRecord(long lastSeen, String ip, int port) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] email = EMAIL.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(email.length);
+		out.write(email);
+		out.writeLong(lastSeen);
+		byte[] address = ip.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(address.length);
+		out.write(address);
+		out.writeInt(port);
+		return bytes.toByteArray();
+	}
+}
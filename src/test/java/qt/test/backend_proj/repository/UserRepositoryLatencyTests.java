@@ -0,0 +1,106 @@
+package qt.test.backend_proj.repository;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import qt.test.backend_proj.model.User;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares the two-round-trip find+save paths with the single-statement
+ * {@link UserRepository#touch} and {@link UserRepository#insertIfAbsent}.
+ * Needs the Postgres database from application.properties, so it only runs with
+ * {@code mvn test -Dtest=UserRepositoryLatencyTests -Dbenchmark=true}. Every statement commits on its own, as
+ * on the request path, so the rows each test creates are deleted afterwards instead of rolled back.
+ */
+@Slf4j
+@SpringBootTest
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class UserRepositoryLatencyTests {
+
+	private static final int WARMUP = 500;
+	private static final int ITERATIONS = 5_000;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	// Every email created by this test starts with it
+	private final String prefix = "latency-" + UUID.randomUUID();
+
+	@AfterEach
+	void deleteUsers() {
+		int deleted = jdbcTemplate.update("DELETE FROM users WHERE email LIKE ?", prefix + "%");
+		log.info("Deleted {} benchmark users", deleted);
+	}
+
+	@Test
+	void updateLatency() {
+		String email = prefix + "@example.com";
+		userRepository.insertIfAbsent(UUID.randomUUID(), email);
+
+		long[] findAndSave = measure(i -> {
+			User user = userRepository.findByEmail(email).orElseThrow();
+			user.setLastSeen((long) i);
+			user.setIp("127.0.0.1");
+			user.setPort(i);
+			userRepository.save(user);
+		});
+		long[] touch = measure(i -> assertThat(userRepository.touch(email, i, "127.0.0.1", i)).isEqualTo(1));
+
+		report("update findByEmail+save", findAndSave);
+		report("update touch", touch);
+	}
+
+	@Test
+	void registerLatency() {
+		long[] findAndSave = measure(i -> {
+			String email = prefix + "-a" + i + "@example.com";
+			if (userRepository.findByEmail(email).isEmpty()) {
+				User user = new User();
+				user.setEmail(email);
+				userRepository.save(user);
+			}
+		});
+		long[] insertIfAbsent = measure(i ->
+				userRepository.insertIfAbsent(UUID.randomUUID(), prefix + "-b" + i + "@example.com"));
+
+		report("register findByEmail+save", findAndSave);
+		report("register insertIfAbsent", insertIfAbsent);
+	}
+
+	private static long[] measure(Iteration iteration) {
+		for (int i = 0; i < WARMUP; i++) {
+			iteration.run(-i - 1);
+		}
+		long[] samples = new long[ITERATIONS];
+		for (int i = 0; i < ITERATIONS; i++) {
+			long start = System.nanoTime();
+			iteration.run(i);
+			samples[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(samples);
+		return samples;
+	}
+
+	private static void report(String name, long[] sorted) {
+		log.info(String.format("%-28s p50=%6d us  p99=%6d us", name,
+				sorted[sorted.length / 2] / 1_000, sorted[(int) (sorted.length * 0.99)] / 1_000));
+	}
+
+	@FunctionalInterface
+	private interface Iteration {
+		void run(int i);
+	}
+
+}
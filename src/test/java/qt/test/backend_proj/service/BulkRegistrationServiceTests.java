@@ -0,0 +1,153 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.validation.Validation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BulkRegistrationServiceTests {
+
+	private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+	private final IdentityCache identityCache = mock(IdentityCache.class);
+	private final JsonMapper jsonMapper = JsonMapper.builder().build();
+	// Emails in the users table, and the size of every insert batch
+	private final Set<String> registered = new HashSet<>();
+	private final List<Integer> batches = new ArrayList<>();
+	private BulkRegistrationService service;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		// Behaves like INSERT ... ON CONFLICT (email) DO NOTHING: 1 when inserted, 0 when the email exists
+		when(jdbcTemplate.batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+				.thenAnswer(invocation -> {
+					Collection<Object> rows = invocation.getArgument(1);
+					ParameterizedPreparedStatementSetter<Object> setter = invocation.getArgument(3);
+					int[] counts = new int[rows.size()];
+					int i = 0;
+					for (Object row : rows) {
+						String[] email = new String[1];
+						PreparedStatement ps = mock(PreparedStatement.class);
+						doAnswer(set -> email[0] = set.getArgument(1)).when(ps).setString(eq(2), anyString());
+						setter.setValues(ps, row);
+						counts[i++] = registered.add(email[0]) ? 1 : 0;
+					}
+					batches.add(rows.size());
+					return new int[][]{counts};
+				});
+
+		service = new BulkRegistrationService(jdbcTemplate, new TransactionTemplate(mock(PlatformTransactionManager.class)),
+				Validation.buildDefaultValidatorFactory().getValidator(), jsonMapper, identityCache,
+				mock(PresenceReplicationService.class), new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(service, "batchSize", 2);
+		ReflectionTestUtils.setField(service, "maxLineLength", 32);
+		service.init();
+	}
+
+	@Test
+	void insertsInBatchesAndAnswersEveryLineInOrder() throws Exception {
+		List<JsonNode> results = register("""
+				{"email":"a@example.com"}
+				{"email":"b@example.com"}
+				{"email":"c@example.com"}
+				{"email":"d@example.com"}
+				{"email":"e@example.com"}
+				""", 5);
+
+		assertThat(batches).containsExactly(2, 2, 1);
+		assertThat(results).extracting(result -> result.get("line").asLong()).containsExactly(1L, 2L, 3L, 4L, 5L);
+		assertThat(results).allSatisfy(result -> assertThat(result.get("result").asString()).isEqualTo("created"));
+		verify(identityCache).invalidate("e@example.com");
+	}
+
+	@Test
+	void reportsExistingAndRepeatedEmailsAsConflicts() throws Exception {
+		registered.add("a@example.com");
+
+		List<JsonNode> results = register("""
+				{"email":"a@example.com"}
+				{"email":"b@example.com"}
+				{"email":"b@example.com"}
+				""", 1);
+
+		assertThat(results).extracting(result -> result.get("result").asString())
+				.containsExactly("conflict", "created", "conflict");
+	}
+
+	@Test
+	void reportsInvalidAndTooLongLinesWithoutInsertingThem() throws Exception {
+		List<JsonNode> results = register("""
+				not json
+				{"email":"not-an-email"}
+
+				{"email":"x@example.com","padding":"far too long"}
+				{"email":"a@example.com"}
+				""", 1);
+
+		// The blank third line gets no result, but still counts
+		assertThat(results).extracting(result -> result.get("line").asLong()).containsExactly(1L, 2L, 4L, 5L);
+		assertThat(results).extracting(result -> result.get("result").asString())
+				.containsExactly("invalid", "invalid", "invalid", "created");
+		assertThat(results.get(0).get("error").asString()).isEqualTo("Malformed JSON");
+		assertThat(results.get(2).get("error").asString()).isEqualTo("Line exceeds 32 characters");
+		assertThat(registered).containsExactly("a@example.com");
+	}
+
+	@Test
+	void acceptsACrlfLineOfExactlyTheMaximumLength() throws Exception {
+		String line = "{\"email\":\"ab@example.co\"}";
+		ReflectionTestUtils.setField(service, "maxLineLength", line.length());
+
+		List<JsonNode> results = register(line + "\r\n" + line.replace("ab@", "cd@") + "\r\n", 2);
+
+		assertThat(results).extracting(result -> result.get("result").asString()).containsExactly("created", "created");
+	}
+
+	@Test
+	void registersATrailingLineWithoutNewline() throws Exception {
+		List<JsonNode> results = register("{\"email\":\"a@example.com\"}\n{\"email\":\"b@example.com\"}", 2);
+
+		assertThat(results).extracting(result -> result.get("email").asString())
+				.containsExactly("a@example.com", "b@example.com");
+		assertThat(registered).containsExactlyInAnyOrder("a@example.com", "b@example.com");
+	}
+
+	private List<JsonNode> register(String body, long expectedCreated) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long created = service.register(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), out);
+		assertThat(created).isEqualTo(expectedCreated);
+
+		List<JsonNode> results = new ArrayList<>();
+		for (String line : out.toString(StandardCharsets.UTF_8).split("\n")) {
+			results.add(jsonMapper.readTree(line));
+		}
+		return results;
+	}
+}
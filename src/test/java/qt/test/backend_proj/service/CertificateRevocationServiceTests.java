@@ -0,0 +1,77 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Fixtures in src/test/resources/revocation were issued by one test CA with scripts/revoke-certificate.sh:
+ * crl.pem revokes revoked-cert.pem, empty-crl.pem revokes nothing.
+ */
+class CertificateRevocationServiceTests {
+
+	@TempDir
+	Path directory;
+
+	private Path crlFile;
+	private CertificateRevocationService service;
+
+	@BeforeEach
+	void setUp() {
+		crlFile = directory.resolve("crl.pem");
+		service = new CertificateRevocationService(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(service, "crlFiles", crlFile.toString());
+		ReflectionTestUtils.setField(service, "reloadIntervalSeconds", 3600L);
+		ReflectionTestUtils.setField(service, "falsePositiveRate", 0.01);
+	}
+
+	@Test
+	void onlyListedCertificateIsRevoked() throws Exception {
+		copy("crl.pem");
+		service.init();
+
+		assertThat(service.isRevoked(certificate("revoked-cert.pem"))).isTrue();
+		assertThat(service.isRevoked(certificate("valid-cert.pem"))).isFalse();
+		service.shutdown();
+	}
+
+	@Test
+	void reloadSwapsInChangedCrlAndKeepsListOnFailure() throws Exception {
+		copy("empty-crl.pem");
+		service.init();
+		X509Certificate revoked = certificate("revoked-cert.pem");
+		assertThat(service.isRevoked(revoked)).isFalse();
+
+		copy("crl.pem");
+		ReflectionTestUtils.invokeMethod(service, "reloadIfChanged");
+		assertThat(service.isRevoked(revoked)).isTrue();
+
+		Files.writeString(crlFile, "-----BEGIN X509 CRL-----\ntruncated");
+		ReflectionTestUtils.invokeMethod(service, "reloadIfChanged");
+		assertThat(service.isRevoked(revoked)).isTrue();
+		service.shutdown();
+	}
+
+	private void copy(String fixture) throws Exception {
+		try (InputStream in = getClass().getResourceAsStream("/revocation/" + fixture)) {
+			Files.copy(in, crlFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private X509Certificate certificate(String fixture) throws Exception {
+		try (InputStream in = getClass().getResourceAsStream("/revocation/" + fixture)) {
+			return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package qt.test.backend_proj.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.security.auth.x500.X500Principal;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ClientCertificateResolverTests {
+
+	private final CertificateRevocationService revocation = mock(CertificateRevocationService.class);
+	private ClientCertificateResolver resolver;
+
+	@BeforeEach
+	void setUp() {
+		resolver = new ClientCertificateResolver(new SimpleMeterRegistry(), revocation);
+		ReflectionTestUtils.setField(resolver, "maxSize", 100L);
+		ReflectionTestUtils.setField(resolver, "expireAfterAccessSeconds", 60L);
+		resolver.init();
+	}
+
+	@Test
+	void cachesTheIdentityOfEachCertificate() throws Exception {
+		assertThat(resolver.resolveEmail(certificate("certs/client-cert.pem"))).isEqualTo("user@example.com");
+		// Another instance of the same certificate, as on a new connection
+		assertThat(resolver.resolveEmail(certificate("certs/client-cert.pem"))).isEqualTo("user@example.com");
+		// A CN that is not an email is cached too
+		assertThat(resolver.resolveEmail(certificate("certs/server-cert.pem"))).isNull();
+		assertThat(resolver.resolveEmail(certificate("certs/server-cert.pem"))).isNull();
+
+		Cache<?, ?> resolved = (Cache<?, ?>) ReflectionTestUtils.getField(resolver, "resolved");
+		assertThat(resolved.stats().missCount()).isEqualTo(2);
+		assertThat(resolved.stats().hitCount()).isEqualTo(2);
+	}
+
+	@Test
+	void rechecksRevocationOnEveryCall() throws Exception {
+		X509Certificate certificate = certificate("certs/client-cert.pem");
+		assertThat(resolver.resolveEmail(certificate)).isEqualTo("user@example.com");
+
+		// As after a CRL reload, while the identity is still cached
+		when(revocation.isRevoked(certificate)).thenReturn(true);
+		assertThat(resolver.resolveEmail(certificate)).isNull();
+
+		when(revocation.isRevoked(certificate)).thenReturn(false);
+		assertThat(resolver.resolveEmail(certificate)).isEqualTo("user@example.com");
+	}
+
+	@Test
+	void extractsTheCnRdnRatherThanTextThatLooksLikeIt() {
+		assertThat(ClientCertificateResolver.extractCommonName(
+				subject("CN=user@example.com,OU=Client,O=MyOrg,C=US"))).isEqualTo("user@example.com");
+		assertThat(ClientCertificateResolver.extractCommonName(
+				subject("CN=user@example.com,OU=CN\\=other@example.com,O=Example\\, Inc."))).isEqualTo("user@example.com");
+		assertThat(ClientCertificateResolver.extractCommonName(subject("CN=\\ user@example.com\\ ,O=MyOrg")))
+				.isEqualTo("user@example.com");
+		assertThat(ClientCertificateResolver.extractCommonName(subject("OU=Client,O=MyOrg"))).isNull();
+	}
+
+	private static X509Certificate subject(String dn) {
+		X509Certificate certificate = mock(X509Certificate.class);
+		when(certificate.getSubjectX500Principal()).thenReturn(new X500Principal(dn));
+		return certificate;
+	}
+
+	private static X509Certificate certificate(String path) throws Exception {
+		try (InputStream in = Files.newInputStream(Path.of(path))) {
+			return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+		}
+	}
+}
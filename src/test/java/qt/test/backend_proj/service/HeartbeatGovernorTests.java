@@ -0,0 +1,47 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.service.HeartbeatGovernor.Decision;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HeartbeatGovernorTests {
+
+	private HeartbeatGovernor governor;
+
+	@BeforeEach
+	void setUp() {
+		governor = new HeartbeatGovernor(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(governor, "enabled", true);
+		ReflectionTestUtils.setField(governor, "keepaliveSeconds", 60L);
+		// Slow enough that no token is refilled during a test
+		ReflectionTestUtils.setField(governor, "ratePerSecond", 0.01);
+		ReflectionTestUtils.setField(governor, "burst", 3.0);
+		ReflectionTestUtils.setField(governor, "maxIdentities", 1000L);
+		governor.init();
+	}
+
+	@Test
+	void unchangedAddressIsSuppressedUntilItMoves() {
+		assertThat(governor.admit("user@example.com", "10.0.0.1", 5000).decision()).isEqualTo(Decision.RECORD);
+		governor.recorded("user@example.com", 100L, "10.0.0.1", 5000);
+
+		HeartbeatGovernor.Admission repeated = governor.admit("user@example.com", "10.0.0.1", 5000);
+		assertThat(repeated.decision()).isEqualTo(Decision.SUPPRESS);
+		assertThat(repeated.lastSeen()).isEqualTo(100L);
+		assertThat(governor.admit("user@example.com", "10.0.0.1", 5001).decision()).isEqualTo(Decision.RECORD);
+	}
+
+	@Test
+	void identityOverItsBurstIsThrottledAlone() {
+		for (int i = 0; i < 3; i++) {
+			assertThat(governor.admit("user@example.com", "10.0.0.1", 5000).decision()).isEqualTo(Decision.RECORD);
+		}
+
+		assertThat(governor.admit("user@example.com", "10.0.0.1", 5000).decision()).isEqualTo(Decision.THROTTLE);
+		assertThat(governor.admit("other@example.com", "10.0.0.2", 5000).decision()).isEqualTo(Decision.RECORD);
+	}
+}
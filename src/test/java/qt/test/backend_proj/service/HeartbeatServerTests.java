@@ -0,0 +1,179 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.config.TlsContextFactory;
+import qt.test.backend_proj.service.PresenceService.Heartbeat;
+import qt.test.backend_proj.service.PresenceService.Heartbeat.Status;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Talks to the server over a loopback mTLS connection, with the server stores from src/main/resources and the
+ * client certificate (CN=user@example.com) from certs/client-keystore.p12.
+ */
+class HeartbeatServerTests {
+
+	private static final String EMAIL = "user@example.com";
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final CertificateRevocationService revocation = mock(CertificateRevocationService.class);
+	private final PresenceService presenceService = mock(PresenceService.class);
+	private HeartbeatServer server;
+	private SSLContext clientContext;
+	private SSLSocket socket;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		TlsHandshakeMetrics metrics = new TlsHandshakeMetrics(registry);
+		TlsContextFactory tlsContextFactory = new TlsContextFactory(new DefaultResourceLoader(), metrics, revocation);
+		ReflectionTestUtils.setField(tlsContextFactory, "keyStoreLocation", "classpath:keystore.p12");
+		ReflectionTestUtils.setField(tlsContextFactory, "keyStorePassword", "changeit");
+		ReflectionTestUtils.setField(tlsContextFactory, "keyStoreType", "PKCS12");
+		ReflectionTestUtils.setField(tlsContextFactory, "keyAlias", "server");
+		ReflectionTestUtils.setField(tlsContextFactory, "trustStoreLocation", "classpath:truststore.jks");
+		ReflectionTestUtils.setField(tlsContextFactory, "trustStorePassword", "changeit");
+		ReflectionTestUtils.setField(tlsContextFactory, "trustStoreType", "JKS");
+		ReflectionTestUtils.setField(tlsContextFactory, "sessionCacheSize", 100);
+		ReflectionTestUtils.setField(tlsContextFactory, "sessionTimeoutSeconds", 60);
+
+		ClientCertificateResolver resolver = new ClientCertificateResolver(registry, revocation);
+		ReflectionTestUtils.setField(resolver, "maxSize", 100L);
+		ReflectionTestUtils.setField(resolver, "expireAfterAccessSeconds", 60L);
+		resolver.init();
+
+		when(presenceService.recordHeartbeat(eq(EMAIL), anyString(), anyInt()))
+				.thenReturn(new Heartbeat(Status.RECORDED, EMAIL, 1L, "127.0.0.1", 1));
+
+		server = new HeartbeatServer(tlsContextFactory, resolver, revocation, presenceService, metrics, registry);
+		ReflectionTestUtils.setField(server, "enabled", true);
+		ReflectionTestUtils.setField(server, "port", 0);
+		ReflectionTestUtils.setField(server, "maxConnections", 4);
+		ReflectionTestUtils.setField(server, "handshakeTimeoutMs", 5000);
+		ReflectionTestUtils.setField(server, "idleTimeoutMs", 5000);
+		server.start();
+		clientContext = clientContext();
+		socket = connect();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		socket.close();
+		server.stop();
+	}
+
+	@Test
+	void acksEveryPipelinedFrame() throws Exception {
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeShort(0);
+		// The payload is skipped
+		out.writeShort(2);
+		out.write(new byte[]{7, 7});
+		out.writeShort(0);
+		out.flush();
+
+		assertThat(socket.getInputStream().readNBytes(3)).containsExactly(
+				HeartbeatServer.ACK_RECORDED, HeartbeatServer.ACK_RECORDED, HeartbeatServer.ACK_RECORDED);
+		verify(presenceService, times(3)).recordHeartbeat(eq(EMAIL), eq("127.0.0.1"), anyInt());
+	}
+
+	@Test
+	void unknownUserKeepsTheConnectionOpen() throws Exception {
+		when(presenceService.recordHeartbeat(eq(EMAIL), anyString(), anyInt()))
+				.thenReturn(new Heartbeat(Status.UNKNOWN_USER, null, 0L, null, 0));
+
+		assertThat(heartbeat()).isEqualTo(HeartbeatServer.ACK_UNKNOWN_USER);
+		assertThat(heartbeat()).isEqualTo(HeartbeatServer.ACK_UNKNOWN_USER);
+	}
+
+	@Test
+	void revocationClosesAnOpenConnection() throws Exception {
+		assertThat(heartbeat()).isEqualTo(HeartbeatServer.ACK_RECORDED);
+
+		// As after a CRL reload
+		when(revocation.isRevoked(any(X509Certificate.class))).thenReturn(true);
+		assertThat(heartbeat()).isEqualTo(HeartbeatServer.ACK_INVALID_CERTIFICATE);
+		assertThat(socket.getInputStream().read()).isEqualTo(-1);
+		verify(presenceService, times(1)).recordHeartbeat(anyString(), anyString(), anyInt());
+	}
+
+	@Test
+	void oversizedFrameClosesTheConnectionWithoutAck() throws Exception {
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeShort(2000);
+		out.flush();
+
+		assertThat(socket.getInputStream().read()).isEqualTo(-1);
+	}
+
+	@Test
+	void countsAReconnectWithTheCachedSessionAsResumed() throws Exception {
+		assertThat(heartbeat()).isEqualTo(HeartbeatServer.ACK_RECORDED);
+		socket.close();
+		socket = connect();
+		assertThat(heartbeat()).isEqualTo(HeartbeatServer.ACK_RECORDED);
+
+		assertThat(registry.get("tls.handshakes").tags("listener", "heartbeat", "type", "full").counter().count())
+				.isEqualTo(1.0);
+		assertThat(registry.get("tls.handshakes").tags("listener", "heartbeat", "type", "resumed").counter().count())
+				.isEqualTo(1.0);
+	}
+
+	private int heartbeat() throws Exception {
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		out.writeShort(0);
+		out.flush();
+		return socket.getInputStream().read();
+	}
+
+	private SSLSocket connect() throws Exception {
+		int port = ((SSLServerSocket) ReflectionTestUtils.getField(server, "serverSocket")).getLocalPort();
+		SSLSocket client = (SSLSocket) clientContext.getSocketFactory().createSocket("127.0.0.1", port);
+		client.setSoTimeout(5000);
+		client.startHandshake();
+		return client;
+	}
+
+	private static SSLContext clientContext() throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		try (InputStream in = new FileInputStream("certs/client-keystore.p12")) {
+			keyStore.load(in, "changeit".toCharArray());
+		}
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, "changeit".toCharArray());
+
+		KeyStore trustStore = KeyStore.getInstance("JKS");
+		try (InputStream in = HeartbeatServerTests.class.getResourceAsStream("/truststore.jks")) {
+			trustStore.load(in, "changeit".toCharArray());
+		}
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(trustStore);
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+		return context;
+	}
+}
@@ -0,0 +1,83 @@
+package qt.test.backend_proj.service;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.model.User;
+import qt.test.backend_proj.repository.UserRepository;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IdentityCacheTests {
+
+	private static final String EMAIL = "user@example.com";
+
+	private final UserRepository userRepository = mock(UserRepository.class);
+	private final AtomicLong nanos = new AtomicLong();
+	private IdentityCache cache;
+
+	@BeforeEach
+	void setUp() {
+		cache = new IdentityCache(userRepository, new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(cache, "maxSize", 100L);
+		ReflectionTestUtils.setField(cache, "ttlSeconds", 600L);
+		ReflectionTestUtils.setField(cache, "negativeMaxSize", 100L);
+		ReflectionTestUtils.setField(cache, "negativeTtlSeconds", 5L);
+		ReflectionTestUtils.setField(cache, "ticker", (Ticker) nanos::get);
+		cache.init();
+	}
+
+	@Test
+	void loadsAKnownUserOnce() {
+		UUID id = UUID.randomUUID();
+		when(userRepository.findByEmail(EMAIL)).thenReturn(Optional.of(new User(id, EMAIL, null, null, null)));
+
+		assertThat(cache.findUserId(EMAIL)).contains(id);
+		assertThat(cache.findUserId(EMAIL)).contains(id);
+		verify(userRepository, times(1)).findByEmail(EMAIL);
+	}
+
+	@Test
+	void remembersAnUnknownEmailUntilTheNegativeTtlPasses() {
+		when(userRepository.findByEmail(EMAIL)).thenReturn(Optional.empty());
+
+		assertThat(cache.findUserId(EMAIL)).isEmpty();
+		advanceSeconds(4);
+		assertThat(cache.findUserId(EMAIL)).isEmpty();
+		verify(userRepository, times(1)).findByEmail(EMAIL);
+
+		// Registered meanwhile; found once the unknown entry expires
+		UUID id = UUID.randomUUID();
+		when(userRepository.findByEmail(EMAIL)).thenReturn(Optional.of(new User(id, EMAIL, null, null, null)));
+		advanceSeconds(1);
+		assertThat(cache.findUserId(EMAIL)).contains(id);
+		verify(userRepository, times(2)).findByEmail(EMAIL);
+	}
+
+	@Test
+	void invalidateForgetsAnUnknownEmailAtOnce() {
+		when(userRepository.findByEmail(EMAIL)).thenReturn(Optional.empty());
+		assertThat(cache.findUserId(EMAIL)).isEmpty();
+
+		UUID id = UUID.randomUUID();
+		when(userRepository.findByEmail(EMAIL)).thenReturn(Optional.of(new User(id, EMAIL, null, null, null)));
+		cache.invalidate(EMAIL);
+
+		assertThat(cache.findUserId(EMAIL)).contains(id);
+	}
+
+	private void advanceSeconds(long seconds) {
+		nanos.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+	}
+}
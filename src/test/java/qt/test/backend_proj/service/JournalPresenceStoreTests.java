@@ -0,0 +1,222 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.Dto.PresenceEntry;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JournalPresenceStoreTests {
+
+	@TempDir
+	Path directory;
+
+	private final List<JournalPresenceStore> opened = new ArrayList<>();
+
+	@AfterEach
+	void tearDown() throws Exception {
+		for (JournalPresenceStore store : opened) {
+			store.shutdown();
+		}
+	}
+
+	@Test
+	void recoveryReplaysTheNewestCommittedHeartbeatPerUser() throws Exception {
+		JournalPresenceStore store = open();
+		store.record("a@example.com", 100L, "10.0.0.1", 5000);
+		store.record("b@example.com", 150L, "10.0.0.2", 5001);
+		store.record("a@example.com", 200L, "10.0.0.3", 5002);
+		// Older than the stored heartbeat, so ignored
+		store.record("a@example.com", 50L, "10.0.0.4", 5003);
+
+		// Opened without closing the first store, like after a crash
+		assertThat(entries(open())).containsOnly(
+				Map.entry("a@example.com", new PresenceEntry("a@example.com", 200L, "10.0.0.3", 5002)),
+				Map.entry("b@example.com", new PresenceEntry("b@example.com", 150L, "10.0.0.2", 5001)));
+	}
+
+	@Test
+	void recoveryStopsAtATornRecordAndNeverAppendsAfterIt() throws Exception {
+		JournalPresenceStore store = open();
+		store.record("a@example.com", 100L, "10.0.0.1", 5000);
+		store.record("b@example.com", 150L, "10.0.0.2", 5001);
+		corruptLastRecord(lastSegment());
+
+		JournalPresenceStore recovered = open();
+		assertThat(entries(recovered)).containsOnlyKeys("a@example.com");
+
+		recovered.record("c@example.com", 300L, "10.0.0.3", 5002);
+		assertThat(entries(open())).containsOnlyKeys("a@example.com", "c@example.com");
+	}
+
+	@Test
+	void compactionDeletesSupersededSegmentsAndKeepsTheLatestState() throws Exception {
+		JournalPresenceStore store = open();
+		for (int i = 0; i < 2000; i++) {
+			store.record("user" + i % 10 + "@example.com", i, "10.0.0." + i % 10, 5000 + i);
+		}
+		Map<String, PresenceEntry> before = entries(store);
+		long segmentsBefore = segmentFiles();
+
+		assertThat(store.compact()).isPositive();
+		assertThat(segmentFiles()).isLessThan(segmentsBefore);
+		assertThat(entries(store)).isEqualTo(before);
+		assertThat(entries(open())).isEqualTo(before);
+	}
+
+	@Test
+	void compactionKeepsAStaleSegmentUntilItsReplacementIsCommitted() throws Exception {
+		JournalPresenceStore store = open();
+		store.record("a@example.com", 1L, "10.0.0.1", 5000);
+		// Seal the first segment behind a's record, so it is a victim with one live entry
+		for (int i = 0; i < 200; i++) {
+			store.record("b@example.com", 10L + i, "10.0.0.2", 5001);
+		}
+		Path victim = firstSegment();
+
+		// Hold the commit lock so the committer cannot publish the next force
+		ReentrantLock commitLock = (ReentrantLock) ReflectionTestUtils.getField(store, "commitLock");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		commitLock.lock();
+		try {
+			Future<?> heartbeat = executor.submit(() -> store.record("a@example.com", 500L, "10.0.0.3", 5002));
+			// The newer record is appended and indexed, its caller is waiting for the commit
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (entries(store).get("a@example.com").lastSeen() != 500L) {
+				assertThat(System.nanoTime()).isLessThan(deadline);
+				Thread.sleep(1);
+			}
+
+			// Nothing is left to copy out of the victim, yet it must outlive the uncommitted replacement
+			Future<Integer> compaction = executor.submit(store::compact);
+			Thread.sleep(200);
+			assertThat(compaction).isNotDone();
+			assertThat(heartbeat).isNotDone();
+			assertThat(victim).exists();
+
+			commitLock.unlock();
+			assertThat(compaction.get(5, TimeUnit.SECONDS)).isPositive();
+			heartbeat.get(5, TimeUnit.SECONDS);
+		} finally {
+			if (commitLock.isHeldByCurrentThread()) {
+				commitLock.unlock();
+			}
+			executor.shutdownNow();
+		}
+		assertThat(victim).doesNotExist();
+		assertThat(entries(open()).get("a@example.com").lastSeen()).isEqualTo(500L);
+	}
+
+	@Test
+	void aCommitPassDuringRolloverSeesTheSealedSegment() throws Exception {
+		// Room for one record per segment, so every append rolls over
+		JournalPresenceStore store = open(64);
+		// Stop the committer and take its place below
+		store.shutdown();
+
+		Thread appender = new Thread(() -> {
+			for (int i = 0; i < 5000; i++) {
+				ReflectionTestUtils.invokeMethod(store, "append",
+						new PresenceEntry("a@example.com", i, "10.0.0.1", 5000), new long[1]);
+			}
+		});
+		appender.start();
+
+		// Same reads as a committer pass: the head it forces, then the sealed segments it drains
+		Queue<?> unforced = (Queue<?>) ReflectionTestUtils.getField(store, "unforced");
+		Set<Long> sealed = new HashSet<>();
+		long checked = 1;
+		while (appender.isAlive()) {
+			long current = (long) ReflectionTestUtils.getField(ReflectionTestUtils.getField(store, "head"), "id");
+			Object segment;
+			while ((segment = unforced.poll()) != null) {
+				sealed.add((Long) ReflectionTestUtils.getField(segment, "id"));
+			}
+			// A pass that forces only the head would leave any earlier segment not drained here unforced
+			for (; checked < current; checked++) {
+				assertThat(sealed).contains(checked);
+			}
+		}
+		appender.join();
+	}
+
+	private JournalPresenceStore open() throws Exception {
+		// Small segments, so a few thousand heartbeats span many of them
+		return open(4096);
+	}
+
+	private JournalPresenceStore open(int segmentBytes) throws Exception {
+		JournalPresenceStore store = new JournalPresenceStore(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(store, "directory", directory.toString());
+		ReflectionTestUtils.setField(store, "segmentBytes", segmentBytes);
+		ReflectionTestUtils.setField(store, "compactionIntervalSeconds", 3600L);
+		ReflectionTestUtils.setField(store, "compactionLiveRatio", 0.5);
+		store.init();
+		opened.add(store);
+		return store;
+	}
+
+	private static Map<String, PresenceEntry> entries(JournalPresenceStore store) {
+		Map<String, PresenceEntry> entries = new HashMap<>();
+		store.forEach(entry -> entries.put(entry.email(), entry));
+		return entries;
+	}
+
+	private long segmentFiles() throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.count();
+		}
+	}
+
+	private Path firstSegment() throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.sorted().findFirst().orElseThrow();
+		}
+	}
+
+	private Path lastSegment() throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.sorted().reduce((first, second) -> second).orElseThrow();
+		}
+	}
+
+	/**
+	 * Flips a byte in the body of the segment's last record, as if the crash hit while it was being written.
+	 */
+	private static void corruptLastRecord(Path segment) throws Exception {
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			// Skip the segment header, then walk the [length:4][crc32:4][body] records
+			int position = 8;
+			int last = position;
+			while (buffer.getInt(position) != 0) {
+				last = position;
+				position += 8 + buffer.getInt(position);
+			}
+			buffer.put(last + 8, (byte) (buffer.get(last + 8) ^ 0x5A));
+			buffer.force();
+		}
+	}
+}
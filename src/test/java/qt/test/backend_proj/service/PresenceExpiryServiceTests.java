@@ -0,0 +1,94 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+class PresenceExpiryServiceTests {
+
+	// One second TTL, so heartbeats dated 900 ms ago expire after about 100 ms
+	private static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final UdpBroadcastService broadcast = mock(UdpBroadcastService.class);
+	private final PresenceFeed feed = mock(PresenceFeed.class);
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private PresenceExpiryService service;
+
+	@BeforeEach
+	void setUp() {
+		service = new PresenceExpiryService(broadcast, feed, registry);
+		ReflectionTestUtils.setField(service, "enabled", true);
+		ReflectionTestUtils.setField(service, "ttlSeconds", 1L);
+		ReflectionTestUtils.setField(service, "tickMs", 10L);
+		service.init();
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		service.shutdown();
+	}
+
+	@Test
+	void onlyTheNodeThatAcceptedTheLastHeartbeatBroadcastsOffline() {
+		long lastSeen = now() - TTL_NANOS + TimeUnit.MILLISECONDS.toNanos(100);
+		service.touch("local@example.com", lastSeen, true);
+		service.touch("replicated@example.com", lastSeen, false);
+
+		verify(feed, timeout(2000)).publishOffline("local@example.com", lastSeen);
+		verify(feed, timeout(2000)).publishOffline("replicated@example.com", lastSeen);
+		verify(broadcast).broadcastOffline("local@example.com", lastSeen);
+		verify(broadcast, never()).broadcastOffline(eq("replicated@example.com"), anyLong());
+		assertThat(registry.counter("presence.expiry.offline").count()).isEqualTo(2.0);
+	}
+
+	@Test
+	void aNewerHeartbeatPostponesThePendingExpiry() {
+		long stale = now() - TTL_NANOS + TimeUnit.MILLISECONDS.toNanos(100);
+		service.touch("user@example.com", stale, true);
+		long fresh = now();
+		service.touch("user@example.com", fresh, false);
+		// An older heartbeat arriving late changes nothing
+		service.touch("user@example.com", stale, true);
+
+		// Well past the first deadline, but not the rescheduled one
+		verify(feed, after(500).never()).publishOffline(eq("user@example.com"), anyLong());
+		verify(feed, timeout(2000)).publishOffline("user@example.com", fresh);
+		// The newer heartbeat was replicated, so this node stays silent
+		verify(broadcast, never()).broadcastOffline(eq("user@example.com"), anyLong());
+	}
+
+	@Test
+	void offlineListenersReceiveTheLastSeenOfTheExpiredUser() throws Exception {
+		Map<String, Long> offline = new ConcurrentHashMap<>();
+		service.addOfflineListener(offline::put);
+		long lastSeen = now() - TTL_NANOS + TimeUnit.MILLISECONDS.toNanos(100);
+
+		service.touch("user@example.com", lastSeen, true);
+
+		// Listeners run on the ticker thread right after the feed
+		for (int i = 0; i < 200 && offline.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		assertThat(offline).containsExactly(Map.entry("user@example.com", lastSeen));
+	}
+
+	private static long now() {
+		// Same clock as the service
+		return System.currentTimeMillis() * 1_000_000L;
+	}
+}
@@ -0,0 +1,152 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter.DataWithMediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PresenceFeedTests {
+
+	private final List<RecordingEmitter> emitters = new CopyOnWriteArrayList<>();
+	private PresenceFeed feed;
+
+	@AfterEach
+	void tearDown() {
+		if (feed != null) {
+			feed.shutdown();
+		}
+	}
+
+	@Test
+	void replaysBufferedEventsAfterTheLastEventId() throws Exception {
+		open(16, 15);
+		feed.publish("a@example.com", 100L, "10.0.0.1", 5000);
+		long first = feed.getLastSequence();
+		feed.publish("b@example.com", 200L, "10.0.0.2", 5001);
+		feed.publish("c@example.com", 300L, "10.0.0.3", 5002);
+
+		feed.subscribe(first);
+		List<String> frames = awaitFrames(emitters.get(0), 2);
+		assertThat(frames).hasSize(2);
+		assertThat(frames.get(0)).startsWith("id:" + (first + 1) + "\nevent:presence\n").contains("b@example.com");
+		assertThat(frames.get(1)).startsWith("id:" + (first + 2) + "\n").contains("c@example.com");
+	}
+
+	@Test
+	void subscriberBehindTheBufferGetsAResyncFirst() throws Exception {
+		open(4, 15);
+		feed.publish("first@example.com", 1L, "10.0.0.1", 5000);
+		long first = feed.getLastSequence();
+		for (int i = 0; i < 10; i++) {
+			feed.publish("user" + i + "@example.com", 10L + i, "10.0.0.2", 5001);
+		}
+
+		feed.subscribe(first);
+		List<String> frames = awaitFrames(emitters.get(0), 5);
+		assertThat(frames.get(0)).startsWith("event:resync\n");
+		// Only the last four events are still buffered
+		assertThat(frames.subList(1, frames.size())).hasSize(4)
+				.allSatisfy(frame -> assertThat(frame).contains("event:presence"));
+		assertThat(frames.get(4)).startsWith("id:" + feed.getLastSequence() + "\n");
+	}
+
+	@Test
+	void lastEventIdAheadOfThisFeedGetsAResyncThenNewEvents() throws Exception {
+		open(16, 15);
+		feed.publish("a@example.com", 100L, "10.0.0.1", 5000);
+
+		// For example issued by another node behind the load balancer
+		feed.subscribe(feed.getLastSequence() + 1000);
+		assertThat(awaitFrames(emitters.get(0), 1).get(0)).startsWith("event:resync\n");
+
+		feed.publish("b@example.com", 200L, "10.0.0.2", 5001);
+		List<String> frames = awaitFrames(emitters.get(0), 2);
+		assertThat(frames).hasSize(2);
+		assertThat(frames.get(1)).contains("b@example.com");
+	}
+
+	@Test
+	void idleSubscriberGetsKeepalives() throws Exception {
+		open(16, 1);
+		feed.subscribe(null);
+
+		List<String> frames = awaitFrames(emitters.get(0), 1);
+		assertThat(frames).containsExactly(":\n\n");
+	}
+
+	@Test
+	void eventsStoredOutOfOrderAreDeliveredWithoutWaitingForAKeepalive() throws Exception {
+		open(16, 15);
+		feed.subscribe(null);
+
+		// A publisher took sequence n but has not stored its event yet, the next one stores n + 1 first
+		AtomicLong lastSequence = (AtomicLong) ReflectionTestUtils.getField(feed, "lastSequence");
+		long stalled = lastSequence.incrementAndGet();
+		feed.publish("b@example.com", 200L, "10.0.0.2", 5001);
+		Thread.sleep(200);
+		assertThat(emitters.get(0).frames).isEmpty();
+
+		ReflectionTestUtils.invokeMethod(feed, "store", stalled, "presence", "{\"email\":\"a@example.com\"}");
+		List<String> frames = awaitFrames(emitters.get(0), 2);
+		assertThat(frames).hasSize(2);
+		assertThat(frames.get(0)).startsWith("id:" + stalled + "\n").contains("a@example.com");
+		assertThat(frames.get(1)).startsWith("id:" + (stalled + 1) + "\n").contains("b@example.com");
+	}
+
+	private void open(int bufferSize, long keepaliveSeconds) {
+		feed = new PresenceFeed(JsonMapper.builder().build(), new SimpleMeterRegistry()) {
+			@Override
+			SseEmitter newEmitter() {
+				RecordingEmitter emitter = new RecordingEmitter();
+				emitters.add(emitter);
+				return emitter;
+			}
+		};
+		ReflectionTestUtils.setField(feed, "bufferSize", bufferSize);
+		ReflectionTestUtils.setField(feed, "maxSubscribers", 10);
+		ReflectionTestUtils.setField(feed, "dispatcherThreads", 2);
+		ReflectionTestUtils.setField(feed, "maxBatch", 100);
+		ReflectionTestUtils.setField(feed, "keepaliveSeconds", keepaliveSeconds);
+		feed.init();
+	}
+
+	/**
+	 * Waits up to three seconds for the emitter to have received at least {@code count} frames, well below the
+	 * keepalive interval the other tests use.
+	 */
+	private static List<String> awaitFrames(RecordingEmitter emitter, int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+		while (emitter.frames.size() < count && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		return List.copyOf(emitter.frames);
+	}
+
+	/**
+	 * Keeps every frame instead of writing it to a response.
+	 */
+	private static final class RecordingEmitter extends SseEmitter {
+
+		private final List<String> frames = new CopyOnWriteArrayList<>();
+
+		RecordingEmitter() {
+			super(0L);
+		}
+
+		@Override
+		public void send(Set<DataWithMediaType> items) {
+			items.forEach(item -> frames.add((String) item.getData()));
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.Dto.PresenceEntry;
+import qt.test.backend_proj.Dto.PresencePage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PresenceIndexTests {
+
+	private PresenceIndex index;
+
+	@BeforeEach
+	void setUp() {
+		// Not initialized: nothing is loaded from the database and queries use the in-memory index
+		index = new PresenceIndex(null, null, new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(index, "enabled", true);
+		ReflectionTestUtils.setField(index, "ready", true);
+	}
+
+	@Test
+	void pagesThroughUsersNewestFirst() {
+		for (int i = 1; i <= 5; i++) {
+			index.record("user" + i + "@example.com", i * 100L, "10.0.0." + i, 5000 + i);
+		}
+
+		List<String> emails = new ArrayList<>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			PresencePage page = index.seenSince(Long.MIN_VALUE, cursor, 2);
+			page.users().forEach(user -> emails.add(user.email()));
+			cursor = page.nextCursor();
+			pages++;
+		} while (cursor != null);
+
+		assertThat(pages).isEqualTo(3);
+		assertThat(emails).containsExactly("user5@example.com", "user4@example.com", "user3@example.com",
+				"user2@example.com", "user1@example.com");
+		assertThat(index.seenSince(300L, null, 10).users()).extracting(PresenceEntry::email)
+				.containsExactly("user5@example.com", "user4@example.com", "user3@example.com");
+	}
+
+	@Test
+	void keepsOnlyTheNewestHeartbeatPerUser() {
+		index.record("a@example.com", 100L, "10.0.0.1", 5000);
+		index.record("b@example.com", 200L, "10.0.0.2", 5000);
+		index.record("a@example.com", 300L, "10.0.0.3", 6000);
+		// Arrives late, must not roll a@ back
+		index.record("a@example.com", 150L, "10.0.0.1", 5000);
+
+		assertThat(index.seenSince(Long.MIN_VALUE, null, 10).users()).containsExactly(
+				new PresenceEntry("a@example.com", 300L, "10.0.0.3", 6000),
+				new PresenceEntry("b@example.com", 200L, "10.0.0.2", 5000));
+		assertThat(index.atAddress("10.0.0.1", null, null, 10).users()).isEmpty();
+	}
+
+	@Test
+	void findsUsersByAddress() {
+		index.record("a@example.com", 100L, "10.0.0.1", 5001);
+		index.record("b@example.com", 200L, "10.0.0.1", 5000);
+		index.record("c@example.com", 300L, "10.0.0.1", 5001);
+		index.record("d@example.com", 400L, "10.0.0.2", 5000);
+		// Same address, newer heartbeat
+		index.record("b@example.com", 500L, "10.0.0.1", 5000);
+
+		assertThat(index.atAddress("10.0.0.1", null, null, 10).users()).extracting(PresenceEntry::email)
+				.containsExactly("b@example.com", "a@example.com", "c@example.com");
+		assertThat(index.atAddress("10.0.0.1", null, null, 10).users().get(0).lastSeen()).isEqualTo(500L);
+
+		PresencePage first = index.atAddress("10.0.0.1", 5001, null, 1);
+		assertThat(first.users()).extracting(PresenceEntry::email).containsExactly("a@example.com");
+		assertThat(index.atAddress("10.0.0.1", 5001, first.nextCursor(), 1).users())
+				.extracting(PresenceEntry::email).containsExactly("c@example.com");
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void listsEachUserOncePerPageWhileAnUpdateIsInFlight() {
+		index.record("a@example.com", 100L, "10.0.0.1", 5000);
+		index.record("b@example.com", 200L, "10.0.0.1", 5000);
+		// Like a record() that has added a@'s newer entry but not yet removed the old one
+		PresenceEntry newer = new PresenceEntry("a@example.com", 300L, "10.0.0.1", 5001);
+		((Map<PresenceEntry, PresenceEntry>) ReflectionTestUtils.getField(index, "byLastSeen")).put(newer, newer);
+		((Map<PresenceEntry, PresenceEntry>) ReflectionTestUtils.getField(index, "byAddress")).put(newer, newer);
+
+		assertThat(index.seenSince(Long.MIN_VALUE, null, 10).users()).containsExactly(newer,
+				new PresenceEntry("b@example.com", 200L, "10.0.0.1", 5000));
+		assertThat(index.atAddress("10.0.0.1", null, null, 10).users()).extracting(PresenceEntry::email)
+				.containsExactly("a@example.com", "b@example.com");
+	}
+
+	@Test
+	void scansTheJournalUntilLoaded() {
+		List<PresenceEntry> journal = List.of(
+				new PresenceEntry("a@example.com", 100L, "10.0.0.1", 5001),
+				new PresenceEntry("b@example.com", 300L, "10.0.0.1", 5000),
+				new PresenceEntry("c@example.com", 200L, "10.0.0.2", 5000));
+		PresenceStore store = new PresenceStore() {
+			@Override
+			public boolean record(String email, long lastSeen, String ip, int port) {
+				return true;
+			}
+
+			@Override
+			public void forEach(Consumer<PresenceEntry> consumer) {
+				journal.forEach(consumer);
+			}
+		};
+		// No JdbcTemplate: the users table holds no presence with the journal store
+		PresenceIndex loading = new PresenceIndex(null, store, new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(loading, "enabled", true);
+		ReflectionTestUtils.setField(loading, "store", "journal");
+
+		PresencePage first = loading.seenSince(Long.MIN_VALUE, null, 2);
+		assertThat(first.users()).extracting(PresenceEntry::email).containsExactly("b@example.com", "c@example.com");
+		assertThat(loading.seenSince(Long.MIN_VALUE, first.nextCursor(), 2).users())
+				.extracting(PresenceEntry::email).containsExactly("a@example.com");
+		assertThat(loading.seenSince(150L, null, 10).users()).extracting(PresenceEntry::email)
+				.containsExactly("b@example.com", "c@example.com");
+		assertThat(loading.atAddress("10.0.0.1", null, null, 10).users()).extracting(PresenceEntry::email)
+				.containsExactly("b@example.com", "a@example.com");
+	}
+
+	@Test
+	void rejectsMalformedCursor() {
+		assertThatThrownBy(() -> index.seenSince(Long.MIN_VALUE, "not a cursor", 10))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+}
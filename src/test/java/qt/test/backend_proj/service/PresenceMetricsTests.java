@@ -0,0 +1,66 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import qt.test.backend_proj.service.PresenceMetrics.Endpoint;
+import qt.test.backend_proj.service.PresenceMetrics.Stage;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PresenceMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final PresenceMetrics metrics = new PresenceMetrics(registry);
+
+	@BeforeEach
+	void setUp() {
+		metrics.init();
+	}
+
+	@Test
+	void registersEveryExpectedMeterUpFront() {
+		assertThat(registry.find("presence.requests").counters()).hasSize(9);
+		assertThat(registry.find("presence.requests").tags("endpoint", "update", "status", "429").counter()).isNotNull();
+		assertThat(registry.find("presence.stage.duration").timers()).hasSize(Stage.values().length);
+		assertThat(registry.find("presence.stage.duration").tags("endpoint", "update", "stage", "lock").timer())
+				.isNotNull();
+		assertThat(registry.find("presence.request.duration").timers()).hasSize(Endpoint.values().length);
+	}
+
+	@Test
+	void chainsStagesFromTheReturnedEndTime() {
+		long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(5);
+		long end = metrics.recordStage(Stage.IDENTITY, start);
+		metrics.recordStage(Stage.PERSIST, end);
+
+		assertThat(end).isGreaterThan(start);
+		assertThat(stage("identity").totalTime(TimeUnit.MILLISECONDS)).isGreaterThanOrEqualTo(5.0);
+		assertThat(stage("persist").count()).isEqualTo(1);
+		assertThat(stage("broadcast").count()).isZero();
+	}
+
+	@Test
+	void countsOutcomesIncludingUnexpectedStatuses() {
+		long start = System.nanoTime();
+		metrics.recordOutcome(Endpoint.UPDATE, 200, start);
+		metrics.recordOutcome(Endpoint.UPDATE, 200, start);
+		metrics.recordOutcome(Endpoint.UPDATE, 503, start);
+
+		assertThat(requests("update", "200")).isEqualTo(2.0);
+		assertThat(requests("update", "503")).isEqualTo(1.0);
+		assertThat(requests("register", "201")).isZero();
+		assertThat(registry.get("presence.request.duration").tag("endpoint", "update").timer().count()).isEqualTo(3);
+	}
+
+	private Timer stage(String stage) {
+		return registry.get("presence.stage.duration").tags("endpoint", "update", "stage", stage).timer();
+	}
+
+	private double requests(String endpoint, String status) {
+		return registry.get("presence.requests").tags("endpoint", endpoint, "status", status).counter().count();
+	}
+}
@@ -0,0 +1,134 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.Dto.PresenceEntry;
+import qt.test.backend_proj.proto.PresenceUpdate;
+import qt.test.backend_proj.proto.ReplicationEnvelope;
+import qt.test.backend_proj.util.PresenceMessages;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PresenceReplicationServiceTests {
+
+	private PresenceIndex sourceIndex;
+	private PresenceIndex targetIndex;
+	private PresenceReplicationService source;
+	private PresenceReplicationService target;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		// Two nodes on loopback ports, the source sending to the target
+		targetIndex = index();
+		target = node("target", "", targetIndex);
+		sourceIndex = index();
+		source = node("source", "127.0.0.1:" + target.getLocalPort(), sourceIndex);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		source.shutdown();
+		target.shutdown();
+	}
+
+	@Test
+	void replicatedHeartbeatReachesThePeerIndex() throws Exception {
+		assertThat(source.replicate("user@example.com", 200L, "10.0.0.1", 5000)).isTrue();
+
+		List<PresenceEntry> users = awaitUsers(targetIndex, 1);
+		assertThat(users).containsExactly(new PresenceEntry("user@example.com", 200L, "10.0.0.1", 5000));
+	}
+
+	@Test
+	void olderHeartbeatNeverOverwritesNewerRegardlessOfArrivalOrder() {
+		target.apply(envelope("other", 2, "user@example.com", 500L, "10.0.0.5"));
+		target.apply(envelope("other", 1, "user@example.com", 400L, "10.0.0.4"));
+
+		assertThat(targetIndex.seenSince(Long.MIN_VALUE, null, 10).users())
+				.containsExactly(new PresenceEntry("user@example.com", 500L, "10.0.0.5", 5000));
+		// A local heartbeat older than the replicated one is not published either
+		assertThat(target.replicate("user@example.com", 450L, "10.0.0.6", 5000)).isFalse();
+		assertThat(target.replicate("user@example.com", 600L, "10.0.0.6", 5000)).isTrue();
+	}
+
+	@Test
+	void forgetsUsersOnceTheyExpire() throws Exception {
+		PresenceExpiryService expiry = new PresenceExpiryService(null, new PresenceFeed(null, new SimpleMeterRegistry()),
+				new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(expiry, "enabled", true);
+		ReflectionTestUtils.setField(expiry, "ttlSeconds", 0L);
+		ReflectionTestUtils.setField(expiry, "tickMs", 10L);
+		expiry.init();
+		PresenceReplicationService node = node("expiring", "", index(), expiry);
+		try {
+			long lastSeen = System.currentTimeMillis() * 1_000_000L;
+			node.apply(envelope("other", 1, "user@example.com", lastSeen, "10.0.0.5"));
+
+			Map<?, ?> latest = (Map<?, ?>) ReflectionTestUtils.getField(node, "latest");
+			for (int i = 0; i < 100 && !latest.isEmpty(); i++) {
+				Thread.sleep(20);
+			}
+			assertThat(latest).isEmpty();
+		} finally {
+			node.shutdown();
+			expiry.shutdown();
+		}
+	}
+
+	@Test
+	void ignoresItsOwnEnvelopes() {
+		target.apply(envelope("target", 1, "user@example.com", 500L, "10.0.0.5"));
+
+		assertThat(targetIndex.seenSince(Long.MIN_VALUE, null, 10).users()).isEmpty();
+	}
+
+	private static ReplicationEnvelope envelope(String nodeId, long sequence, String email, long lastSeen, String ip) {
+		PresenceUpdate update = PresenceMessages.presenceUpdate(email, lastSeen, ip, 5000);
+		return ReplicationEnvelope.newBuilder().setNodeId(nodeId).setSequence(sequence).addUpdates(update).build();
+	}
+
+	private static List<PresenceEntry> awaitUsers(PresenceIndex index, int count) throws InterruptedException {
+		List<PresenceEntry> users = List.of();
+		for (int i = 0; i < 100 && users.size() < count; i++) {
+			Thread.sleep(20);
+			users = index.seenSince(Long.MIN_VALUE, null, 10).users();
+		}
+		return users;
+	}
+
+	private static PresenceIndex index() {
+		// Not initialized: nothing is loaded from the database and queries use the in-memory index
+		PresenceIndex index = new PresenceIndex(null, null, new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(index, "enabled", true);
+		ReflectionTestUtils.setField(index, "ready", true);
+		return index;
+	}
+
+	private static PresenceReplicationService node(String nodeId, String peers, PresenceIndex index) throws Exception {
+		// Not initialized, so it ignores updates
+		return node(nodeId, peers, index, new PresenceExpiryService(null, null, new SimpleMeterRegistry()));
+	}
+
+	private static PresenceReplicationService node(String nodeId, String peers, PresenceIndex index,
+			PresenceExpiryService expiry) throws Exception {
+		SimpleMeterRegistry registry = new SimpleMeterRegistry();
+		// Feed is not initialized, so it ignores updates
+		PresenceFeed feed = new PresenceFeed(null, registry);
+		PresenceReplicationService node = new PresenceReplicationService(index, expiry, feed, null, registry);
+		ReflectionTestUtils.setField(node, "enabled", true);
+		ReflectionTestUtils.setField(node, "nodeId", nodeId);
+		ReflectionTestUtils.setField(node, "bindPort", 0);
+		ReflectionTestUtils.setField(node, "peers", peers);
+		ReflectionTestUtils.setField(node, "queueCapacity", 1024);
+		ReflectionTestUtils.setField(node, "maxFrameBytes", 1400);
+		ReflectionTestUtils.setField(node, "lingerMs", 1L);
+		node.init();
+		return node;
+	}
+}
@@ -0,0 +1,114 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.service.HeartbeatGovernor.Admission;
+import qt.test.backend_proj.service.HeartbeatGovernor.Decision;
+import qt.test.backend_proj.service.PresenceService.Heartbeat;
+import qt.test.backend_proj.service.PresenceService.Heartbeat.Status;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PresenceServiceTests {
+
+	private static final String EMAIL = "user@example.com";
+
+	private final HeartbeatGovernor governor = mock(HeartbeatGovernor.class);
+	private final PresenceStore store = mock(PresenceStore.class);
+	private final UdpBroadcastService broadcast = mock(UdpBroadcastService.class);
+	private final IdentityCache identityCache = mock(IdentityCache.class);
+	private final PresenceIndex index = mock(PresenceIndex.class);
+	private final PresenceFeed feed = mock(PresenceFeed.class);
+	private final PresenceExpiryService expiry = mock(PresenceExpiryService.class);
+	private final PresenceReplicationService replication = mock(PresenceReplicationService.class);
+	private PresenceService service;
+
+	@BeforeEach
+	void setUp() {
+		PresenceMetrics metrics = new PresenceMetrics(new SimpleMeterRegistry());
+		metrics.init();
+		service = new PresenceService(governor, store, broadcast, identityCache, metrics, index, feed, expiry,
+				replication);
+		ReflectionTestUtils.setField(service, "lockStripes", 16);
+		service.init();
+
+		when(governor.admit(anyString(), anyString(), anyInt())).thenReturn(Admission.RECORD);
+		when(identityCache.findUserId(EMAIL)).thenReturn(Optional.of(UUID.randomUUID()));
+		when(store.record(anyString(), anyLong(), anyString(), anyInt())).thenReturn(true);
+		when(replication.replicate(anyString(), anyLong(), anyString(), anyInt())).thenReturn(true);
+	}
+
+	@Test
+	void persistsAndBroadcastsOneIdentityInStrictlyIncreasingOrder() throws Exception {
+		Queue<Long> persisted = new ConcurrentLinkedQueue<>();
+		Queue<Long> broadcasted = new ConcurrentLinkedQueue<>();
+		AtomicInteger inside = new AtomicInteger();
+		AtomicBoolean overlapped = new AtomicBoolean();
+		when(store.record(eq(EMAIL), anyLong(), anyString(), anyInt())).thenAnswer(invocation -> {
+			if (inside.incrementAndGet() > 1) {
+				overlapped.set(true);
+			}
+			// Widen the window for another heartbeat of the identity to overtake this one
+			Thread.yield();
+			persisted.add(invocation.getArgument(1));
+			inside.decrementAndGet();
+			return true;
+		});
+		doAnswer(invocation -> broadcasted.add(invocation.getArgument(1)))
+				.when(broadcast).broadcastUserUpdate(eq(EMAIL), anyLong(), anyString(), anyInt());
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> senders = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			int port = 5000 + i;
+			senders.add(executor.submit(() -> {
+				for (int j = 0; j < 500; j++) {
+					assertThat(service.recordHeartbeat(EMAIL, "10.0.0.1", port).status()).isEqualTo(Status.RECORDED);
+				}
+			}));
+		}
+		for (Future<?> sender : senders) {
+			sender.get();
+		}
+		executor.shutdown();
+
+		assertThat(overlapped).isFalse();
+		assertThat(List.copyOf(persisted)).hasSize(4000).isSorted().doesNotHaveDuplicates();
+		assertThat(broadcasted).containsExactlyElementsOf(persisted);
+	}
+
+	@Test
+	void suppressedHeartbeatKeepsTheRecordedLastSeen() {
+		when(governor.admit(EMAIL, "10.0.0.1", 5000)).thenReturn(new Admission(Decision.SUPPRESS, 1234L));
+
+		Heartbeat heartbeat = service.recordHeartbeat(EMAIL, "10.0.0.1", 5000);
+
+		assertThat(heartbeat).isEqualTo(new Heartbeat(Status.RECORDED, EMAIL, 1234L, "10.0.0.1", 5000));
+		verify(expiry).touch(EMAIL, 1234L, true);
+		verify(store, never()).record(anyString(), anyLong(), anyString(), anyInt());
+		verify(broadcast, never()).broadcastUserUpdate(anyString(), anyLong(), anyString(), anyInt());
+	}
+}
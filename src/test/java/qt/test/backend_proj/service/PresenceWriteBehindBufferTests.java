@@ -0,0 +1,118 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PresenceWriteBehindBufferTests {
+
+	private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+	private final List<PreparedStatement> writtenRows = new ArrayList<>();
+	private PresenceWriteBehindBuffer buffer;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		// Record one mock statement per flushed row
+		when(jdbcTemplate.batchUpdate(anyString(), any(Collection.class), anyInt(), any(ParameterizedPreparedStatementSetter.class)))
+				.thenAnswer(invocation -> {
+					Collection<Object> rows = invocation.getArgument(1);
+					ParameterizedPreparedStatementSetter<Object> setter = invocation.getArgument(3);
+					for (Object row : rows) {
+						PreparedStatement ps = mock(PreparedStatement.class);
+						setter.setValues(ps, row);
+						writtenRows.add(ps);
+					}
+					return new int[0][];
+				});
+
+		buffer = new PresenceWriteBehindBuffer(jdbcTemplate, new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(buffer, "enabled", true);
+		ReflectionTestUtils.setField(buffer, "maxPending", 100);
+		ReflectionTestUtils.setField(buffer, "batchSize", 100);
+		// Long interval so only explicit flushes run during the test
+		ReflectionTestUtils.setField(buffer, "flushIntervalMs", 60_000L);
+		ReflectionTestUtils.setField(buffer, "offerTimeoutMs", 1L);
+		buffer.init();
+	}
+
+	@AfterEach
+	void tearDown() throws InterruptedException {
+		buffer.shutdown();
+	}
+
+	@Test
+	void keepsNewestUpdatePerEmail() throws Exception {
+		assertThat(buffer.offer("a@example.com", 20L, "10.0.0.1", 1000)).isTrue();
+		assertThat(buffer.offer("a@example.com", 10L, "10.0.0.2", 2000)).isTrue();
+		assertThat(buffer.offer("a@example.com", 30L, "10.0.0.3", 3000)).isTrue();
+		assertThat(buffer.getDepth()).isEqualTo(1);
+
+		assertThat(buffer.flush()).isEqualTo(1);
+		assertThat(writtenRows).hasSize(1);
+		verify(writtenRows.get(0)).setLong(1, 30L);
+		verify(writtenRows.get(0)).setString(2, "10.0.0.3");
+		assertThat(buffer.getDepth()).isZero();
+	}
+
+	@Test
+	void flushesPendingUpdatesOnShutdown() throws InterruptedException {
+		buffer.offer("a@example.com", 1L, "10.0.0.1", 1000);
+		buffer.offer("b@example.com", 1L, "10.0.0.1", 1000);
+
+		buffer.shutdown();
+
+		assertThat(writtenRows).hasSize(2);
+		assertThat(buffer.offer("c@example.com", 2L, "10.0.0.1", 1000)).isFalse();
+	}
+
+	@Test
+	void neverLosesAnAcceptedOfferDuringShutdown() throws Exception {
+		AtomicBoolean stopped = new AtomicBoolean();
+		AtomicInteger accepted = new AtomicInteger();
+		AtomicInteger emails = new AtomicInteger();
+		List<Thread> offering = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			Thread thread = new Thread(() -> {
+				while (!stopped.get()) {
+					// Unique emails, so every accepted offer is one written row
+					if (buffer.offer("user" + emails.incrementAndGet() + "@example.com", 1L, "10.0.0.1", 1000)) {
+						accepted.incrementAndGet();
+					}
+				}
+			});
+			thread.start();
+			offering.add(thread);
+		}
+		Thread.sleep(50);
+
+		buffer.shutdown();
+		stopped.set(true);
+		for (Thread thread : offering) {
+			thread.join();
+		}
+
+		assertThat(accepted.get()).isPositive();
+		assertThat(writtenRows).hasSize(accepted.get());
+	}
+
+}
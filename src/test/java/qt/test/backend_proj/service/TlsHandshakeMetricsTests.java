@@ -0,0 +1,65 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSession;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TlsHandshakeMetricsTests {
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final TlsHandshakeMetrics metrics = new TlsHandshakeMetrics(registry);
+
+	@Test
+	void onlyAVerifiedSessionCountsAsFull() {
+		SSLSession verified = session(1, 2, 3);
+		metrics.recordClientVerification(verified);
+
+		assertThat(metrics.recordHandshake("heartbeat", verified, 1_000_000L)).isTrue();
+		assertThat(metrics.recordHandshake("heartbeat", session(4, 5, 6), 1_000L)).isFalse();
+
+		assertThat(handshakes("heartbeat", "full")).isEqualTo(1.0);
+		assertThat(handshakes("heartbeat", "resumed")).isEqualTo(1.0);
+		assertThat(registry.get("tls.handshake.duration").tags("listener", "heartbeat", "type", "full").timer().count())
+				.isEqualTo(1);
+		assertThat(registry.get("tls.session.cache.hit_ratio").tag("listener", "heartbeat").gauge().value())
+				.isEqualTo(0.5);
+	}
+
+	@Test
+	void aVerifiedSessionIsAttributedToOneConnectionOnly() {
+		// A TLS 1.2 session id is reused by every connection that resumes it
+		metrics.recordClientVerification(session(1, 2, 3));
+
+		assertThat(metrics.recordConnection("https", "010203")).isTrue();
+		assertThat(metrics.recordConnection("https", "010203")).isFalse();
+
+		assertThat(handshakes("https", "full")).isEqualTo(1.0);
+		assertThat(handshakes("https", "resumed")).isEqualTo(1.0);
+	}
+
+	@Test
+	void ignoresAVerificationWithoutHandshakeSession() {
+		metrics.recordClientVerification(null);
+
+		assertThat(metrics.recordConnection("https", "")).isFalse();
+	}
+
+	private double handshakes(String listener, String type) {
+		return registry.get("tls.handshakes").tags("listener", listener, "type", type).counter().count();
+	}
+
+	private static SSLSession session(int... id) {
+		byte[] bytes = new byte[id.length];
+		for (int i = 0; i < id.length; i++) {
+			bytes[i] = (byte) id[i];
+		}
+		SSLSession session = mock(SSLSession.class);
+		when(session.getId()).thenReturn(bytes);
+		return session;
+	}
+}
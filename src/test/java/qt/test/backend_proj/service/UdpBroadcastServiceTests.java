@@ -0,0 +1,144 @@
+package qt.test.backend_proj.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import qt.test.backend_proj.proto.PresenceBatch;
+import qt.test.backend_proj.proto.PresenceUpdate;
+import qt.test.backend_proj.util.PresenceMessages;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UdpBroadcastServiceTests {
+
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+	private DatagramSocket receiver;
+	private UdpBroadcastService service;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		receiver = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		receiver.setSoTimeout(2_000);
+
+		service = new UdpBroadcastService(registry);
+		ReflectionTestUtils.setField(service, "mode", "async");
+		ReflectionTestUtils.setField(service, "format", "framed");
+		ReflectionTestUtils.setField(service, "broadcastAddress", "127.0.0.1");
+		ReflectionTestUtils.setField(service, "broadcastDestPort", receiver.getLocalPort());
+		ReflectionTestUtils.setField(service, "broadcastSourcePort", 0);
+		ReflectionTestUtils.setField(service, "queueCapacity", 1024);
+		ReflectionTestUtils.setField(service, "maxFrameBytes", 1400);
+		// Generous linger so all updates below land in the same frame
+		ReflectionTestUtils.setField(service, "lingerMs", 200L);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		service.cleanup();
+		receiver.close();
+	}
+
+	@Test
+	void packsQueuedUpdatesIntoOneFrame() throws Exception {
+		service.init();
+		service.broadcastUserUpdate("a@example.com", 1L, "10.0.0.1", 1001);
+		service.broadcastUserUpdate("b@example.com", 2L, "10.0.0.2", 1002);
+		service.broadcastUserUpdate("c@example.com", 3L, "10.0.0.3", 1003);
+
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		receiver.receive(packet);
+		ByteBuffer frame = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+
+		assertThat(frame.get()).isEqualTo(UdpBroadcastService.FRAME_VERSION);
+		assertThat(frame.getShort()).isEqualTo((short) 3);
+
+		// Each record keeps the legacy layout
+		byte[] legacy = service.createBinaryMessage("a@example.com", 1L, "10.0.0.1", 1001);
+		byte[] first = new byte[legacy.length];
+		frame.get(first);
+		assertThat(first).isEqualTo(legacy);
+	}
+
+	@Test
+	void splitsFramesAtMaxFrameBytes() throws Exception {
+		ReflectionTestUtils.setField(service, "maxFrameBytes", 64);
+		service.init();
+		// Each record is 4 + 13 + 8 + 4 + 8 + 4 = 41 bytes, so only one fits per 64-byte frame
+		service.broadcastUserUpdate("a@example.com", 1L, "10.0.0.1", 1001);
+		service.broadcastUserUpdate("b@example.com", 2L, "10.0.0.2", 1002);
+
+		for (int i = 0; i < 2; i++) {
+			DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+			receiver.receive(packet);
+			assertThat(packet.getLength()).isLessThanOrEqualTo(64);
+			assertThat(ByteBuffer.wrap(packet.getData()).getShort(1)).isEqualTo((short) 1);
+		}
+	}
+
+	@Test
+	void packsQueuedUpdatesIntoOneProtobufBatch() throws Exception {
+		ReflectionTestUtils.setField(service, "format", "protobuf");
+		service.init();
+		service.broadcastUserUpdate("a@example.com", 1L, "10.0.0.1", 1001);
+		service.broadcastUserUpdate("b@example.com", 2L, "fe80::1", 1002);
+		service.broadcastOffline("c@example.com", 3L);
+
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		receiver.receive(packet);
+
+		assertThat(packet.getData()[0]).isEqualTo(UdpBroadcastService.PROTOBUF_FRAME_VERSION);
+		PresenceBatch batch = PresenceBatch.parseFrom(ByteBuffer.wrap(packet.getData(), 1, packet.getLength() - 1));
+		assertThat(batch.getUpdatesList()).containsExactly(
+				PresenceMessages.presenceUpdate("a@example.com", 1L, "10.0.0.1", 1001),
+				PresenceMessages.presenceUpdate("b@example.com", 2L, "fe80::1", 1002),
+				PresenceMessages.offline("c@example.com", 3L));
+		// Addresses travel as raw bytes
+		assertThat(batch.getUpdates(0).getIp().size()).isEqualTo(4);
+		assertThat(PresenceMessages.ip(batch.getUpdates(1))).isEqualTo("fe80:0:0:0:0:0:0:1");
+	}
+
+	@Test
+	void sendsOneProtobufUpdatePerDatagramInSyncMode() throws Exception {
+		ReflectionTestUtils.setField(service, "mode", "sync");
+		ReflectionTestUtils.setField(service, "format", "protobuf");
+		service.init();
+		service.broadcastUserUpdate("a@example.com", 1L, "10.0.0.1", 1001);
+
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		receiver.receive(packet);
+
+		assertThat(packet.getData()[0]).isEqualTo(UdpBroadcastService.PROTOBUF_FRAME_VERSION);
+		PresenceBatch batch = PresenceBatch.parseFrom(ByteBuffer.wrap(packet.getData(), 1, packet.getLength() - 1));
+		PresenceUpdate update = batch.getUpdates(0);
+		assertThat(batch.getUpdatesCount()).isEqualTo(1);
+		assertThat(update.getEmail()).isEqualTo("a@example.com");
+		assertThat(PresenceMessages.ip(update)).isEqualTo("10.0.0.1");
+		assertThat(update.getOffline()).isFalse();
+	}
+
+	@Test
+	void dropsBroadcastsWhenTheQueueIsFull() throws Exception {
+		ReflectionTestUtils.setField(service, "mode", "sync");
+		ReflectionTestUtils.setField(service, "queueCapacity", 2);
+		service.init();
+		// A sender that never drains the queue
+		ReflectionTestUtils.setField(service, "sender", new Thread(() -> { }));
+
+		service.broadcastUserUpdate("a@example.com", 1L, "10.0.0.1", 1001);
+		service.broadcastUserUpdate("b@example.com", 2L, "10.0.0.2", 1002);
+		service.broadcastOffline("c@example.com", 3L);
+
+		assertThat(registry.counter("udp.broadcast.queue_full").count()).isEqualTo(1.0);
+		assertThat(ReflectionTestUtils.getField(service, "queued")).hasToString("2");
+		assertThat(registry.counter("udp.broadcast.sent").count()).isZero();
+	}
+
+}
@@ -0,0 +1,47 @@
+package qt.test.backend_proj.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StripedLocksTests {
+
+	@Test
+	void roundsTheStripeCountUpToAPowerOfTwo() {
+		assertThat(new StripedLocks(0).size()).isEqualTo(1);
+		assertThat(new StripedLocks(1).size()).isEqualTo(1);
+		assertThat(new StripedLocks(3).size()).isEqualTo(4);
+		assertThat(new StripedLocks(4096).size()).isEqualTo(4096);
+		assertThat(new StripedLocks(4097).size()).isEqualTo(8192);
+	}
+
+	@Test
+	void mapsEveryKeyToOneStableStripe() {
+		StripedLocks locks = new StripedLocks(16);
+		Set<Integer> used = new HashSet<>();
+		for (int i = 0; i < 1000; i++) {
+			String email = "user" + i + "@example.com";
+			int stripe = locks.stripe(email);
+			assertThat(stripe).isBetween(0, 15);
+			// An equal key from another request lands on the same lock
+			assertThat(locks.stripe(new String(email))).isEqualTo(stripe);
+			assertThat(locks.lock(stripe)).isSameAs(locks.lock(locks.stripe(email)));
+			used.add(stripe);
+		}
+		assertThat(used).hasSize(16);
+	}
+
+	@Test
+	void spreadsKeysThatDifferOnlyInTheirHighHashBits() {
+		StripedLocks locks = new StripedLocks(16);
+		Set<Integer> used = new HashSet<>();
+		for (int i = 0; i < 16; i++) {
+			int key = i << 16;
+			used.add(locks.stripe(key));
+		}
+		assertThat(used).hasSize(16);
+	}
+}
@@ -0,0 +1,96 @@
+package qt.test.backend_proj.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TimingWheelTests {
+
+	private static final long START = 1_000_003L;
+
+	@Test
+	void firesEveryTimerOnItsDeadlineTickAcrossAllLevels() {
+		TimingWheel<NamedTimer> wheel = new TimingWheel<>(START);
+		// Deadlines on every level, on level boundaries and beyond the wheel's range
+		long[] delays = {1, 2, 63, 64, 65, 4095, 4096, 4097, 262_143, 262_144, 16_777_215, 16_777_216, 20_000_000};
+		for (long delay : delays) {
+			wheel.schedule(new NamedTimer("+" + delay), START + delay);
+		}
+		assertThat(wheel.size()).isEqualTo(delays.length);
+
+		Map<String, Long> firedAt = new HashMap<>();
+		long tick = START;
+		while (wheel.size() > 0) {
+			tick += 997;
+			long target = tick;
+			wheel.advance(target, timer -> firedAt.put(timer.name, wheel.currentTick()));
+		}
+
+		for (long delay : delays) {
+			assertThat(firedAt.get("+" + delay)).as("timer +%d", delay).isEqualTo(START + delay);
+		}
+	}
+
+	@Test
+	void rescheduledTimerFiresOnlyAtItsNewDeadline() {
+		TimingWheel<NamedTimer> wheel = new TimingWheel<>(START);
+		NamedTimer moved = new NamedTimer("moved");
+		NamedTimer cancelled = new NamedTimer("cancelled");
+		wheel.schedule(moved, START + 10);
+		wheel.schedule(cancelled, START + 10);
+
+		wheel.schedule(moved, START + 5000);
+		wheel.cancel(cancelled);
+		assertThat(wheel.size()).isEqualTo(1);
+
+		List<String> fired = new ArrayList<>();
+		wheel.advance(START + 4999, timer -> fired.add(timer.name));
+		assertThat(fired).isEmpty();
+
+		wheel.advance(START + 5000, timer -> fired.add(timer.name));
+		assertThat(fired).containsExactly("moved");
+		assertThat(moved.isScheduled()).isFalse();
+		assertThat(wheel.size()).isZero();
+	}
+
+	@Test
+	void pastDeadlineFiresOnTheNextTick() {
+		TimingWheel<NamedTimer> wheel = new TimingWheel<>(START);
+		wheel.schedule(new NamedTimer("late"), START - 100);
+
+		List<Long> firedAt = new ArrayList<>();
+		wheel.advance(START + 64, timer -> firedAt.add(wheel.currentTick()));
+
+		assertThat(firedAt).containsExactly(START + 1);
+	}
+
+	@Test
+	void expiredTimerCanBeScheduledAgainFromTheCallback() {
+		TimingWheel<NamedTimer> wheel = new TimingWheel<>(START);
+		NamedTimer timer = new NamedTimer("periodic");
+		wheel.schedule(timer, START + 100);
+
+		List<Long> firedAt = new ArrayList<>();
+		wheel.advance(START + 1000, expired -> {
+			firedAt.add(wheel.currentTick());
+			wheel.schedule(expired, wheel.currentTick() + 100);
+		});
+
+		assertThat(firedAt).hasSize(10).startsWith(START + 100, START + 200).endsWith(START + 1000);
+		assertThat(timer.isScheduled()).isTrue();
+	}
+
+	private static final class NamedTimer extends TimingWheel.Timer {
+
+		private final String name;
+
+		NamedTimer(String name) {
+			this.name = name;
+		}
+	}
+}
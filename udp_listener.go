@@ -6,23 +6,41 @@ import (
 	"fmt"
 	"net"
 	"os"
+	"strconv"
+	"strings"
+	"sync/atomic"
 	"time"
 )
 
 const (
-	defaultPort = 6667
+	defaultPort          = 6667
+	maxDatagramSize      = 65507
+	frameVersion         = 1
+	frameHeaderSize      = 3
+	protobufFrameVersion = 2
+	// Requested SO_RCVBUF for -fast; Linux caps it at net.core.rmem_max
+	defaultReceiveBuffer = 8 * 1024 * 1024
+)
+
+// Protobuf wire types used by presence.proto
+const (
+	wireVarint          = 0
+	wireFixed64         = 1
+	wireLengthDelimited = 2
+	wireFixed32         = 5
 )
 
 func main() {
 	// Command-line flag for port
 	port := flag.Int("port", defaultPort, "UDP port to listen on")
+	fast := flag.Bool("fast", false, "decode in place and report counters instead of printing every record")
+	receiveBuffer := flag.Int("rcvbuf", defaultReceiveBuffer, "socket receive buffer in bytes, with -fast")
+	printRecords := flag.Bool("print", false, "print every record, with -fast")
 	flag.Parse()
 
 	addr := fmt.Sprintf(":%d", *port)
 	fmt.Printf("=== Go UDP Broadcast Listener ===\n")
 	fmt.Printf("Listening on port: %d\n", *port)
-	fmt.Println("Waiting for broadcast messages...")
-	fmt.Println()
 
 	// Create UDP connection
 	conn, err := net.ListenPacket("udp", addr)
@@ -32,7 +50,16 @@ func main() {
 	}
 	defer conn.Close()
 
-	buffer := make([]byte, 1024)
+	if *fast {
+		runFast(conn.(*net.UDPConn), *port, *receiveBuffer, *printRecords)
+		return
+	}
+
+	fmt.Println("Waiting for broadcast messages...")
+	fmt.Println()
+
+	// Largest UDP payload, so frames are never truncated
+	buffer := make([]byte, maxDatagramSize)
 
 	for {
 		// Read UDP packet
@@ -46,70 +73,359 @@ func main() {
 		fmt.Printf("From: %s\n", addr.String())
 
 		// Parse binary message
-		if err := parseBinaryMessage(buffer[:n]); err != nil {
+		records, err := parseBinaryMessage(buffer[:n])
+		if err != nil {
 			fmt.Printf("Error parsing message: %v\n", err)
 		}
+		for _, record := range records {
+			printRecord(record)
+		}
 
 		fmt.Println()
 	}
 }
 
-func parseBinaryMessage(data []byte) error {
-	if len(data) < 16 { // Minimum size: 4 + 4 + 8 + 4 + 4 = 24, but check for at least headers
-		return fmt.Errorf("packet too short")
+// receiveCounters are written by the -fast receive loop and read by the reporter
+type receiveCounters struct {
+	received  atomic.Uint64
+	records   atomic.Uint64
+	malformed atomic.Uint64
+}
+
+// runFast reads every datagram into one reused buffer and decodes it in place, so the
+// receive loop allocates nothing for well-formed datagrams
+func runFast(conn *net.UDPConn, port int, receiveBuffer int, printRecords bool) {
+	if err := conn.SetReadBuffer(receiveBuffer); err != nil {
+		fmt.Fprintf(os.Stderr, "Error setting receive buffer: %v\n", err)
 	}
+	fmt.Printf("Receive buffer: requested %d bytes (capped at net.core.rmem_max)\n", receiveBuffer)
 
-	offset := 0
+	var counters receiveCounters
+	go reportCounters(port, &counters)
+
+	consume := func(*recordView) {}
+	if printRecords {
+		consume = func(view *recordView) { printRecord(view.record()) }
+	}
+
+	buffer := make([]byte, maxDatagramSize)
+	var view recordView
+	for {
+		// Read on an unconnected socket skips building the sender address
+		n, err := conn.Read(buffer)
+		if err != nil {
+			fmt.Fprintf(os.Stderr, "Error reading packet: %v\n", err)
+			continue
+		}
+
+		records, err := decodeInPlace(buffer[:n], &view, consume)
+		counters.received.Add(1)
+		counters.records.Add(uint64(records))
+		if err != nil {
+			counters.malformed.Add(1)
+		}
+	}
+}
+
+func reportCounters(port int, counters *receiveCounters) {
+	var previous uint64
+	for range time.Tick(time.Second) {
+		received := counters.received.Load()
+		drops := "n/a"
+		if n, ok := kernelDrops(port); ok {
+			drops = strconv.FormatUint(n, 10)
+		}
+		fmt.Printf("received=%d (%d/s) records=%d malformed=%d kernel_drops=%s\n",
+			received, received-previous, counters.records.Load(), counters.malformed.Load(), drops)
+		previous = received
+	}
+}
+
+// kernelDrops sums the drops column of /proc/net/udp and /proc/net/udp6 for sockets bound to
+// port, i.e. datagrams the kernel discarded because the receive buffer was full. ok is false
+// where those files do not exist (anything but Linux).
+func kernelDrops(port int) (drops uint64, ok bool) {
+	localPort := fmt.Sprintf(":%04X", port)
+	for _, table := range []string{"/proc/net/udp", "/proc/net/udp6"} {
+		data, err := os.ReadFile(table)
+		if err != nil {
+			continue
+		}
+		for _, line := range strings.Split(string(data), "\n") {
+			// sl local_address rem_address st tx_queue:rx_queue ... ref pointer drops
+			fields := strings.Fields(line)
+			if len(fields) <= 12 || !strings.HasSuffix(fields[1], localPort) {
+				continue
+			}
+			if n, err := strconv.ParseUint(fields[len(fields)-1], 10, 64); err == nil {
+				drops += n
+				ok = true
+			}
+		}
+	}
+	return drops, ok
+}
+
+// presenceRecord is one decoded presence update
+type presenceRecord struct {
+	email    string
+	lastSeen int64
+	ip       string
+	port     int
+}
+
+// recordView is one record inside the receive buffer. email and ip alias the datagram,
+// so a view is only valid until the consumer returns.
+type recordView struct {
+	email    []byte
+	lastSeen int64
+	ip       []byte
+	rawIP    bool
+	port     int
+}
+
+// record copies the view into a presenceRecord
+func (v *recordView) record() presenceRecord {
+	ip := string(v.ip)
+	if v.rawIP {
+		// Raw 4 or 16 byte address
+		ip = net.IP(v.ip).String()
+	}
+	return presenceRecord{email: string(v.email), lastSeen: v.lastSeen, ip: ip, port: v.port}
+}
+
+// parseBinaryMessage decodes either format:
+// legacy: [email_length:4][email][lastSeen:8][ip_length:4][ip][port:4]
+// framed: [version:1][record_count:2][record]... where each record uses the legacy layout.
+// protobuf: [version:1 = 2][PresenceBatch] as defined in src/main/proto/presence.proto.
+// Legacy datagrams always start with a zero byte, the high byte of the email length.
+func parseBinaryMessage(data []byte) ([]presenceRecord, error) {
+	var view recordView
+	var records []presenceRecord
+	_, err := decodeInPlace(data, &view, func(v *recordView) {
+		records = append(records, v.record())
+	})
+	return records, err
+}
+
+// decodeInPlace decodes the formats of parseBinaryMessage without copying: every record is
+// passed to consume through view. It returns the number of records consumed, which on error
+// counts the records before the malformed one.
+func decodeInPlace(data []byte, view *recordView, consume func(*recordView)) (int, error) {
+	if len(data) == 0 {
+		return 0, fmt.Errorf("empty datagram")
+	}
+
+	if data[0] == 0 {
+		if _, err := decodeRecord(data, 0, view); err != nil {
+			return 0, err
+		}
+		consume(view)
+		return 1, nil
+	}
+
+	version := data[0]
+	if version == protobufFrameVersion {
+		return decodePresenceBatch(data[1:], view, consume)
+	}
+	if version != frameVersion {
+		return 0, fmt.Errorf("unsupported frame version %d", version)
+	}
+	if len(data) < frameHeaderSize {
+		return 0, fmt.Errorf("insufficient data for frame header")
+	}
+
+	count := int(binary.BigEndian.Uint16(data[1:3]))
+	offset := frameHeaderSize
+	for i := 0; i < count; i++ {
+		next, err := decodeRecord(data, offset, view)
+		if err != nil {
+			return i, fmt.Errorf("record %d: %w", i, err)
+		}
+		consume(view)
+		offset = next
+	}
+
+	return count, nil
+}
+
+// decodeRecord decodes one legacy record starting at offset and returns the offset after it
+func decodeRecord(data []byte, offset int, view *recordView) (int, error) {
+	*view = recordView{}
 
 	// Read email length (4 bytes, big-endian)
 	if offset+4 > len(data) {
-		return fmt.Errorf("insufficient data for email length")
+		return offset, fmt.Errorf("insufficient data for email length")
 	}
-	emailLen := int(binary.BigEndian.Uint32(data[offset:offset+4]))
+	emailLen := int(binary.BigEndian.Uint32(data[offset : offset+4]))
 	offset += 4
 
 	// Read email
-	if offset+emailLen > len(data) {
-		return fmt.Errorf("insufficient data for email")
+	if emailLen < 0 || offset+emailLen > len(data) {
+		return offset, fmt.Errorf("insufficient data for email")
 	}
-	email := string(data[offset : offset+emailLen])
+	view.email = data[offset : offset+emailLen]
 	offset += emailLen
 
 	// Read lastSeen (8 bytes, big-endian, nanoseconds since Unix epoch)
 	if offset+8 > len(data) {
-		return fmt.Errorf("insufficient data for lastSeen")
+		return offset, fmt.Errorf("insufficient data for lastSeen")
 	}
-	lastSeenNanos := int64(binary.BigEndian.Uint64(data[offset:offset+8]))
+	view.lastSeen = int64(binary.BigEndian.Uint64(data[offset : offset+8]))
 	offset += 8
 
-	// Convert nanoseconds to time
-	lastSeenTime := time.Unix(0, lastSeenNanos)
-
 	// Read IP length (4 bytes, big-endian)
 	if offset+4 > len(data) {
-		return fmt.Errorf("insufficient data for IP length")
+		return offset, fmt.Errorf("insufficient data for IP length")
 	}
-	ipLen := int(binary.BigEndian.Uint32(data[offset:offset+4]))
+	ipLen := int(binary.BigEndian.Uint32(data[offset : offset+4]))
 	offset += 4
 
 	// Read IP
-	if offset+ipLen > len(data) {
-		return fmt.Errorf("insufficient data for IP")
+	if ipLen < 0 || offset+ipLen > len(data) {
+		return offset, fmt.Errorf("insufficient data for IP")
 	}
-	ip := string(data[offset : offset+ipLen])
+	view.ip = data[offset : offset+ipLen]
 	offset += ipLen
 
 	// Read port (4 bytes, big-endian)
 	if offset+4 > len(data) {
-		return fmt.Errorf("insufficient data for port")
+		return offset, fmt.Errorf("insufficient data for port")
+	}
+	view.port = int(binary.BigEndian.Uint32(data[offset : offset+4]))
+	offset += 4
+
+	return offset, nil
+}
+
+// decodePresenceBatch decodes a PresenceBatch by hand so the listener needs no protobuf runtime
+func decodePresenceBatch(data []byte, view *recordView, consume func(*recordView)) (int, error) {
+	count := 0
+	for len(data) > 0 {
+		field, wireType, rest, err := readTag(data)
+		if err != nil {
+			return count, err
+		}
+		if field == 1 && wireType == wireLengthDelimited {
+			var update []byte
+			update, data, err = readLengthDelimited(rest)
+			if err != nil {
+				return count, err
+			}
+			if err := decodePresenceUpdate(update, view); err != nil {
+				return count, fmt.Errorf("record %d: %w", count, err)
+			}
+			consume(view)
+			count++
+			continue
+		}
+		if data, err = skipField(rest, wireType); err != nil {
+			return count, err
+		}
 	}
-	port := int(binary.BigEndian.Uint32(data[offset:offset+4]))
+	return count, nil
+}
 
-	// Print parsed data
-	fmt.Printf("Email: %s\n", email)
-	fmt.Printf("Last Seen: %s\n", lastSeenTime.Format("2006-01-02 15:04:05.000000 MST"))
-	fmt.Printf("IP Address: %s\n", ip)
-	fmt.Printf("Port: %d\n", port)
+// decodePresenceUpdate decodes one PresenceUpdate message, skipping unknown fields
+func decodePresenceUpdate(data []byte, view *recordView) error {
+	*view = recordView{}
+	for len(data) > 0 {
+		field, wireType, rest, err := readTag(data)
+		if err != nil {
+			return err
+		}
 
+		switch {
+		case (field == 1 || field == 3 || field == 5) && wireType == wireLengthDelimited:
+			var value []byte
+			if value, data, err = readLengthDelimited(rest); err != nil {
+				return err
+			}
+			if field == 1 {
+				view.email = value
+			} else {
+				view.ip = value
+				view.rawIP = field == 3
+			}
+		case (field == 2 || field == 4) && wireType == wireVarint:
+			var value uint64
+			if value, data, err = readVarint(rest); err != nil {
+				return err
+			}
+			if field == 2 {
+				view.lastSeen = int64(value)
+			} else {
+				view.port = int(value)
+			}
+		default:
+			if data, err = skipField(rest, wireType); err != nil {
+				return err
+			}
+		}
+	}
 	return nil
-}
\ No newline at end of file
+}
+
+func readTag(data []byte) (int, int, []byte, error) {
+	tag, rest, err := readVarint(data)
+	if err != nil {
+		return 0, 0, data, err
+	}
+	return int(tag >> 3), int(tag & 7), rest, nil
+}
+
+func readVarint(data []byte) (uint64, []byte, error) {
+	value, n := binary.Uvarint(data)
+	if n <= 0 {
+		return 0, data, fmt.Errorf("malformed varint")
+	}
+	return value, data[n:], nil
+}
+
+func readLengthDelimited(data []byte) ([]byte, []byte, error) {
+	length, rest, err := readVarint(data)
+	if err != nil {
+		return nil, data, err
+	}
+	if length > uint64(len(rest)) {
+		return nil, data, fmt.Errorf("invalid field length %d", length)
+	}
+	return rest[:length], rest[length:], nil
+}
+
+func skipField(data []byte, wireType int) ([]byte, error) {
+	switch wireType {
+	case wireVarint:
+		_, rest, err := readVarint(data)
+		return rest, err
+	case wireFixed64, wireFixed32:
+		size := 8
+		if wireType == wireFixed32 {
+			size = 4
+		}
+		if len(data) < size {
+			return data, fmt.Errorf("insufficient data for fixed field")
+		}
+		return data[size:], nil
+	case wireLengthDelimited:
+		_, rest, err := readLengthDelimited(data)
+		return rest, err
+	default:
+		return data, fmt.Errorf("unsupported wire type %d", wireType)
+	}
+}
+
+func printRecord(record presenceRecord) {
+	// Convert nanoseconds to time
+	lastSeenTime := time.Unix(0, record.lastSeen)
+
+	fmt.Printf("Email: %s\n", record.email)
+	fmt.Printf("Last Seen: %s\n", lastSeenTime.Format("2006-01-02 15:04:05.000000 MST"))
+	// Offline announcements carry no address (protobuf ones also set the offline field)
+	if record.ip == "" && record.port == 0 {
+		fmt.Println("Status: offline")
+		return
+	}
+	fmt.Printf("IP Address: %s\n", record.ip)
+	fmt.Printf("Port: %d\n", record.port)
+}